@@ -0,0 +1,201 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: AsyncDataAccess.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class provides non-blocking versions of the lookups that command
+ * handlers and listeners perform against the managers. Each method
+ * submits the corresponding blocking manager call to the plugin's thread
+ * pool and immediately returns a Future for the result. Callers that need
+ * several independent pieces of information should start every lookup
+ * first and only then wait on the Futures, so that the database round
+ * trips overlap instead of running back to back.
+ *
+ * Because each lookup borrows its own pooled connection, the number of
+ * lookups in flight at once is bounded by the connection pool size.
+ * Exceptions thrown by the underlying call are reported through the
+ * ExecutionException raised by Future.get().
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.nwmogk.bukkit.loans.api.EconResult;
+import com.nwmogk.bukkit.loans.api.FinancialEntity;
+import com.nwmogk.bukkit.loans.object.ImmutableOffer;
+import com.nwmogk.bukkit.loans.object.Loan;
+import com.nwmogk.bukkit.loans.object.PaymentStatement;
+
+public class AsyncDataAccess {
+
+	private SerenityLoans plugin;
+
+	/**
+	 * Creates an AsyncDataAccess object which submits work to the thread
+	 * pool of the given plugin.
+	 *
+	 * @param plugin SerenityLoans object whose managers will be queried.
+	 */
+	public AsyncDataAccess(SerenityLoans plugin){
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Asynchronous version of EconomyManager.getBalance(FinancialEntity).
+	 */
+	public Future<EconResult> getBalance(final FinancialEntity entity){
+		return plugin.threads.submit(new Callable<EconResult>(){
+			public EconResult call(){
+				return plugin.econ.getBalance(entity);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of PlayerManager.getFinancialEntity(UUID).
+	 */
+	public Future<FinancialEntity> getFinancialEntity(final UUID userID){
+		return plugin.threads.submit(new Callable<FinancialEntity>(){
+			public FinancialEntity call(){
+				return plugin.playerManager.getFinancialEntity(userID);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of PlayerManager.getFinancialEntity(String). Name
+	 * lookup failures are reported as the cause of the ExecutionException.
+	 */
+	public Future<FinancialEntity> getFinancialEntity(final String name){
+		return plugin.threads.submit(new Callable<FinancialEntity>(){
+			public FinancialEntity call() throws Exception {
+				return plugin.playerManager.getFinancialEntity(name);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of PlayerManager.entityNameLookup(FinancialEntity).
+	 */
+	public Future<String> entityNameLookup(final FinancialEntity entity){
+		return plugin.threads.submit(new Callable<String>(){
+			public String call() throws Exception {
+				return plugin.playerManager.entityNameLookup(entity);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of PlayerManager.getManagedEntities(UUID).
+	 */
+	public Future<Vector<UUID>> getManagedEntities(final UUID playerID){
+		return plugin.threads.submit(new Callable<Vector<UUID>>(){
+			public Vector<UUID> call(){
+				return plugin.playerManager.getManagedEntities(playerID);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of LoanManager.getLoan(int).
+	 */
+	public Future<Loan> getLoan(final int loanID){
+		return plugin.threads.submit(new Callable<Loan>(){
+			public Loan call(){
+				return plugin.loanManager.getLoan(loanID);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of LoanManager.getLoan(FinancialEntity, FinancialEntity).
+	 */
+	public Future<Loan[]> getLoans(final FinancialEntity lender, final FinancialEntity borrower){
+		return plugin.threads.submit(new Callable<Loan[]>(){
+			public Loan[] call(){
+				return plugin.loanManager.getLoan(lender, borrower);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of LoanManager.getLoansWithOutstandingStatements(UUID).
+	 */
+	public Future<List<Loan>> getLoansWithOutstandingStatements(final UUID borrowerId){
+		return plugin.threads.submit(new Callable<List<Loan>>(){
+			public List<Loan> call(){
+				return plugin.loanManager.getLoansWithOutstandingStatements(borrowerId);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of LoanManager.getPaymentStatement(int).
+	 */
+	public Future<PaymentStatement> getPaymentStatement(final int loanID){
+		return plugin.threads.submit(new Callable<PaymentStatement>(){
+			public PaymentStatement call(){
+				return plugin.loanManager.getPaymentStatement(loanID);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of OfferManager.getOffer(UUID, UUID).
+	 */
+	public Future<ImmutableOffer> getOffer(final UUID lenderID, final UUID borrowerID){
+		return plugin.threads.submit(new Callable<ImmutableOffer>(){
+			public ImmutableOffer call(){
+				return plugin.offerManager.getOffer(lenderID, borrowerID);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of OfferManager.getOfferSendersTo(UUID, boolean).
+	 */
+	public Future<List<FinancialEntity>> getOfferSendersTo(final UUID borrowerID, final boolean filterSent){
+		return plugin.threads.submit(new Callable<List<FinancialEntity>>(){
+			public List<FinancialEntity> call(){
+				return plugin.offerManager.getOfferSendersTo(borrowerID, filterSent);
+			}
+		});
+	}
+}
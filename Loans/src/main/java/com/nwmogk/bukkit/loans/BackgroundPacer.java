@@ -0,0 +1,176 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: BackgroundPacer.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class paces background work such as the loan update sweep and
+ * offer expiry so that it never competes with players for the server or
+ * the database. It is a token bucket: each unit of work takes one token
+ * with acquire(), which blocks until one is available, and tokens refill
+ * at the current rate.
+ * 
+ * Once a second the rate is adjusted from two measurements. The server
+ * thread calls tick() every game tick, giving an average tick length, and
+ * the QueryStats of the connection pool give the recent statement time.
+ * If either is above its target the rate is halved, otherwise it grows by
+ * a quarter, always staying between the configured minimum and maximum.
+ * Work therefore runs as fast as the server allows when it is quiet and
+ * backs off quickly when players start to feel lag.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans;
+
+import com.nwmogk.bukkit.loans.database.QueryStats;
+
+public class BackgroundPacer {
+
+	// How often the rate is recalculated
+	private static final long adjustNanos = 1000000000L;
+	
+	// Weight given to each new game tick in the average tick length
+	private static final double tickWeight = 0.1;
+	
+	private final double minRate;
+	private final double maxRate;
+	private final long targetTickNanos;
+	private final long targetQueryNanos;
+	private final QueryStats stats;
+	
+	private double rate;
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+	private long lastAdjust = System.nanoTime();
+	
+	private volatile double averageTickNanos = 0;
+	private volatile long lastTick = 0;
+
+	/**
+	 * Creates a pacer starting at the minimum rate.
+	 *
+	 * @param minRate Slowest rate in units of work per second.
+	 * @param maxRate Fastest rate in units of work per second.
+	 * @param targetTickMillis Average game tick length above which work backs off.
+	 * @param targetQueryMillis Average statement time above which work backs off. 0 ignores statement times.
+	 * @param stats Statement timings of the connection pool. May be null.
+	 */
+	public BackgroundPacer(double minRate, double maxRate, long targetTickMillis, long targetQueryMillis, QueryStats stats){
+		this.minRate = Math.max(0.1, minRate);
+		this.maxRate = Math.max(this.minRate, maxRate);
+		this.targetTickNanos = targetTickMillis * 1000000L;
+		this.targetQueryNanos = targetQueryMillis * 1000000L;
+		this.stats = stats;
+		
+		rate = this.minRate;
+	}
+
+	/**
+	 * Waits until the next unit of background work may start.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while(true){
+			long now = System.nanoTime();
+			
+			if(now - lastAdjust >= adjustNanos)
+				adjust(now);
+			
+			// Allow a short burst of a tenth of a second of work
+			double burst = Math.max(1.0, rate / 10);
+			tokens = Math.min(burst, tokens + rate * (now - lastRefill) / 1e9);
+			lastRefill = now;
+			
+			if(tokens >= 1.0){
+				tokens -= 1.0;
+				return;
+			}
+			
+			long waitMillis = (long) Math.ceil((1.0 - tokens) / rate * 1000);
+			wait(Math.max(1, Math.min(waitMillis, adjustNanos / 1000000L)));
+		}
+	}
+
+	/**
+	 * Records the end of a game tick. Must be called from the server
+	 * thread once every tick.
+	 */
+	public void tick(){
+		long now = System.nanoTime();
+		long previous = lastTick;
+		lastTick = now;
+		
+		if(previous == 0)
+			return;
+		
+		double average = averageTickNanos;
+		averageTickNanos = average == 0? now - previous : average + tickWeight * (now - previous - average);
+	}
+
+	/**
+	 * Returns the current rate.
+	 *
+	 * @return Units of work allowed per second.
+	 */
+	public synchronized double getRate(){
+		return rate;
+	}
+
+	/*
+	 * Recalculates the rate from the measurements as of the given
+	 * System.nanoTime(). Package-private so tests can drive it.
+	 */
+	void adjust(long now){
+		lastAdjust = now;
+		
+		double tickNanos = averageTickNanos;
+		
+		// A server thread which has not ticked at all is the worst kind of lag.
+		if(lastTick != 0)
+			tickNanos = Math.max(tickNanos, now - lastTick);
+		
+		boolean overloaded = targetTickNanos > 0 && tickNanos > targetTickNanos;
+		
+		if(stats != null && targetQueryNanos > 0 && stats.getRecentMillis() * 1000000L > targetQueryNanos)
+			overloaded = true;
+		
+		double newRate = overloaded? rate / 2 : rate * 1.25;
+		newRate = Math.max(minRate, Math.min(maxRate, newRate));
+		
+		if(SerenityLoans.debugLevel >= 4 && newRate != rate)
+			SerenityLoans.logInfo(String.format("Background work rate %s to %.1f per second.", overloaded? "reduced" : "raised", newRate));
+		
+		rate = newRate;
+	}
+}
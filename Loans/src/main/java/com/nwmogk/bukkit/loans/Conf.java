@@ -227,6 +227,20 @@ public class Conf {
 		return parseTime(timeout);
 	}
 	
+	/**
+	 * Returns how long, in milliseconds, a remembered player name is used
+	 * before it is checked again with the account service.
+	 */
+	public synchronized static long getNameCacheTtl(){
+		String ttl = "1w";
+		String path = "options.name-cache-ttl";
+		
+		if(config.contains(path) && config.isString(path))
+			ttl = config.getString(path).replaceAll(" ", "");
+		
+		return parseTime(ttl);
+	}
+	
 	public synchronized static long getUpdateTime(){
 		String timeout = "1h";
 		String path = "options.update-frequency";
@@ -237,6 +251,136 @@ public class Conf {
 		return parseTime(timeout);
 	}
 	
+	/**
+	 * Returns how often executed loan events are compacted, in
+	 * milliseconds. 0 turns compaction off.
+	 */
+	public synchronized static long getCompactionPeriod(){
+		String period = "1d";
+		String path = "options.compaction.period";
+		
+		if(config.contains(path) && config.isString(path))
+			period = config.getString(path).replaceAll(" ", "");
+		
+		return parseTime(period);
+	}
+	
+	/**
+	 * Returns how old an executed loan event must be, in milliseconds,
+	 * before compaction moves it to the archive. 0 turns compaction off.
+	 */
+	public synchronized static long getCompactionAge(){
+		String age = "4w";
+		String path = "options.compaction.keep-events";
+		
+		if(config.contains(path) && config.isString(path))
+			age = config.getString(path).replaceAll(" ", "");
+		
+		return parseTime(age);
+	}
+	
+	/**
+	 * Returns how long a loan stays in the active tables after it closes,
+	 * in milliseconds. 0 keeps closed loans there.
+	 */
+	public synchronized static long getClosedLoanRetention(){
+		String retention = "4w";
+		String path = "options.compaction.archive-closed-after";
+		
+		if(config.contains(path) && config.isString(path))
+			retention = config.getString(path).replaceAll(" ", "");
+		
+		return parseTime(retention);
+	}
+	
+	public synchronized static boolean useBulkAccrual(){
+		boolean bulk = false;
+		String path = "options.bulk-accrual";
+		
+		if(config.contains(path) && config.isBoolean(path))
+			bulk = config.getBoolean(path);
+		
+		return bulk;
+	}
+	
+	public synchronized static boolean useTimedEvents(){
+		boolean timed = true;
+		String path = "options.timed-events";
+		
+		if(config.contains(path) && config.isBoolean(path))
+			timed = config.getBoolean(path);
+		
+		return timed;
+	}
+	
+	public synchronized static boolean useLazyBalances(){
+		boolean lazy = false;
+		String path = "options.lazy-balances";
+		
+		if(config.contains(path) && config.isBoolean(path))
+			lazy = config.getBoolean(path);
+		
+		return lazy;
+	}
+	
+	/**
+	 * Returns the number of due events at which a loan is brought up to date
+	 * by replaying them all at once. 0 turns this off.
+	 */
+	public synchronized static int getCatchUpThreshold(){
+		int threshold = 8;
+		String path = "options.catch-up-threshold";
+		
+		if(config.contains(path) && config.isInt(path))
+			threshold = config.getInt(path);
+		
+		return Math.max(0, threshold);
+	}
+	
+	/**
+	 * Returns how long, in milliseconds, a cached FinancialEntity is used
+	 * before it is read from the database again. This bounds how long a
+	 * change made outside the plugin goes unseen. 0 turns the cache off.
+	 */
+	public synchronized static long getEntityCacheTtl(){
+		String ttl = "30s";
+		String path = "options.entity-cache.ttl";
+		
+		if(config.contains(path) && config.isString(path))
+			ttl = config.getString(path).replaceAll(" ", "");
+		
+		return parseTime(ttl);
+	}
+	
+	/**
+	 * Returns the most FinancialEntities kept in the cache at once. The
+	 * least recently used entity is dropped when it is full.
+	 */
+	public synchronized static int getEntityCacheSize(){
+		int size = 1000;
+		String path = "options.entity-cache.max-size";
+		
+		if(config.contains(path) && config.isInt(path))
+			size = config.getInt(path);
+		
+		return Math.max(0, size);
+	}
+	
+	/**
+	 * Returns the number of loans updated at once by a polling update
+	 * sweep. 0 means the plugin picks a value from the number of processors
+	 * and database connections.
+	 */
+	public synchronized static int getUpdateThreads(){
+		int threads = 0;
+		String path = "options.update-threads";
+		
+		if(config.contains(path) && config.isInt(path))
+			threads = config.getInt(path);
+		
+		return Math.max(0, threads);
+	}
+	
 	public synchronized static String getMessageString(){
 		String message = "$loans$>";
 		String path = "options.message-prefix";
@@ -54,6 +54,7 @@ import org.bukkit.plugin.RegisteredServiceProvider;
 
 import com.nwmogk.bukkit.loans.api.EconResult;
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
+import com.nwmogk.bukkit.loans.api.Money;
 import com.nwmogk.bukkit.loans.api.PlayerType;
 
 public class EconomyManager {
@@ -146,6 +147,13 @@ public class EconomyManager {
 		
 	}
 
+	/**
+	 * Deposits an amount given in minor units of the currency, see Money.
+	 */
+	public EconResult depositMinor(FinancialEntity entity, long amount){
+		return deposit(entity, Money.toDouble(amount));
+	}
+
 	@Deprecated
 	public EconResult deposit(String name, double amount) throws InterruptedException, ExecutionException, TimeoutException{
 		return deposit(plugin.playerManager.getFinancialEntity(name), amount);
@@ -172,6 +180,13 @@ public class EconomyManager {
 		return String.format("%s%#(,." + decimals + "f%s", symbol, amount, dollars);
 	}
 
+	/**
+	 * Formats an amount given in minor units of the currency, see Money.
+	 */
+	public String formatMinor(long amount){
+		return format(Money.toDouble(amount));
+	}
+
 	public String formatPercent(double value){
 		return String.format("%#.3f%%", value * 100);
 	}
@@ -258,6 +273,23 @@ public class EconomyManager {
 		return new EconResult(0, balance, answer, result.errMsg);
 	}
 
+	/**
+	 * Checks for an amount given in minor units of the currency, see Money.
+	 * The comparison is done in minor units, so a balance which differs from
+	 * the amount only by floating point error still counts.
+	 */
+	public EconResult hasMinor(FinancialEntity entity, long amount){
+		if(amount < 0)
+			return new EconResult(0, 0, false, "Amount query is negative!");
+		
+		EconResult result = getBalance(entity);
+		
+		if(! result.callSuccess)
+			return result;
+		
+		return new EconResult(0, result.balance, result.getBalanceMinor() >= amount, result.errMsg);
+	}
+
 	@Deprecated
 	public EconResult has(String name, double amount) throws InterruptedException, ExecutionException, TimeoutException{
 		return has(plugin.playerManager.getFinancialEntity(name), amount);
@@ -322,6 +354,13 @@ public class EconomyManager {
 		return plugin.playerManager.withdrawCash(entity.getUserID(), amount);
 	}
 
+	/**
+	 * Withdraws an amount given in minor units of the currency, see Money.
+	 */
+	public EconResult withdrawMinor(FinancialEntity entity, long amount){
+		return withdraw(entity, Money.toDouble(amount));
+	}
+
 	@Deprecated
 	public EconResult withdraw(String name, double amount) throws InterruptedException, ExecutionException, TimeoutException{
 		return withdraw(plugin.playerManager.getFinancialEntity(name), amount);
@@ -45,28 +45,49 @@
 
 package com.nwmogk.bukkit.loans;
 
+import java.sql.Connection;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
 
+import com.nwmogk.bukkit.loans.api.EconResult;
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
 import com.nwmogk.bukkit.loans.api.LoanType;
+import com.nwmogk.bukkit.loans.api.Money;
+import com.nwmogk.bukkit.loans.database.Query;
+import com.nwmogk.bukkit.loans.database.StorageBackend;
+import com.nwmogk.bukkit.loans.database.StripedLock;
 import com.nwmogk.bukkit.loans.object.FinancialInstitution;
 import com.nwmogk.bukkit.loans.object.ImmutableOffer;
 import com.nwmogk.bukkit.loans.object.Loan;
 import com.nwmogk.bukkit.loans.object.PaymentStatement;
+import com.nwmogk.bukkit.loans.object.SimulationReport;
 
 // TODO make thread safe + comments
 public class LoanManager {
@@ -74,7 +95,7 @@ public class LoanManager {
 	/*
 	 * This enum defines all of the event types for the loan model
 	 */
-	private enum LoanEventType {
+	enum LoanEventType {
 		COMPOUND, INTERESTACCRUAL, SERVICEFEE, LATEFEE, PAYMENTDUE, PAYMENTMADE, STATEMENTOUT, OPEN, CLOSE, EXTRAPRINCIPALPAID, EXTRAINTERESTPAID, EXTRAFEESPAID;
 		
 		public static LoanEventType getFromString(String type){
@@ -159,15 +180,15 @@ public class LoanManager {
 	 * The entire loan should be reconstructable from all of the events. The LoanEvent class is Comparable
 	 * by date of event.
 	 */
-	private class LoanEvent implements Comparable<LoanEvent>{
+	static class LoanEvent implements Comparable<LoanEvent>{
 		
 		public Timestamp time;
 		public LoanEventType action;
 		public int loan;
-		public double amount;
+		public long amount;			// Minor units of the currency, see Money
 		public int loanEventID;
 		
-		public LoanEvent(Timestamp t, LoanEventType a, double amt, int loanID, int loanEventID ){
+		public LoanEvent(Timestamp t, LoanEventType a, long amt, int loanID, int loanEventID ){
 			time = t;
 			action = a;
 			amount = amt;
@@ -175,7 +196,7 @@ public class LoanManager {
 			this.loanEventID = loanEventID;
 		}
 		
-		public LoanEvent(Timestamp t, LoanEventType a, double amt, int loanID ){
+		public LoanEvent(Timestamp t, LoanEventType a, long amt, int loanID ){
 			this(t, a, amt, loanID, 0);
 		}
 		
@@ -233,12 +254,104 @@ public class LoanManager {
 //		}
 	}
 	
+	/*
+	 * Balances of a loan worked out by computeAccrual(), and the
+	 * CompoundInterest events which were applied on the way.
+	 */
+	static class Accrual {
+		public long balance;
+		public long interestBalance;
+		public List<LoanEvent> compounded = new ArrayList<LoanEvent>();
+	}
+	
+	/*
+	 * The state of a loan while its events are replayed in memory by 
+	 * replay(). The cursor is the time up to which interest has been 
+	 * accrued. Cash is what the borrower has available for autopay. 
+	 * Rates are per reportingTime milliseconds, and percentageRule is as
+	 * in minimumPayment().
+	 */
+	static class Replay {
+		public final Loan loan;
+		public final double rate;
+		public final double reportingTime;
+		public final boolean percentageRule;
+		public final boolean continuous;
+		
+		public long balance;
+		public long interestBalance;
+		public long feeBalance;
+		public long cursor;
+		public long accrued = 0;
+		public long fees = 0;
+		public long paid = 0;
+		public long cash = 0;
+		public boolean autoPay = false;
+		public boolean minimumOnly = false;
+		public boolean closed = false;
+		
+		public ReplayStatement latest = null;
+		public List<ReplayStatement> issued = new ArrayList<ReplayStatement>();
+		public List<LoanEvent> executed = new ArrayList<LoanEvent>();
+		public List<LoanEvent> added = new ArrayList<LoanEvent>();
+		
+		public Replay(Loan loan, long cursor, long reportingTime, boolean percentageRule){
+			this.loan = loan;
+			this.rate = loan.getInterestRate();
+			this.reportingTime = (double) reportingTime;
+			this.percentageRule = percentageRule;
+			this.continuous = loan.getCompoundingPeriod() == 0;
+			this.balance = loan.getBalanceMinor();
+			this.interestBalance = loan.getInterestBalanceMinor();
+			this.feeBalance = loan.getFeesOutstandingMinor();
+			this.cursor = cursor;
+		}
+	}
+	
+	/*
+	 * A payment statement as replayed by replay(). Statements issued during
+	 * the replay have no StatementID until they are written.
+	 */
+	static class ReplayStatement {
+		public int statementID;
+		public long billAmount;
+		public long minimum;
+		public long paid;
+		public Timestamp statementDate;
+		public Timestamp dueDate;
+	}
+	
 	private SerenityLoans plugin;
 	private String prfx;
 	
-	private Object loanTableLock = new Object();
-	private Object loanEventTableLock = new Object();
-	private Object paymentStatementTableLock = new Object();
+	// Loans, LoanEvents and PaymentStatements rows are all guarded by the stripe of their LoanID.
+	private final StripedLock loanLocks = new StripedLock();
+	
+	// Length of one turn of the event wheel, and how often it is advanced
+	private static final long wheelTickMillis = 1000;
+	
+	/*
+	 * When timed events are enabled, each open loan with pending events has
+	 * one entry in the wheel at the time of its next event. nextEventTimes
+	 * holds the time each loan is currently scheduled for, so entries left
+	 * behind when a loan is rescheduled are recognized and skipped.
+	 */
+	private volatile TimingWheel<Integer> wheel = null;
+	private final ConcurrentHashMap<Integer, Long> nextEventTimes = new ConcurrentHashMap<Integer, Long>();
+	private final ConcurrentLinkedQueue<Integer> dueLoans = new ConcurrentLinkedQueue<Integer>();
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	
+	// Set while a polling sweep runs so that a late timer does not start a second one
+	private final AtomicBoolean sweeping = new AtomicBoolean(false);
+	
+	// Guards against overlapping runs of compactEvents() and archiveClosedLoans()
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+	private final AtomicBoolean archiving = new AtomicBoolean(false);
+	
+	// Closed loans moved to the archive tables per transaction
+	private static final int archiveBatchSize = 100;
+	private volatile long lastSweepMillis = -1;
+	private volatile int lastSweepLoans = 0;
 	
 	public LoanManager(SerenityLoans plugin){
 		this.plugin = plugin;
@@ -250,70 +363,120 @@ public class LoanManager {
 	 * made to the outstanding balances. 
 	 */
 	public double applyPayment(Loan theLoan, double amount) {
+		return Money.toDouble(applyPayment(theLoan, Money.fromDouble(amount)));
+	}
+	
+	/*
+	 * Applies a payment given in minor units of the currency and returns the
+	 * part of it which was not needed, also in minor units.
+	 * 
+	 * The payment is always applied to the loan as stored, read again under
+	 * its stripe, never to the given copy, which may hold projected
+	 * balances. With lazy balances, the interest and compounding due up to
+	 * now are written to the loan first. The new balances, the amount paid
+	 * on the latest statement and the payment event are written in one
+	 * transaction.
+	 */
+	public long applyPayment(Loan theLoan, long amount) {
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "applyPayment(Loan, double)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
-		
-		double runningTotal = amount;
-		double feeBalance = theLoan.getFeesOutstanding();
-		double interestBalance = theLoan.getInterestBalance();
-		double balance = theLoan.getBalance();
-		
-		if(runningTotal >= feeBalance){
-			runningTotal -= feeBalance;
-			feeBalance = 0;
-		}
-		else{
-			feeBalance -= runningTotal;
-			runningTotal = 0;
-		}
-		
-		if(runningTotal >= interestBalance){
-			runningTotal -= interestBalance;
-			interestBalance = 0;
-		}
-		else {
-			interestBalance -= runningTotal;
-			runningTotal = 0;
-		}
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "applyPayment(Loan, long)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		if(runningTotal > 0){
-			if(balance >= runningTotal)
-				balance -= runningTotal;	
-			else
-				balance = 0;
-		}
-		
-		String updateSQL = String.format("UPDATE Loans SET Balance=%f, InterestBalance=%f, FeeBalance=%f WHERE LoanID=%d;", balance, interestBalance, feeBalance, theLoan.getLoanID() );
+		int loanID = theLoan.getLoanID();
 		
+		// If this fails the interest stays unaccrued and is picked up from the last executed event next time
+		if(Conf.useLazyBalances())
+			accrueInterest(loanID, new Timestamp(new Date().getTime()));
 		
+		long runningTotal = amount;
+		long balance = -1;
+		Loan stored = null;
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
-			
-			synchronized(loanTableLock){
-				stmt.executeUpdate(updateSQL);
-			}
-			PaymentStatement ps = getPaymentStatement(theLoan.getLoanID());
-			
-			if(ps != null){
+			conn = plugin.getConnection();
 			
-				String updateBill = String.format("UPDATE PaymentStatements SET BillAmountPaid=%f WHERE StatementID=%d;", ps.getActualPaid() + amount - runningTotal, ps.getStatementID());
-				synchronized(paymentStatementTableLock){
-					stmt.executeUpdate(updateBill);
+			synchronized(loanLocks.get(loanID)){
+				List<Loan> found = readStoredLoans(conn, Arrays.asList(loanID), false);
+				
+				if(found.isEmpty())
+					return amount;
+				
+				stored = found.get(0);
+				PaymentStatement ps = readPaymentStatement(conn, loanID);
+				
+				long feeBalance = stored.getFeesOutstandingMinor();
+				long interestBalance = stored.getInterestBalanceMinor();
+				balance = stored.getBalanceMinor();
+				
+				if(runningTotal >= feeBalance){
+					runningTotal -= feeBalance;
+					feeBalance = 0;
+				}
+				else{
+					feeBalance -= runningTotal;
+					runningTotal = 0;
+				}
+				
+				if(runningTotal >= interestBalance){
+					runningTotal -= interestBalance;
+					interestBalance = 0;
+				}
+				else {
+					interestBalance -= runningTotal;
+					runningTotal = 0;
+				}
+				
+				if(runningTotal > 0){
+					if(balance >= runningTotal)
+						balance -= runningTotal;	
+					else
+						balance = 0;
 				}
+				
+				Timestamp paidAt = new Timestamp(new Date().getTime());
+				
+				conn.setAutoCommit(false);
+				
+				PreparedStatement stmt = Query.UPDATE_LOAN_BALANCES.prepare(conn);
+				
+				Money.bind(stmt, 1, balance);
+				Money.bind(stmt, 2, interestBalance);
+				Money.bind(stmt, 3, feeBalance);
+				stmt.setInt(4, loanID);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				if(ps != null){
+					stmt = Query.UPDATE_STATEMENT_PAID.prepare(conn);
+					
+					Money.bind(stmt, 1, ps.getActualPaidMinor() + amount - runningTotal);
+					stmt.setInt(2, ps.getStatementID());
+					stmt.executeUpdate();
+					stmt.close();
+				}
+				
+				stmt = Query.INSERT_LOAN_EVENT.prepare(conn);
+				addLoanEventBatch(stmt, new LoanEvent(paidAt, LoanEventType.PAYMENTMADE, amount - runningTotal, loanID), true);
+				
+				if(balance == 0)
+					addLoanEventBatch(stmt, new LoanEvent(paidAt, LoanEventType.CLOSE, stored.getValueMinor(), loanID), true);
+				
+				stmt.executeBatch();
+				stmt.close();
+				
+				conn.commit();
 			}
-			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+			return amount;
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
 		}
 		
-		addLoanEvent(new LoanEvent(new Timestamp(new Date().getTime()), LoanEventType.PAYMENTMADE, amount - runningTotal, theLoan.getLoanID()), true);
-		
-		if(balance == 0){
-			addLoanEvent(new LoanEvent(new Timestamp(new Date().getTime()), LoanEventType.CLOSE, theLoan.getValue(), theLoan.getLoanID()), true);
-			closeLoan(theLoan.getLoanID());
-		}
+		if(balance == 0)
+			closeLoan(loanID);
 			
 		return runningTotal;
 		
@@ -323,96 +486,387 @@ public class LoanManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "createLoan(UUID, UUID, int, double)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String insertLoan = String.format("INSERT INTO Loans(LenderID, BorrowerID, Terms, Balance, StartDate, LastUpdate) VALUES ('%s', '%s', %d, %f, ?, ?);", lenderID.toString(), borrowerID.toString(), termsID, value );
-		String whatsNew = String.format("SELECT LoanID FROM Loans WHERE Terms=%d;", termsID);
-		
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(insertLoan);
+			SerenityLoans.logInfo(String.format("Writing loan from %s to %s with terms %d.", lenderID.toString(), borrowerID.toString(), termsID));
+		
+		
+		// Everything the schedule needs is read before the transaction starts
+		FinancialEntity lender = plugin.playerManager.getFinancialEntity(lenderID);
+		FinancialEntity borrower = plugin.playerManager.getFinancialEntity(borrowerID);
+		ImmutableOffer terms = plugin.offerManager.getPreparedOffer(termsID, lender, borrower);
 		
+		if(terms == null){
+			if(SerenityLoans.debugLevel >= 2)
+				SerenityLoans.logWarn(String.format("Terms %d not found when creating loan.", termsID));
+			return false;
+		}
 		
-		boolean exitFlag = true;
+		Timestamp start = new Timestamp(new Date().getTime());
 		int loanID = 0;
+		int scheduled = 0;
+		Timestamp firstEvent = null;
 		
+		Connection conn = null;
+		
+		/*
+		 * The loan row, the removal of the offer and the event schedule are
+		 * written in one transaction, so a loan is never left without its
+		 * schedule. The offer is deleted first: if a concurrent accept has
+		 * already removed it, nothing is deleted and this loan is rolled back.
+		 */
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(insertLoan);
+			conn = plugin.getConnection();
+			conn.setAutoCommit(false);
 			
-			stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
-			stmt.setTimestamp(2, new Timestamp(new Date().getTime()));
+			PreparedStatement stmt = Query.DELETE_OFFER.prepare(conn);
 			
-			synchronized(loanTableLock){
-				if(stmt.executeUpdate() != 1)
-					return false;
-			}
+			stmt.setString(1, lenderID.toString());
+			stmt.setString(2, borrowerID.toString());
+			
+			int removed = stmt.executeUpdate();
+			stmt.close();
 			
-			plugin.offerManager.removeOffer(lenderID, borrowerID);
+			if(removed != 1){
+				if(SerenityLoans.debugLevel >= 2)
+					SerenityLoans.logWarn(String.format("Offer from %s to %s was already accepted or withdrawn.", lenderID.toString(), borrowerID.toString()));
+				conn.rollback();
+				return false;
+			}
 			
+			stmt = Query.INSERT_LOAN.prepareReturningKeys(conn);
 			
-			Statement search = plugin.conn.createStatement();
+			stmt.setString(1, lenderID.toString());
+			stmt.setString(2, borrowerID.toString());
+			stmt.setInt(3, termsID);
+			Money.bind(stmt, 4, Money.fromDouble(value));
+			stmt.setTimestamp(5, start);
+			stmt.setTimestamp(6, start);
 			
-			synchronized(loanTableLock){
-				ResultSet loanResult = search.executeQuery(whatsNew);
+			// The new row is not visible to anyone else yet, so no row lock is needed.
+			if(stmt.executeUpdate() != 1){
+				stmt.close();
+				conn.rollback();
+				return false;
+			}
 			
-				loanResult.next();
+			ResultSet keys = stmt.getGeneratedKeys();
 			
-				loanID = loanResult.getInt(1);
+			if(!keys.next()){
+				stmt.close();
+				conn.rollback();
+				return false;
 			}
 			
+			loanID = keys.getInt(1);
+			stmt.close();
+			
+			Loan theLoan = new Loan(loanID, Money.fromDouble(value), 0, 0, terms, start, start, termsID);
+			List<LoanEvent> schedule = buildLoanEvents(theLoan);
+			
+			stmt = Query.INSERT_LOAN_EVENT.prepare(conn);
+			
+			addLoanEventBatch(stmt, new LoanEvent(start, LoanEventType.OPEN, theLoan.getValueMinor(), loanID), true);
+			
+			for(LoanEvent le : schedule)
+				addLoanEventBatch(stmt, le, false);
+			
+			stmt.executeBatch();
 			stmt.close();
-			search.close();
+			
+			// Service fees fall due at the start time itself
+			stmt = Query.UPDATE_LOAN_SCHEDULE.prepare(conn);
+			
+			stmt.setTimestamp(1, start);
+			stmt.setTimestamp(2, new Timestamp(start.getTime() - 1));
+			stmt.setString(3, excludedFromSchedule());
+			stmt.setInt(4, loanID);
+			stmt.executeUpdate();
+			stmt.close();
+			
+			conn.commit();
+			
+			scheduled = schedule.size();
+			
+			for(LoanEvent le : schedule)
+				if(firstEvent == null || le.time.before(firstEvent))
+					firstEvent = le.time;
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
 			return false;
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
 		}
 		
-		buildLoanEvents(loanID);
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Opened loan %d with %d scheduled events.", loanID, scheduled));
+		
+		if(firstEvent != null)
+			scheduleLoan(loanID, firstEvent.getTime());
 		
-		return exitFlag;
+		return true;
 	}
 
 	public Loan getLoan(int loanID){
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getLoan(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
-			
-		String querySQL = String.format("SELECT * FROM Loans WHERE LoanID=%d;", loanID);
+		
+		List<Loan> found = getLoans(Arrays.asList(loanID));
+		
+		return found.isEmpty()? null : found.get(0);
+	}
+	
+	/**
+	 * Reads a loan as getLoan(int) does. If includeHistory is true and the
+	 * loan has been closed and archived, it is read from the archive 
+	 * instead, as it stood when it closed. The archive is only read when 
+	 * the loan is not an active one.
+	 * 
+	 * @param loanID LoanID to read.
+	 * @param includeHistory Whether archived loans are looked up.
+	 * @return The loan, or null if it was not found.
+	 */
+	public Loan getLoan(int loanID, boolean includeHistory){
+		Loan theLoan = getLoan(loanID);
+		
+		if(theLoan != null || !includeHistory)
+			return theLoan;
+		
+		List<Loan> found = getStoredLoans(Arrays.asList(loanID), true);
+		
+		return found.isEmpty()? null : found.get(0);
+	}
+	
+	/**
+	 * Reads several loans at once. Each loan is read together with its terms
+	 * and both parties by one joined query, and up to
+	 * Query.HYDRATION_BATCH_SIZE loans are read per query. LoanIDs which are
+	 * not found are left out of the result.
+	 * 
+	 * With lazy balances enabled, the interest, compounding and fees due
+	 * since each loan was last updated are worked out as it is read, so the
+	 * balances are exact at the time of the call. What that needs is read
+	 * for each batch of loans by one more query on the same connection.
+	 * 
+	 * @param loanIds LoanIDs to read.
+	 * @return Loans in the order of the given ids, never null.
+	 */
+	public List<Loan> getLoans(List<Integer> loanIds){
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getLoans(List<Integer>)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		if(!Conf.useLazyBalances())
+			return getStoredLoans(loanIds);
+		
+		Timestamp now = new Timestamp(new Date().getTime());
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
 			
-			ResultSet rs = null;
+			List<Loan> stored = readStoredLoans(conn, loanIds, false);
 			
-			synchronized(loanTableLock){
-				rs  = stmt.executeQuery(querySQL);
-			}
+			Map<Integer, Long> accruedTo = new HashMap<Integer, Long>();
+			Map<Integer, Long> latestPaid = new HashMap<Integer, Long>();
+			Map<Integer, List<LoanEvent>> due = new HashMap<Integer, List<LoanEvent>>();
 			
-			if(!rs.next()){
-				stmt.close();
-				return null;
-			}
+			readAccrualBasis(conn, loanIds, now, accruedTo, latestPaid, due);
 			
-			int termsID = rs.getInt("Terms");
-			double balance = rs.getDouble("Balance");
-			double interestBal = rs.getDouble("InterestBalance");
-			double feeBal = rs.getDouble("FeeBalance");
-			Timestamp start = rs.getTimestamp("StartDate");
-			Timestamp last = rs.getTimestamp("LastUpdate");
-			FinancialEntity lender = plugin.playerManager.getFinancialEntity(UUID.fromString(rs.getString("LenderID")));
-			FinancialEntity borrower = plugin.playerManager.getFinancialEntity(UUID.fromString(rs.getString("BorrowerID")));
+			List<Loan> result = new ArrayList<Loan>(stored.size());
 			
+			for(Loan theLoan : stored){
+				Long from = accruedTo.get(theLoan.getLoanID());
+				
+				// Closed between the two reads
+				if(from == null){
+					result.add(theLoan);
+					continue;
+				}
+				
+				List<LoanEvent> loanDue = due.get(theLoan.getLoanID());
+				
+				result.add(project(theLoan, from, loanDue == null? new ArrayList<LoanEvent>() : loanDue, latestPaid.get(theLoan.getLoanID()), now));
+			}
 			
-			ImmutableOffer offer = plugin.offerManager.getPreparedOffer(termsID, lender, borrower);
+			return result;
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		return new ArrayList<Loan>();
+	}
 	
-			Loan theLoan = new Loan(loanID, balance, interestBal, feeBal, offer, start, last, termsID);
+	/*
+	 * Reads, for each of the given loans, the time its stored balances are
+	 * accurate to, the amount paid on its latest statement and its pending
+	 * compounding and fee events due by now, oldest first. All are read by
+	 * one query per Query.HYDRATION_BATCH_SIZE loans and keyed by LoanID.
+	 * Loans which are not found get no entry, and loans without a statement
+	 * get no entry in latestPaid.
+	 */
+	private void readAccrualBasis(Connection conn, List<Integer> loanIds, Timestamp now, Map<Integer, Long> accruedTo, Map<Integer, Long> latestPaid, Map<Integer, List<LoanEvent>> due) throws SQLException {
+		for(int from = 0; from < loanIds.size(); from += Query.HYDRATION_BATCH_SIZE){
+			List<Integer> block = loanIds.subList(from, Math.min(from + Query.HYDRATION_BATCH_SIZE, loanIds.size()));
+			
+			PreparedStatement stmt = conn.prepareStatement(Query.selectAccrualBasis(block.size()));
+			
+			stmt.setTimestamp(1, now);
+			
+			int placeholders = Query.hydratedPlaceholders(block.size());
+			
+			// Unused placeholders repeat the last id
+			for(int i = 0; i < placeholders; i++)
+				stmt.setInt(i + 2, block.get(Math.min(i, block.size() - 1)));
+			
+			ResultSet rs = stmt.executeQuery();
+			
+			while(rs.next()){
+				int loanID = rs.getInt("LoanID");
+				
+				accruedTo.put(loanID, rs.getTimestamp("AccruedTo").getTime());
+				
+				if(rs.getBigDecimal("LatestPaid") != null)
+					latestPaid.put(loanID, Money.read(rs, "LatestPaid"));
+				
+				int loanEventID = rs.getInt("LoanEventID");
+				
+				if(rs.wasNull())
+					continue;
+				
+				List<LoanEvent> loanDue = due.get(loanID);
+				
+				if(loanDue == null){
+					loanDue = new ArrayList<LoanEvent>();
+					due.put(loanID, loanDue);
+				}
+				
+				loanDue.add(new LoanEvent(rs.getTimestamp("EventTime"), LoanEventType.getFromString(rs.getString("EventType")), Money.read(rs, "Amount"), loanID, loanEventID));
+			}
 			
 			stmt.close();
+		}
+	}
+	
+	/*
+	 * Reads a loan with its balances as last written. Used wherever the
+	 * balances are about to be changed.
+	 */
+	private Loan getStoredLoan(int loanID){
+		List<Loan> found = null;
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
 			
-			return theLoan;
+			synchronized(loanLocks.get(loanID)){
+				found = readStoredLoans(conn, Arrays.asList(loanID), false);
+			}
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+			return null;
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
-		return null;
+		return found.isEmpty()? null : found.get(0);
+	}
+	
+	private List<Loan> getStoredLoans(List<Integer> loanIds){
+		return getStoredLoans(loanIds, false);
+	}
+	
+	/*
+	 * Reads loans as stored, from LoansArchive if archived is true.
+	 */
+	private List<Loan> getStoredLoans(List<Integer> loanIds, boolean archived){
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			return readStoredLoans(conn, loanIds, archived);
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		return new ArrayList<Loan>();
+	}
+	
+	/*
+	 * Reads loans as stored on the given connection. LoanIDs which are not
+	 * found are left out of the result.
+	 */
+	private List<Loan> readStoredLoans(Connection conn, List<Integer> loanIds, boolean archived) throws SQLException {
+		Map<Integer, Loan> loans = new HashMap<Integer, Loan>();
+		
+		for(int from = 0; from < loanIds.size(); from += Query.HYDRATION_BATCH_SIZE){
+			List<Integer> block = loanIds.subList(from, Math.min(from + Query.HYDRATION_BATCH_SIZE, loanIds.size()));
+			
+			PreparedStatement stmt = conn.prepareStatement(Query.selectLoansHydrated(block.size(), archived));
+			
+			int placeholders = Query.hydratedPlaceholders(block.size());
+			
+			// Unused placeholders repeat the last id
+			for(int i = 0; i < placeholders; i++)
+				stmt.setInt(i + 1, block.get(Math.min(i, block.size() - 1)));
+			
+			// Reads spanning many rows take no row locks.
+			ResultSet rs = stmt.executeQuery();
+			
+			while(rs.next()){
+				Loan theLoan = loanFromRow(rs);
+				
+				if(theLoan != null)
+					loans.put(theLoan.getLoanID(), theLoan);
+			}
+			
+			stmt.close();
+		}
+		
+		List<Loan> result = new ArrayList<Loan>(loans.size());
+		
+		for(Integer loanId : loanIds){
+			Loan theLoan = loans.get(loanId);
+			
+			if(theLoan != null)
+				result.add(theLoan);
+		}
+		
+		return result;
+	}
+	
+	/*
+	 * Builds a Loan from one row of the hydration query. Returns null if
+	 * either party cannot be built.
+	 */
+	private Loan loanFromRow(ResultSet rs) throws SQLException {
+		int loanID = rs.getInt("LoanID");
+		int termsID = rs.getInt("Terms");
+		
+		UUID lenderId = UUID.fromString(rs.getString("LenderID"));
+		UUID borrowerId = UUID.fromString(rs.getString("BorrowerID"));
+		
+		FinancialEntity lender = PlayerManager.entityFromColumns(lenderId, rs.getString("LenderType"), rs.getDouble("LenderCash"), rs.getInt("LenderCreditScore"), rs.getString("LenderName"), rs.getString("LenderManager"));
+		FinancialEntity borrower = PlayerManager.entityFromColumns(borrowerId, rs.getString("BorrowerType"), rs.getDouble("BorrowerCash"), rs.getInt("BorrowerCreditScore"), rs.getString("BorrowerName"), rs.getString("BorrowerManager"));
+		
+		if(lender == null || borrower == null){
+			if(SerenityLoans.debugLevel >= 2)
+				SerenityLoans.logWarn(String.format("Party of loan %d not found.", loanID));
+			return null;
+		}
+		
+		ImmutableOffer offer = new ImmutableOffer(lender, borrower, rs.getDouble("Value"), rs.getDouble("InterestRate"), rs.getDouble("LateFee"), rs.getDouble("MinPayment"), rs.getDouble("ServiceFee"), 
+				rs.getLong("Term"), rs.getLong("CompoundingPeriod"), rs.getLong("GracePeriod"), rs.getLong("PaymentTime"), rs.getLong("PaymentFrequency"), rs.getLong("ServiceFeeFrequency"), 
+				LoanType.getFromString(rs.getString("LoanType")), null, termsID);
+		
+		return new Loan(loanID, Money.read(rs, "Balance"), Money.read(rs, "InterestBalance"), Money.read(rs, "FeeBalance"), offer, rs.getTimestamp("StartDate"), rs.getTimestamp("LastUpdate"), termsID);
 	}
 
 	/*
@@ -425,70 +879,122 @@ public class LoanManager {
 		Loan[] result = new Loan[]{};
 		Vector<Loan> loansFound = new Vector<Loan>();
 		
-		String querySQL = "SELECT LoanID FROM Loans WHERE LenderID=? AND BorrowerID=? ORDER BY LoanID;";
+		LinkedList<Integer> loanIds = new LinkedList<Integer>();
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(querySQL);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_LOAN_IDS_BY_PARTIES.prepare(conn);
 			
 			stmt.setString(1, lender.getUserID().toString());
 			stmt.setString(2, borrower.getUserID().toString());
 			
 			ResultSet rs = null;
 			
-			synchronized(loanTableLock){
-				rs = stmt.executeQuery(querySQL);
-			}
+			// Reads spanning many rows take no row locks.
+			rs = stmt.executeQuery();
 			
-			while(rs.next()){
-				Loan oneLoan = getLoan(rs.getInt("LoanID"));
-					
-				if(oneLoan != null)
-					loansFound.add(oneLoan);
-			}
+			while(rs.next())
+				loanIds.add(rs.getInt("LoanID"));
 			
 			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
+		loansFound.addAll(getLoans(loanIds));
+		
 		if(loansFound.size() > 0)
 			result = loansFound.toArray(result);
 		
 		return result;
 	}
 	
+	/**
+	 * Returns the loans between the two parties as getLoan(FinancialEntity,
+	 * FinancialEntity) does. If includeHistory is true, archived closed 
+	 * loans between them are added after the active ones.
+	 * 
+	 * @param lender Lender of the loans.
+	 * @param borrower Borrower of the loans.
+	 * @param includeHistory Whether archived loans are looked up.
+	 * @return Loans found, never null.
+	 */
+	public Loan[] getLoan(FinancialEntity lender, FinancialEntity borrower, boolean includeHistory) {
+		Loan[] active = getLoan(lender, borrower);
+		
+		if(!includeHistory)
+			return active;
+		
+		List<Integer> loanIds = new ArrayList<Integer>();
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_ARCHIVED_LOAN_IDS_BY_PARTIES.prepare(conn);
+			
+			stmt.setString(1, lender.getUserID().toString());
+			stmt.setString(2, borrower.getUserID().toString());
+			
+			ResultSet rs = stmt.executeQuery();
+			
+			while(rs.next())
+				loanIds.add(rs.getInt("LoanID"));
+			
+			stmt.close();
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		if(loanIds.isEmpty())
+			return active;
+		
+		List<Loan> all = new ArrayList<Loan>(Arrays.asList(active));
+		all.addAll(getStoredLoans(loanIds, true));
+		
+		return all.toArray(new Loan[0]);
+	}
+	
 	public List<Loan> getLoansWithOutstandingStatements(UUID borrowerId){
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getLoansWithOutstandingStatements(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String psQuery = "SELECT DISTINCT LoanID FROM PaymentStatements WHERE BillAmountPaid < BillAmount;";
 		LinkedList<Loan> result = new LinkedList<Loan>();
 		
-		Statement paymentStatements;
+		LinkedList<Integer> loanIds = new LinkedList<Integer>();
+		Connection conn = null;
+		
 		try {
-			paymentStatements = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement paymentStatements = Query.SELECT_OUTSTANDING_STATEMENT_LOANS.prepare(conn);
+			
+			paymentStatements.setString(1, borrowerId.toString());
 			
 			ResultSet loansWithStatements = null;
 			
-			synchronized(paymentStatementTableLock){
-				loansWithStatements = paymentStatements.executeQuery(psQuery);
-			}
+			// Reads spanning many rows take no row locks.
+			loansWithStatements = paymentStatements.executeQuery();
 			
-			while(loansWithStatements.next()){
-				int loanId = loansWithStatements.getInt(1);
-				
-				Loan potential = getLoan(loanId);
-				
-				if(potential.getBorrower().getUserID().equals(borrowerId))
-					result.add(potential);
-			}
+			while(loansWithStatements.next())
+				loanIds.add(loansWithStatements.getInt(1));
+			
+			paymentStatements.close();
 			
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
+		result.addAll(getLoans(loanIds));
+		
 		if (result.size() == 0)
 				return null;
 		return result;
@@ -500,51 +1006,67 @@ public class LoanManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getPaymentStatement(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String selectSQL = String.format("SELECT * FROM PaymentStatements WHERE LoanID=%d ORDER BY StatementDate DESC;", loanID);
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
-			
-			ResultSet rs = null;
+			conn = plugin.getConnection();
 			
-			synchronized(paymentStatementTableLock){
-				rs = stmt.executeQuery(selectSQL);
+			synchronized(loanLocks.get(loanID)){
+				return readPaymentStatement(conn, loanID);
 			}
-			
-			if(!rs.next())
-				return null;
-			
-			int statementID = rs.getInt("StatementID");
-			double billAmount = rs.getDouble("BillAmount");
-			double minimum = rs.getDouble("Minimum");
-			Timestamp statementDate = rs.getTimestamp("StatementDate");
-			Timestamp dueDate = rs.getTimestamp("DueDate");
-			double amountPaid = rs.getDouble("BillAmountPaid");
-			
-			stmt.close();
-			
-			return new PaymentStatement(statementID, loanID, billAmount, minimum, statementDate, dueDate, amountPaid);
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return null;
 	}
 	
-	public boolean setLender(int loanId, UUID newLenderId){
-		if(SerenityLoans.debugLevel >= 3)
+	/*
+	 * Reads the latest statement of the loan on the given connection, or
+	 * null if it has none.
+	 */
+	private PaymentStatement readPaymentStatement(Connection conn, int loanID) throws SQLException {
+		PreparedStatement stmt = Query.SELECT_LATEST_PAYMENT_STATEMENT.prepare(conn);
+		
+		stmt.setInt(1, loanID);
+		
+		ResultSet rs = stmt.executeQuery();
+		
+		if(!rs.next()){
+			stmt.close();
+			return null;
+		}
+		
+		int statementID = rs.getInt("StatementID");
+		long billAmount = Money.read(rs, "BillAmount");
+		long minimum = Money.read(rs, "Minimum");
+		Timestamp statementDate = rs.getTimestamp("StatementDate");
+		Timestamp dueDate = rs.getTimestamp("DueDate");
+		long amountPaid = Money.read(rs, "BillAmountPaid");
+		
+		stmt.close();
+		
+		return new PaymentStatement(statementID, loanID, billAmount, minimum, statementDate, dueDate, amountPaid);
+	}
+	
+	public boolean setLender(int loanId, UUID newLenderId){
+		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "setLender(int, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String updateSQL = String.format("UPDATE Loans SET LenderID=? WHERE LoanID=%d;", loanId);
 		int result = -1;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement ps = plugin.conn.prepareStatement(updateSQL);
+			conn = plugin.getConnection();
+			PreparedStatement ps = Query.UPDATE_LOAN_LENDER.prepare(conn);
 			
 			ps.setString(1, newLenderId.toString());
+			ps.setInt(2, loanId);
 			
-			synchronized(loanTableLock){
+			synchronized(loanLocks.get(loanId)){
 				result = ps.executeUpdate();
 			}
 			
@@ -552,6 +1074,8 @@ public class LoanManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return result == 1;
@@ -563,192 +1087,1418 @@ public class LoanManager {
 	 * assumes that the current time is the time that should be updated for.
 	 */
 	public void update(int loanID) {
+		update(loanID, true, new Timestamp(new Date().getTime()));
+	}
+	
+	/*
+	 * Updates the loan as above for events up to the given time. When 
+	 * accrue is true, interest up to now is accrued once before the due
+	 * events are handled. When it is false, interest has already been 
+	 * accrued by bulkAccrueInterest().
+	 */
+	private void update(int loanID, boolean accrue, Timestamp now) {
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "update(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
-		Timestamp now = new Timestamp(new Date().getTime());
-		
-		String toDoQuery = String.format("SELECT * FROM LoanEvents WHERE LoanID=%d AND Executed='false' ORDER BY EventTime;", loanID);
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "update(int, boolean, Timestamp)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		LinkedList<LoanEvent> checklist = new LinkedList<LoanEvent>();
+		List<LoanEvent> checklist = readDueEvents(loanID, now);
 		
-		try{
-			Statement stmt = plugin.conn.createStatement();
+		if(checklist == null)
+			return;
 		
-			ResultSet events = null;
+		/*
+		 * With lazy balances, interest and compounding are worked out when the
+		 * loan is read, so a batch with nothing else in it is left pending and
+		 * an idle loan is not written at all.
+		 */
+		if(Conf.useLazyBalances()){
+			boolean onlyCompounding = true;
 			
-			synchronized(loanEventTableLock){
-				events = stmt.executeQuery(toDoQuery);
-			}
+			for(LoanEvent le : checklist)
+				onlyCompounding &= le.action == LoanEventType.COMPOUND;
 			
-			while(events.next()){
+			if(onlyCompounding){
+				markUpdated(loanID, now);
+				return;
+			}
+		}
+		
+		// A long backlog, such as after downtime, is replayed in one pass
+		int threshold = Conf.getCatchUpThreshold();
+		
+		if(threshold > 0 && checklist.size() >= threshold && catchUp(loanID, now))
+			return;
+		
+//		Collections.sort(checklist);
+		
+		// Interest for the whole batch of due events is accrued at once
+		boolean compounded = false;
+		
+		if(accrue && !checklist.isEmpty())
+			compounded = accrueInterest(loanID, now);
+		
+		ListIterator<LoanEvent> it = checklist.listIterator();
+		
+		try {
+			while(it.hasNext()){
 				
-				Timestamp ts = events.getTimestamp("EventTime");
-				int loanEventID = events.getInt("LoanEventID");
-				String eventType = events.getString("EventType");
-				double amount = events.getDouble("Amount");
+				LoanEvent le = it.next();
 				
-				checklist.add(new LoanEvent(ts, LoanEventType.getFromString(eventType), amount, loanID, loanEventID));
+				if(now.before(le.time))
+					break;
 				
+				switch(le.action) {
+					case COMPOUND: 			
+						if(!compounded)
+							compoundInterest(le);
+						break;
+											
+					case PAYMENTDUE:		
+						// Recorded with the amount paid and marked executed, as catchUp() does
+						le.amount = attemptAutoPay(le);
+						creditScoreUpdate(le);
+						executeLoanEvent(le);
+						break;
+						
+					case LATEFEE:
+					case SERVICEFEE:		
+						assessFee(le);		
+						break;
+						
+					case STATEMENTOUT:		
+						sendOutStatement(le);
+						break;
+								
+					default:
+						break;
+				}	
 			}
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} 
 		
+		markUpdated(loanID, now);
+	}
+	
+	/*
+	 * Records the update time of the loan, and sets its NextEventTime to its
+	 * first pending event after the given time, up to which events have been
+	 * handled.
+	 */
+	private void markUpdated(int loanID, Timestamp handledTo) {
+		Connection conn = null;
 		
-//		Collections.sort(checklist);
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.UPDATE_LOAN_SCHEDULE.prepare(conn);
+			
+			stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
+			stmt.setTimestamp(2, handledTo);
+			stmt.setString(3, excludedFromSchedule());
+			stmt.setInt(4, loanID);
+			
+			synchronized(loanLocks.get(loanID)){
+				stmt.executeUpdate();
+			}
+			
+			stmt.close();
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+	}
+
+	/*
+	 * Reads the pending events of the loan which are due at the given time,
+	 * oldest first. Returns null if they could not be read.
+	 */
+	private List<LoanEvent> readDueEvents(int loanID, Timestamp now) {
+		List<LoanEvent> due = null;
+		Connection conn = null;
 		
-		ListIterator<LoanEvent> it = checklist.listIterator();
+		try{
+			conn = plugin.getConnection();
+			
+			synchronized(loanLocks.get(loanID)){
+				due = readDueEvents(conn, loanID, now);
+			}
+		} catch (SQLException e){
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+			return null;
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		return due;
+	}
+	
+	/*
+	 * Reads the due pending events of the loan on the given connection,
+	 * oldest first. The caller holds the loan's stripe if the events are
+	 * about to be executed.
+	 */
+	private List<LoanEvent> readDueEvents(Connection conn, int loanID, Timestamp now) throws SQLException {
+		List<LoanEvent> due = new ArrayList<LoanEvent>();
+		PreparedStatement stmt = Query.SELECT_PENDING_LOAN_EVENTS.prepare(conn);
+		
+		stmt.setInt(1, loanID);
 		
-		while(it.hasNext()){
+		ResultSet events = stmt.executeQuery();
+		
+		while(events.next()){
 			
-			LoanEvent le = it.next();
+			Timestamp ts = events.getTimestamp("EventTime");
 			
-			if(now.before(le.time))
+			if(now.before(ts))
 				break;
 			
-			accrueInterest(loanID);
+			int loanEventID = events.getInt("LoanEventID");
+			String eventType = events.getString("EventType");
+			long amount = Money.read(events, "Amount");
+			
+			due.add(new LoanEvent(ts, LoanEventType.getFromString(eventType), amount, loanID, loanEventID));
+			
+		}
+		
+		stmt.close();
+		
+		return due;
+	}
+	
+	/*
+	 * Brings a loan with a long backlog of due events up to date in one pass.
+	 * The events are replayed in memory in time order, with interest worked
+	 * out in closed form between them, and everything they change is written
+	 * in one transaction. The loan and its due events are read under the
+	 * loan's lock, which is held until the commit, so nothing replayed can
+	 * change underneath it. Autopay is taken from the borrower before the
+	 * transaction and given back if it fails. Due payments are marked 
+	 * executed so they are not replayed again, and only the last statement
+	 * issued is sent to the borrower. Returns false if nothing was written,
+	 * in which case the events are left to be handled one at a time.
+	 */
+	private boolean catchUp(int loanID, Timestamp now) {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "catchUp(int, Timestamp)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		boolean autoPay = isAutoPay(loanID);
+		Loan theLoan = null;
+		long autoPaid = 0;
+		List<ReplayStatement> issued = null;
+		List<LoanEvent> executed = null;
+		boolean committed = false;
+		
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			
+			synchronized(loanLocks.get(loanID)){
+				List<Loan> found = readStoredLoans(conn, Arrays.asList(loanID), false);
+				
+				if(found.isEmpty())
+					return false;
+				
+				theLoan = found.get(0);
+				List<LoanEvent> due = readDueEvents(conn, loanID, now);
+				
+				PaymentStatement ps = readPaymentStatement(conn, loanID);
+				Replay state = new Replay(theLoan, lastExecutedEventTime(conn, theLoan), Conf.getIntReportingTime(), usePercentageRule());
+				
+				state.autoPay = autoPay;
+				state.cash = autoPay? plugin.econ.getBalance(theLoan.getBorrower()).getBalanceMinor() : 0;
+				
+				if(ps != null){
+					state.latest = new ReplayStatement();
+					state.latest.statementID = ps.getStatementID();
+					state.latest.billAmount = ps.getBillAmountMinor();
+					state.latest.minimum = ps.getMinimumPaymentMinor();
+					state.latest.paid = ps.getActualPaidMinor();
+				}
+				
+				ReplayStatement existing = state.latest;
+				
+				replay(state, due);
+				
+				if(!state.closed)
+					accrueTo(state, now.getTime());
+				
+				long balance = state.balance;
+				long interestBalance = state.interestBalance;
+				long feeBalance = state.feeBalance;
+				boolean closed = state.closed;
+				List<LoanEvent> added = state.added;
+				
+				issued = state.issued;
+				executed = state.executed;
+				
+				added.add(new LoanEvent(now, LoanEventType.INTERESTACCRUAL, state.accrued, loanID));
+				
+				if(closed)
+					added.add(new LoanEvent(now, LoanEventType.CLOSE, theLoan.getValueMinor(), loanID));
+				
+				if(state.paid > 0){
+					EconResult result = plugin.econ.withdrawMinor(theLoan.getBorrower(), state.paid);
+					
+					if(!result.callSuccess)
+						return false;
+					
+					autoPaid = state.paid;
+				}
+				
+				conn.setAutoCommit(false);
+				
+				PreparedStatement stmt = Query.UPDATE_LOAN_BALANCES.prepare(conn);
+				
+				Money.bind(stmt, 1, balance);
+				Money.bind(stmt, 2, interestBalance);
+				Money.bind(stmt, 3, feeBalance);
+				stmt.setInt(4, loanID);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				stmt = Query.EXECUTE_LOAN_EVENT.prepare(conn);
+				
+				for(LoanEvent le : executed){
+					Money.bind(stmt, 1, le.amount);
+					stmt.setInt(2, le.loanEventID);
+					stmt.addBatch();
+				}
+				
+				stmt.executeBatch();
+				stmt.close();
+				
+				if(!issued.isEmpty()){
+					stmt = Query.INSERT_PAYMENT_STATEMENT_PAID.prepare(conn);
+					
+					for(ReplayStatement statement : issued){
+						stmt.setInt(1, loanID);
+						Money.bind(stmt, 2, statement.billAmount);
+						Money.bind(stmt, 3, statement.minimum);
+						stmt.setTimestamp(4, statement.statementDate);
+						stmt.setTimestamp(5, statement.dueDate);
+						Money.bind(stmt, 6, statement.paid);
+						stmt.addBatch();
+					}
+					
+					stmt.executeBatch();
+					stmt.close();
+				}
+				
+				if(existing != null && existing.paid != ps.getActualPaidMinor()){
+					stmt = Query.UPDATE_STATEMENT_PAID.prepare(conn);
+					
+					Money.bind(stmt, 1, existing.paid);
+					stmt.setInt(2, existing.statementID);
+					stmt.executeUpdate();
+					stmt.close();
+				}
+				
+				stmt = Query.INSERT_LOAN_EVENT.prepare(conn);
+				
+				for(LoanEvent le : added)
+					addLoanEventBatch(stmt, le, true);
+				
+				stmt.executeBatch();
+				stmt.close();
+				
+				stmt = Query.UPDATE_LOAN_SCHEDULE.prepare(conn);
+				
+				stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
+				stmt.setTimestamp(2, now);
+				stmt.setString(3, excludedFromSchedule());
+				stmt.setInt(4, loanID);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				if(closed){
+					stmt = Query.CLOSE_LOAN.prepare(conn);
+					
+					stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
+					stmt.setInt(2, loanID);
+					stmt.executeUpdate();
+					stmt.close();
+				}
+				
+				conn.commit();
+				committed = true;
+			}
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
+		}
+		
+		if(!committed){
+			if(autoPaid > 0)
+				plugin.econ.depositMinor(theLoan.getBorrower(), autoPaid);
+			
+			return false;
+		}
+		
+		if(autoPaid > 0)
+			plugin.econ.depositMinor(theLoan.getLender(), autoPaid);
+		
+		if(SerenityLoans.debugLevel >= 2)
+			SerenityLoans.logInfo(String.format("Caught up loan %d with %d events.", loanID, executed.size()));
+		
+		if(issued.isEmpty())
+			return true;
+		
+		try {
+			notifyStatement(theLoan);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Replays the given events of the loan in state in time order, without
+	 * reading or writing anything. Interest is accrued in closed form up to
+	 * each event. The events which were applied are added to 
+	 * state.executed with their amounts set, and any payments made to 
+	 * state.added. Stops early if a payment pays off the loan. 
+	 * Package-private so tests can drive it.
+	 */
+	static void replay(Replay state, List<LoanEvent> due) {
+		List<LoanEvent> events = new ArrayList<LoanEvent>(due);
+		
+		Collections.sort(events, new Comparator<LoanEvent>(){
+			public int compare(LoanEvent a, LoanEvent b){
+				int byTime = a.time.compareTo(b.time);
+				return byTime != 0? byTime : a.action.compareTo(b.action);
+			}
+		});
+		
+		for(LoanEvent le : events){
+			accrueTo(state, le.time.getTime());
 			
-			switch(le.action) {
-				case COMPOUND: 			
-					compoundInterest(le);
+			switch(le.action){
+				case COMPOUND:
+					le.amount = state.interestBalance;
+					state.balance += state.interestBalance;
+					state.interestBalance = 0;
 					break;
-										
-				case PAYMENTDUE:		
-					attemptAutoPay(le);
-					creditScoreUpdate(le);
+					
+				case SERVICEFEE:
+					state.feeBalance += le.amount;
+					state.fees += le.amount;
 					break;
 					
 				case LATEFEE:
-				case SERVICEFEE:		
-					assessFee(le);		
+					if(state.latest != null && state.latest.paid < Money.fromDouble(state.loan.getMinPayment())){
+						state.feeBalance += le.amount;
+						state.fees += le.amount;
+					}
+					else
+						le.amount = 0;
 					break;
 					
-				case STATEMENTOUT:		
-					sendOutStatement(le);
+				case STATEMENTOUT:
+					ReplayStatement statement = new ReplayStatement();
+					long previousRemaining = state.latest == null? 0 : state.latest.billAmount - state.latest.paid;
+					
+					statement.billAmount = Math.min(state.balance + state.interestBalance + state.feeBalance, le.amount) + state.feeBalance + previousRemaining;
+					statement.minimum = minimumPayment(state.loan, le.amount, state.percentageRule);
+					statement.statementDate = le.time;
+					statement.dueDate = new Timestamp(le.time.getTime() + state.loan.getPaymentTime());
+					
+					le.amount = statement.billAmount;
+					state.issued.add(statement);
+					state.latest = statement;
 					break;
-							
-				default:
+					
+				case PAYMENTDUE:
+					long payment = 0;
+					
+					if(state.autoPay && state.latest != null){
+						long remaining = state.latest.billAmount - state.latest.paid;
+						
+						if(state.cash >= remaining && !state.minimumOnly)
+							payment = remaining;
+						else if(state.cash >= state.latest.minimum)
+							payment = Math.min(remaining, state.latest.minimum);
+					}
+					
+					// Fees first, then interest, then principal, as in applyPayment()
+					long runningTotal = Math.max(0, payment);
+					long paid = Math.min(runningTotal, state.feeBalance);
+					state.feeBalance -= paid;
+					runningTotal -= paid;
+					
+					paid = Math.min(runningTotal, state.interestBalance);
+					state.interestBalance -= paid;
+					runningTotal -= paid;
+					
+					paid = Math.min(runningTotal, state.balance);
+					state.balance -= paid;
+					runningTotal -= paid;
+					
+					payment = Math.max(0, payment) - runningTotal;
+					
+					if(payment > 0){
+						state.latest.paid += payment;
+						state.cash -= payment;
+						state.paid += payment;
+						state.added.add(new LoanEvent(le.time, LoanEventType.PAYMENTMADE, payment, le.loan));
+						state.closed = state.balance == 0;
+					}
+					
+					le.amount = payment;
 					break;
-			}	
+					
+				default:
+					continue;
+			}
+			
+			state.executed.add(le);
+			
+			if(state.closed)
+				break;
+		}
+	}
+	
+	/*
+	 * Accrues interest on the loan in state from its cursor up to the given
+	 * time in closed form, and moves the cursor there. Package-private so
+	 * tests can drive it.
+	 */
+	static void accrueTo(Replay state, long to) {
+		long elapsed = Math.max(0, to - state.cursor);
+		
+		if(state.continuous){
+			long grown = Money.times(state.balance, Math.exp(state.rate * elapsed / state.reportingTime));
+			state.accrued += grown - state.balance;
+			state.balance = grown;
+		} else {
+			long interest = Money.times(state.balance, state.rate * elapsed / state.reportingTime);
+			state.accrued += interest;
+			state.interestBalance += interest;
+		}
+		
+		state.cursor = Math.max(state.cursor, to);
+	}
+	
+	/**
+	 * Runs the given number of loans on the given terms from start to finish
+	 * in memory, using the same event logic as the update of real loans. 
+	 * Time is taken from the event schedule rather than the clock, so the 
+	 * whole term of every loan is worked out at once and nothing is read or
+	 * written. Each borrower pays statements in full with probability 
+	 * payInFull, pays only the minimum with probability payMinimum, and 
+	 * otherwise never pays. A loan which is still owed money after its last
+	 * event is counted as defaulted.
+	 * 
+	 * @param terms Terms of every simulated loan. Lender and borrower are
+	 * ignored.
+	 * @param loans Number of loans to simulate.
+	 * @param payInFull Share of borrowers paying their statements in full.
+	 * @param payMinimum Share of borrowers paying only the minimum.
+	 * @param seed Seed for choosing the behaviour of each borrower.
+	 * @return The totals over all of the simulated loans.
+	 */
+	public SimulationReport simulate(ImmutableOffer terms, int loans, double payInFull, double payMinimum, long seed) {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "simulate(ImmutableOffer, int, double, double, long)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		long started = System.nanoTime();
+		Random random = new Random(seed);
+		Timestamp start = new Timestamp(0);
+		
+		Loan template = new Loan(0, Money.fromDouble(terms.getValue()), 0, 0, terms, start, start, 0);
+		List<LoanEvent> schedule = buildLoanEvents(template);
+		long finish = template.getTerm();
+		
+		for(LoanEvent le : schedule)
+			finish = Math.max(finish, le.time.getTime());
+		
+		int closed = 0;
+		int defaulted = 0;
+		long events = 0;
+		long principal = 0;
+		long interest = 0;
+		long fees = 0;
+		long paid = 0;
+		long outstanding = 0;
+		long reportingTime = Conf.getIntReportingTime();
+		boolean percentageRule = usePercentageRule();
+		
+		for(int i = 0; i < loans; i++){
+			Replay state = new Replay(template, 0, reportingTime, percentageRule);
+			double behaviour = random.nextDouble();
+			
+			state.autoPay = behaviour < payInFull + payMinimum;
+			state.minimumOnly = behaviour >= payInFull;
+			state.cash = Long.MAX_VALUE;
+			
+			// Events carry their amounts out of the replay, so each loan gets its own copies
+			List<LoanEvent> due = new ArrayList<LoanEvent>(schedule.size());
+			
+			for(LoanEvent le : schedule)
+				due.add(new LoanEvent(le.time, le.action, le.amount, le.loan));
+			
+			replay(state, due);
+			
+			if(!state.closed)
+				accrueTo(state, finish);
+			
+			long owed = state.balance + state.interestBalance + state.feeBalance;
+			
+			if(state.closed)
+				closed++;
+			else if(owed > 0)
+				defaulted++;
+			
+			events += state.executed.size() + state.added.size();
+			principal += template.getBalanceMinor();
+			interest += state.accrued;
+			fees += state.fees;
+			paid += state.paid;
+			outstanding += owed;
+		}
+		
+		long elapsed = (System.nanoTime() - started) / 1000000L;
+		
+		return new SimulationReport(loans, closed, defaulted, events, finish, principal, interest, fees, paid, outstanding, elapsed);
+	}
+	
+	/**
+	 * Runs the periodic loan update. When the event wheel has been started
+	 * with startScheduler(), loans are updated as their events come due and
+	 * this only runs the bulk interest accrual, if enabled. Otherwise the
+	 * open loans whose NextEventTime has passed are selected through an
+	 * index and updated. Loans with nothing due are not touched.
+	 * 
+	 * Due loans are split into shards by LoanID and the shards are updated
+	 * in parallel on the plugin's executor, one task per shard. A loan always
+	 * falls in the same shard and each shard works through its loans in 
+	 * order, so the events of one loan are never handled concurrently. Every
+	 * shard waits on the plugin's BackgroundPacer before each loan. If the
+	 * previous sweep has not finished, this returns without starting another.
+	 */
+	public void updateAll() {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "updateAll()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		if(!sweeping.compareAndSet(false, true)){
+			if(SerenityLoans.debugLevel >= 2)
+				SerenityLoans.logWarn("Previous loan update still running. Skipping this update.");
+			return;
+		}
+		
+		try {
+			if(wheel != null){
+				if(Conf.useBulkAccrual() && !Conf.useLazyBalances())
+					bulkAccrueInterest(new Timestamp(new Date().getTime()));
+				return;
+			}
+			
+			sweep();
+		} finally {
+			sweeping.set(false);
+		}
+	}
+	
+	/**
+	 * Returns how long the last polling sweep took.
+	 * 
+	 * @return Time in milliseconds, or -1 if no sweep has finished.
+	 */
+	public long getLastSweepMillis() {
+		return lastSweepMillis;
+	}
+	
+	/**
+	 * Returns the number of loans checked by the last polling sweep.
+	 */
+	public int getLastSweepLoans() {
+		return lastSweepLoans;
+	}
+	
+	private void sweep() {
+		long started = System.currentTimeMillis();
+		
+		ArrayList<Integer> allLoans = new ArrayList<Integer>();
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_DUE_LOAN_IDS.prepare(conn);
+			
+			stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
+			
+			ResultSet rs = null;
+			
+			// Reads spanning many rows take no row locks.
+			rs = stmt.executeQuery();
+			
+			while(rs.next()){
+				allLoans.add(rs.getInt(1));
+			}
+			
+			stmt.close();
+			
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		Set<Integer> accrueSeparately = null;
+		
+		if(Conf.useBulkAccrual() && !Conf.useLazyBalances())
+			accrueSeparately = bulkAccrueInterest(new Timestamp(new Date().getTime()));
+		
+		final Set<Integer> accrue = accrueSeparately;
+		
+		int shardCount = Math.max(1, Math.min(updateThreads(), allLoans.size()));
+		List<List<Integer>> shards = new ArrayList<List<Integer>>(shardCount);
+		
+		for(int i = 0; i < shardCount; i++)
+			shards.add(new ArrayList<Integer>(allLoans.size() / shardCount + 1));
+		
+		// Loans keep their NextEventTime order within each shard
+		for(Integer loanID : allLoans)
+			shards.get((loanID & Integer.MAX_VALUE) % shardCount).add(loanID);
+		
+		List<Future<?>> running = new ArrayList<Future<?>>(shardCount);
+		
+		try {
+			for(final List<Integer> shard : shards){
+				running.add(plugin.threads.submit(new Runnable(){
+					public void run(){
+						for(Integer loanID : shard){
+							try {
+								plugin.getPacer().acquire();
+							} catch (InterruptedException e) {
+								return;
+							}
+							
+							update(loanID, accrue == null || accrue.contains(loanID), new Timestamp(new Date().getTime()));
+						}
+					}
+				}));
+			}
+			
+			for(Future<?> shard : running)
+				shard.get();
+			
+		} catch (InterruptedException e) {
+			for(Future<?> shard : running)
+				shard.cancel(true);
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getCause().getMessage(), plugin.getDescription().getName()));
+			e.getCause().printStackTrace();
+		} catch (RejectedExecutionException e) {
+			// The plugin is shutting down
+			return;
+		}
+		
+		lastSweepLoans = allLoans.size();
+		lastSweepMillis = System.currentTimeMillis() - started;
+		
+		if(SerenityLoans.debugLevel >= 2)
+			SerenityLoans.logInfo(String.format("Updated %d loans in %d shards in %d ms.", lastSweepLoans, shardCount, lastSweepMillis));
+	}
+	
+	/*
+	 * Number of shards for a polling sweep. Each shard holds at most one
+	 * connection at a time, so one connection is left free for commands.
+	 */
+	private int updateThreads() {
+		int threads = Conf.getUpdateThreads();
+		
+		if(threads > 0)
+			return threads;
+		
+		int connections = plugin.getConnectionPool() == null? 1 : plugin.getConnectionPool().getMaxConnections() - 1;
+		
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), connections));
+	}
+
+	/**
+	 * Loads the time of the next pending event of every open loan into the
+	 * event wheel and starts advancing it once a second. From then on each
+	 * loan is updated when its next event comes due, and updateAll() no
+	 * longer checks every loan.
+	 * 
+	 * @return true if the wheel was started, false if the events could not be read.
+	 */
+	public boolean startScheduler() {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "startScheduler()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		TimingWheel<Integer> newWheel = new TimingWheel<Integer>(wheelTickMillis, 6, 4, System.currentTimeMillis());
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_NEXT_EVENT_TIMES.prepare(conn);
+			
+			stmt.setString(1, excludedFromSchedule());
+			
+			// Reads spanning many rows take no row locks.
+			ResultSet rs = stmt.executeQuery();
+			
+			while(rs.next()){
+				int loanID = rs.getInt("LoanID");
+				long time = rs.getTimestamp("NextEvent").getTime();
+				
+				nextEventTimes.put(loanID, time);
+				newWheel.schedule(time, loanID);
+			}
+			
+			stmt.close();
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+			nextEventTimes.clear();
+			return false;
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		wheel = newWheel;
+		
+		long period = wheelTickMillis / 50;
+		plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, new BukkitRunnable(){public void run(){tick();}}, period, period);
+		
+		if(SerenityLoans.debugLevel >= 2)
+			SerenityLoans.logInfo(String.format("Scheduled events for %d open loans.", newWheel.size()));
+		
+		return true;
+	}
+	
+	/*
+	 * Puts the loan in the event wheel at the given time, replacing any
+	 * earlier entry. Does nothing if the wheel is not running.
+	 */
+	private void scheduleLoan(int loanID, long time) {
+		TimingWheel<Integer> w = wheel;
+		
+		if(w == null)
+			return;
+		
+		nextEventTimes.put(loanID, time);
+		w.schedule(time, loanID);
+	}
+	
+	/*
+	 * Looks up the first pending event of the loan after the given time
+	 * and schedules the loan for it. Events at or before the time have just
+	 * been handled by update(); some, such as PaymentDue, stay pending and
+	 * must not fire again.
+	 */
+	private void scheduleNextEvent(int loanID, Timestamp after) {
+		Timestamp next = null;
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_NEXT_LOAN_EVENT_TIME.prepare(conn);
+			
+			stmt.setInt(1, loanID);
+			stmt.setTimestamp(2, after);
+			stmt.setString(3, excludedFromSchedule());
+			
+			ResultSet rs = null;
+			
+			synchronized(loanLocks.get(loanID)){
+				rs = stmt.executeQuery();
+			}
+			
+			if(rs.next())
+				next = rs.getTimestamp(1);
+			
+			stmt.close();
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		if(next == null)
+			nextEventTimes.remove(loanID);
+		else
+			scheduleLoan(loanID, next.getTime());
+	}
+	
+	/*
+	 * Event type which does not need to wake a loan up. With lazy balances
+	 * compounding is worked out whenever the loan is next read or updated.
+	 */
+	private String excludedFromSchedule() {
+		return Conf.useLazyBalances()? LoanEventType.COMPOUND.toString() : "";
+	}
+	
+	/*
+	 * Advances the event wheel and queues loans whose events are due. The
+	 * queue is worked off by one task at a time on the plugin's executor,
+	 * so a burst of due loans does not start a thread per loan.
+	 */
+	private void tick() {
+		TimingWheel<Integer> w = wheel;
+		
+		if(w == null)
+			return;
+		
+		List<Integer> due = w.advance(System.currentTimeMillis());
+		
+		if(due.isEmpty())
+			return;
+		
+		dueLoans.addAll(due);
+		
+		if(draining.compareAndSet(false, true))
+			plugin.threads.execute(new Runnable(){public void run(){drainDueLoans();}});
+	}
+	
+	private void drainDueLoans() {
+		do {
+			try {
+				Integer loanID = null;
+				
+				while((loanID = dueLoans.poll()) != null){
+					Long scheduled = nextEventTimes.get(loanID);
+					
+					// Left behind by a reschedule, or the loan has no more events
+					if(scheduled == null || scheduled > System.currentTimeMillis())
+						continue;
+					
+					try {
+						plugin.getPacer().acquire();
+					} catch (InterruptedException e) {
+						dueLoans.add(loanID);
+						return;
+					}
+					
+					Timestamp now = new Timestamp(new Date().getTime());
+					
+					update(loanID, true, now);
+					scheduleNextEvent(loanID, now);
+				}
+			} finally {
+				draining.set(false);
+			}
+		} while(!dueLoans.isEmpty() && draining.compareAndSet(false, true));
+	}
+
+	/*
+	 * Accrues interest on every open loan up to the given time, rounded
+	 * down to a whole second. One INSERT...SELECT over loans_all computes the
+	 * prorated interest of each loan and records it as a pending
+	 * AccrueInterest event, two UPDATEs add the pending amounts to the
+	 * balances, and a last UPDATE marks the events executed. All four
+	 * statements run in one transaction.
+	 * 
+	 * Returns the IDs of open loans which were not accrued and must still go
+	 * through accrueInterest(), or null if the bulk pass failed. Loans are
+	 * only left out when the database has no exponential function for
+	 * continuous compounding.
+	 */
+	private Set<Integer> bulkAccrueInterest(Timestamp now) {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "bulkAccrueInterest(Timestamp)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		StorageBackend storage = plugin.getStorage();
+		boolean hasExp = storage.exp("1") != null;
+		
+		// MySQL keeps whole seconds, so the next accrual starts exactly where this one ends
+		Timestamp at = new Timestamp(now.getTime() / 1000 * 1000);
+		
+		Set<Integer> skipped = new HashSet<Integer>();
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			conn.setAutoCommit(false);
+			
+			PreparedStatement stmt = conn.prepareStatement(Query.insertBulkAccrual(storage));
+			
+			stmt.setTimestamp(1, at);
+			stmt.setTimestamp(2, at);
+			stmt.setDouble(3, (double) Conf.getIntReportingTime());
+			
+			// Statements spanning every open loan take no row locks.
+			// The events are inserted pending, so the balance updates find exactly these rows.
+			int accrued = stmt.executeUpdate();
+			stmt.close();
+			
+			if(hasExp){
+				stmt = Query.APPLY_ACCRUAL_TO_BALANCE.prepare(conn);
+				stmt.executeUpdate();
+				stmt.close();
+			}
+			
+			stmt = Query.APPLY_ACCRUAL_TO_INTEREST_BALANCE.prepare(conn);
+			stmt.executeUpdate();
+			stmt.close();
+			
+			stmt = Query.EXECUTE_BULK_ACCRUAL.prepare(conn);
+			stmt.executeUpdate();
+			stmt.close();
+			
+			conn.commit();
+			
+			if(!hasExp){
+				stmt = Query.SELECT_OPEN_CONTINUOUS_LOAN_IDS.prepare(conn);
+				ResultSet rs = stmt.executeQuery();
+				
+				while(rs.next())
+					skipped.add(rs.getInt("LoanID"));
+				
+				stmt.close();
+			}
+			
+			if(SerenityLoans.debugLevel >= 2)
+				SerenityLoans.logInfo(String.format("Accrued interest on %d loans in bulk.", accrued));
+			
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+			return null;
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
+		}
+		
+		return skipped;
+	}
+
+	/*
+	 * Accrues interest on the loan from its last executed event up to now
+	 * in one step, using computeAccrual(). The new balances, the amount 
+	 * compounded by each due CompoundInterest event and a single
+	 * AccrueInterest event are written in one transaction, however many 
+	 * events are being caught up. This is the snapshot from which later
+	 * reads of the loan are worked out.
+	 * 
+	 * The balances, the due events and the last executed event time are
+	 * all read under the loan's stripe, on the connection that writes the
+	 * result, so two threads accruing the same loan apply their interest
+	 * one after the other. Events another thread has already executed are
+	 * no longer pending and are not compounded again.
+	 * 
+	 * Returns true if the due CompoundInterest events were applied and
+	 * marked executed.
+	 */
+	private boolean accrueInterest(int loanID, Timestamp now) {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "accrueInterest(int, Timestamp)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			
+			synchronized(loanLocks.get(loanID)){
+				List<Loan> found = readStoredLoans(conn, Arrays.asList(loanID), false);
+				
+				if(found.isEmpty())
+					return false;
+				
+				Loan theLoan = found.get(0);
+				List<LoanEvent> due = readDueEvents(conn, loanID, now);
+				
+				Accrual accrual = computeAccrual(theLoan, lastExecutedEventTime(conn, theLoan), due, now.getTime(), Conf.getIntReportingTime());
+				
+				long interest = accrual.balance + accrual.interestBalance - theLoan.getBalanceMinor() - theLoan.getInterestBalanceMinor();
+				
+				conn.setAutoCommit(false);
+				
+				PreparedStatement stmt = Query.UPDATE_LOAN_ACCRUAL.prepare(conn);
+				
+				Money.bind(stmt, 1, accrual.balance);
+				Money.bind(stmt, 2, accrual.interestBalance);
+				stmt.setInt(3, loanID);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				if(!accrual.compounded.isEmpty()){
+					stmt = Query.EXECUTE_LOAN_EVENT.prepare(conn);
+					
+					for(LoanEvent le : accrual.compounded){
+						Money.bind(stmt, 1, le.amount);
+						stmt.setInt(2, le.loanEventID);
+						stmt.addBatch();
+					}
+					
+					stmt.executeBatch();
+					stmt.close();
+				}
+				
+				stmt = Query.INSERT_LOAN_EVENT.prepare(conn);
+				addLoanEventBatch(stmt, new LoanEvent(now, LoanEventType.INTERESTACCRUAL, interest, loanID), true);
+				stmt.executeBatch();
+				stmt.close();
+				
+				conn.commit();
+			}
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+			return false;
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Works out the balances of the loan at the given time from its stored
+	 * balances at the time of its last executed event, in closed form over
+	 * each interval between compounding points. Continuously compounded
+	 * loans grow by exp(rate * time), and all others earn simple interest on
+	 * the balance, which is moved into the balance at each CompoundInterest
+	 * event among the due events. The amount of each of those events is set
+	 * to the interest it compounded. Nothing is written. Rates are per
+	 * reportingTime milliseconds. Package-private so tests can drive it.
+	 */
+	static Accrual computeAccrual(Loan theLoan, long from, List<LoanEvent> due, long to, long reportingTime) {
+		double rate = theLoan.getInterestRate();
+		
+		Accrual result = new Accrual();
+		result.balance = theLoan.getBalanceMinor();
+		result.interestBalance = theLoan.getInterestBalanceMinor();
+		
+		if(theLoan.getCompoundingPeriod() == 0){
+			result.balance = Money.times(result.balance, Math.exp(rate * Math.max(0, to - from) / (double) reportingTime));
+			return result;
 		}
 		
-		// Update Last Updated Time
-			String updateTime = String.format("UPDATE Loans SET LastUpdate=NOW() WHERE LoanID=%d;", loanID);
+		long cursor = from;
+		
+		for(LoanEvent le : due){
+			if(le.action != LoanEventType.COMPOUND || le.time.getTime() > to)
+				continue;
 			
-			synchronized(loanTableLock){
-				stmt.executeUpdate(updateTime);
-			}
+			long at = Math.max(cursor, le.time.getTime());
 			
+			result.interestBalance += Money.times(result.balance, rate * (at - cursor) / (double) reportingTime);
+			le.amount = result.interestBalance;
+			result.balance += result.interestBalance;
+			result.interestBalance = 0;
+			cursor = at;
+			
+			result.compounded.add(le);
+		}
+		
+		result.interestBalance += Money.times(result.balance, rate * Math.max(0, to - cursor) / (double) reportingTime);
+		
+		return result;
+	}
+	
+	/*
+	 * Returns the time up to which the stored balances of the loan are
+	 * accurate, which is the time of its last executed event. If all of
+	 * its executed events have been compacted, this is the time of its
+	 * snapshot.
+	 */
+	private long lastExecutedEventTime(Connection conn, Loan theLoan) throws SQLException {
+		long lastTime = theLoan.getStartTime().getTime();
+		PreparedStatement stmt = Query.SELECT_LAST_EXECUTED_EVENT_TIME.prepare(conn);
+		
+		stmt.setInt(1, theLoan.getLoanID());
+		
+		ResultSet rs = stmt.executeQuery();
+		
+		if(rs.next()){
+			lastTime = rs.getTimestamp("EventTime").getTime();
 			stmt.close();
+			return lastTime;
+		}
 		
-		} catch (SQLException e){
-			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
-			e.printStackTrace();
-		} catch (InterruptedException | ExecutionException | TimeoutException e) {
-			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
-			e.printStackTrace();
-		} 
+		stmt.close();
+		
+		stmt = Query.SELECT_LOAN_SNAPSHOT_TIME.prepare(conn);
+		stmt.setInt(1, theLoan.getLoanID());
+		
+		rs = stmt.executeQuery();
+		
+		if(rs.next())
+			lastTime = rs.getTimestamp("SnapshotTime").getTime();
+		
+		stmt.close();
+		
+		return lastTime;
 	}
-
-	public synchronized void updateAll() {
+	
+	/**
+	 * Compacts the executed history of every loan. For each loan with
+	 * executed events older than options.compaction.keep-events, its stored
+	 * balances are written to LoanSnapshots as of its last executed event,
+	 * and those old events are moved from LoanEvents to LoanEventsArchive.
+	 * Each loan is done in one transaction under its row lock, so LoanEvents
+	 * is left holding the schedule and recent history only. Every loan waits
+	 * on the plugin's BackgroundPacer. If the previous run has not finished,
+	 * this returns without starting another.
+	 */
+	public void compactEvents() {
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "updateAll()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "compactEvents()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = "SELECT DISTINCT LoanID FROM Loans WHERE Open='true' ORDER BY LastUpdate ASC;";
-		LinkedList<Integer> allLoans = new LinkedList<Integer>();
+		if(Conf.getCompactionAge() <= 0 || !compacting.compareAndSet(false, true))
+			return;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
-			
-			ResultSet rs = null;
+			long started = System.currentTimeMillis();
+			Timestamp cutoff = new Timestamp(started - Conf.getCompactionAge());
+			List<Integer> loanIDs = new ArrayList<Integer>();
+			Connection conn = null;
 			
-			synchronized(loanTableLock){
-				rs = stmt.executeQuery(query);
+			try {
+				conn = plugin.getConnection();
+				PreparedStatement stmt = Query.SELECT_COMPACTABLE_LOAN_IDS.prepare(conn);
+				
+				stmt.setTimestamp(1, cutoff);
+				
+				// Reads spanning many rows take no row locks.
+				ResultSet rs = stmt.executeQuery();
+				
+				while(rs.next())
+					loanIDs.add(rs.getInt("LoanID"));
+				
+				stmt.close();
+			} catch (SQLException e) {
+				SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+				e.printStackTrace();
+				return;
+			} finally {
+				plugin.releaseConnection(conn);
 			}
 			
-			while(rs.next()){
-				allLoans.add(rs.getInt(1));
+			int archived = 0;
+			
+			for(Integer loanID : loanIDs){
+				try {
+					plugin.getPacer().acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				
+				archived += compactLoan(loanID, cutoff);
 			}
 			
-		} catch (SQLException e) {
-			SerenityLoans.log.severe(e.getMessage());
-			e.printStackTrace();
+			if(SerenityLoans.debugLevel >= 2 && !loanIDs.isEmpty())
+				SerenityLoans.logInfo(String.format("Compacted %d loan events of %d loans in %d ms.", archived, loanIDs.size(), System.currentTimeMillis() - started));
+		} finally {
+			compacting.set(false);
 		}
+	}
+	
+	/*
+	 * Snapshots one loan and archives its executed events before the
+	 * cutoff. Returns the number of events archived.
+	 */
+	private int compactLoan(int loanID, Timestamp cutoff) {
+		Connection conn = null;
 		
-		for(Integer loanID : allLoans){
-			
-			update(loanID);
+		try {
+			conn = plugin.getConnection();
 			
-			try {
-				Thread.sleep((int)Math.floor(Math.random() * 200));
-			} catch (InterruptedException e) {
-				return;
+			synchronized(loanLocks.get(loanID)){
+				conn.setAutoCommit(false);
+				
+				PreparedStatement stmt = Query.SELECT_LAST_EXECUTED_EVENT_TIME.prepare(conn);
+				stmt.setInt(1, loanID);
+				
+				ResultSet rs = stmt.executeQuery();
+				
+				if(!rs.next()){
+					stmt.close();
+					return 0;
+				}
+				
+				Timestamp snapshotTime = rs.getTimestamp("EventTime");
+				stmt.close();
+				
+				stmt = Query.SELECT_LOAN_BALANCES.prepare(conn);
+				stmt.setInt(1, loanID);
+				
+				rs = stmt.executeQuery();
+				
+				if(!rs.next()){
+					stmt.close();
+					return 0;
+				}
+				
+				long balance = Money.read(rs, "Balance");
+				long interestBalance = Money.read(rs, "InterestBalance");
+				long feeBalance = Money.read(rs, "FeeBalance");
+				stmt.close();
+				
+				stmt = Query.DELETE_LOAN_SNAPSHOT.prepare(conn);
+				stmt.setInt(1, loanID);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				stmt = Query.INSERT_LOAN_SNAPSHOT.prepare(conn);
+				stmt.setInt(1, loanID);
+				stmt.setTimestamp(2, snapshotTime);
+				Money.bind(stmt, 3, balance);
+				Money.bind(stmt, 4, interestBalance);
+				Money.bind(stmt, 5, feeBalance);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				stmt = Query.ARCHIVE_LOAN_EVENTS.prepare(conn);
+				stmt.setInt(1, loanID);
+				stmt.setTimestamp(2, cutoff);
+				int archived = stmt.executeUpdate();
+				stmt.close();
+				
+				stmt = Query.DELETE_ARCHIVED_LOAN_EVENTS.prepare(conn);
+				stmt.setInt(1, loanID);
+				stmt.setTimestamp(2, cutoff);
+				stmt.executeUpdate();
+				stmt.close();
+				
+				conn.commit();
+				
+				return archived;
 			}
-			
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
 		}
 		
+		return 0;
 	}
-
-	private void accrueInterest(int loanID) {
+	
+	/**
+	 * Moves loans which closed more than 
+	 * options.compaction.archive-closed-after ago out of the active tables.
+	 * Each loan's events, statements and row go to LoanEventsArchive, 
+	 * PaymentStatementsArchive and LoansArchive, and its snapshot is 
+	 * dropped. Loans are moved in batches, one transaction per batch, and 
+	 * every batch waits on the plugin's BackgroundPacer. Closed loans are 
+	 * never written again, so no row locks are taken. Archived loans can
+	 * still be read with getLoan(int, boolean) and 
+	 * getLoan(FinancialEntity, FinancialEntity, boolean).
+	 */
+	public void archiveClosedLoans() {
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "accrueInterest(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "archiveClosedLoans()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		Loan theLoan = getLoan(loanID);
+		if(Conf.getClosedLoanRetention() <= 0 || !archiving.compareAndSet(false, true))
+			return;
 		
-		// Calculate time since last event
+		long started = System.currentTimeMillis();
+		Timestamp cutoff = new Timestamp(started - Conf.getClosedLoanRetention());
+		int total = 0;
 		
-		String eventQuery = String.format("SELECT EventTime FROM LoanEvents WHERE LoanID=%d AND Executed='true' ORDER BY EventTime DESC;", theLoan.getLoanID());
-		Timestamp lastTime = theLoan.getStartTime();
+		Query[] steps = {Query.ARCHIVE_ALL_LOAN_EVENTS, Query.DELETE_ALL_LOAN_EVENTS, Query.ARCHIVE_PAYMENT_STATEMENTS, Query.DELETE_PAYMENT_STATEMENTS, Query.DELETE_LOAN_SNAPSHOT, Query.ARCHIVE_LOAN, Query.DELETE_ARCHIVED_LOAN};
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
-			
-			ResultSet eventsList = null;
-			synchronized(loanTableLock){
-				eventsList = stmt.executeQuery(eventQuery);
-			}
-			
-			if(eventsList.next())
-				lastTime = eventsList.getTimestamp("EventTime");	
-			
-			double prorateFactor = ((double)((new Date().getTime()) - lastTime.getTime()))/((double) Conf.getIntReportingTime());
-			
+			conn = plugin.getConnection();
 			
-			double interest;
-			
-			// Determine continuous or periodic
-			
-			
-			if(theLoan.getCompoundingPeriod() == 0){
-				double balance = theLoan.getBalance() * Math.exp(theLoan.getInterestRate() * prorateFactor);
-				interest = balance - theLoan.getBalance();
+			while(true){
+				try {
+					plugin.getPacer().acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
 				
-				String balanceUpdate = String.format("UPDATE Loan SET Balance=%f WHERE LoanID=%d;", balance, theLoan.getLoanID());
+				List<Integer> batch = new ArrayList<Integer>(archiveBatchSize);
+				PreparedStatement stmt = Query.SELECT_ARCHIVABLE_LOAN_IDS.prepare(conn);
 				
-				// Update balance directly
-				synchronized(loanTableLock){
-					stmt.executeUpdate(balanceUpdate);
-				}
-			} else {
-				interest = theLoan.getBalance() * theLoan.getInterestRate() * prorateFactor;
-				double newInterestBalance = interest + theLoan.getInterestBalance();
+				stmt.setTimestamp(1, cutoff);
+				stmt.setInt(2, archiveBatchSize);
+				
+				ResultSet rs = stmt.executeQuery();
 				
-				String interestUpdate = String.format("UPDATE Loan SET InterestBalance=%f WHERE LoanID=%d;", newInterestBalance, theLoan.getLoanID());
+				while(rs.next())
+					batch.add(rs.getInt("LoanID"));
 				
-				// Add to interest balance
-				synchronized(loanTableLock){
-					stmt.executeUpdate(interestUpdate);
+				stmt.close();
+				
+				if(batch.isEmpty())
+					break;
+				
+				conn.setAutoCommit(false);
+				
+				// Rows referring to a loan are moved before the loan itself
+				for(Query step : steps){
+					stmt = step.prepare(conn);
+					
+					for(Integer loanID : batch){
+						stmt.setInt(1, loanID);
+						stmt.addBatch();
+					}
+					
+					stmt.executeBatch();
+					stmt.close();
 				}
+				
+				conn.commit();
+				conn.setAutoCommit(true);
+				
+				total += batch.size();
+				
+				if(batch.size() < archiveBatchSize)
+					break;
 			}
-			
-			// Add loanEvent
-			
-			addLoanEvent(new LoanEvent(new Timestamp(new Date().getTime()), LoanEventType.INTERESTACCRUAL, interest, theLoan.getLoanID()), true);
-			
-			stmt.close();
-		
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			// Any uncommitted rows are rolled back when the connection returns to the pool
+			plugin.releaseConnection(conn);
+			archiving.set(false);
+		}
+		
+		if(SerenityLoans.debugLevel >= 2 && total > 0)
+			SerenityLoans.logInfo(String.format("Archived %d closed loans in %d ms.", total, System.currentTimeMillis() - started));
+	}
+	
+	/*
+	 * Returns a copy of the loan with interest, any due compounding and any
+	 * due fees worked out up to the given time, starting from the time its
+	 * stored balances are accurate to. The loan as stored is unchanged.
+	 */
+	private Loan project(Loan theLoan, long accruedTo, List<LoanEvent> due, Long latestPaid, Timestamp now) {
+		Accrual accrual = computeAccrual(theLoan, accruedTo, due, now.getTime(), Conf.getIntReportingTime());
+		
+		return theLoan.withBalances(accrual.balance, accrual.interestBalance, dueFees(theLoan, due, latestPaid));
+	}
+	
+	/*
+	 * Returns the fee balance of the loan once the due fee events have been
+	 * assessed, as assessFee() would. A service fee is always charged. A
+	 * late fee is dismissed if the latest statement has had at least the
+	 * minimum payment, and is not charged before the first statement.
+	 */
+	private long dueFees(Loan theLoan, List<LoanEvent> due, Long latestPaid) {
+		long fees = theLoan.getFeesOutstandingMinor();
+		
+		for(LoanEvent le : due){
+			if(le.action == LoanEventType.SERVICEFEE)
+				fees += le.amount;
+			else if(le.action == LoanEventType.LATEFEE && latestPaid != null && latestPaid < Money.fromDouble(theLoan.getMinPayment()))
+				fees += le.amount;
 		}
 		
+		return fees;
 	}
 	
 	private void addLoanEvent(LoanEvent loanEvent, Boolean executed) {
@@ -756,14 +2506,19 @@ public class LoanManager {
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "addLoanEvent(LoanEvent, boolean)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
 	
-		String insertSQL = String.format("INSERT INTO LoanEvents(LoanID, EventTime, EventType, Amount, Executed) VALUES (%d, ?, '%s', %f, '%s');", loanEvent.loan, loanEvent.action.toString(), loanEvent.amount, executed.toString());
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(insertSQL);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.INSERT_LOAN_EVENT.prepare(conn);
 			
-			stmt.setTimestamp(1, loanEvent.time);
+			stmt.setInt(1, loanEvent.loan);
+			stmt.setTimestamp(2, loanEvent.time);
+			stmt.setString(3, loanEvent.action.toString());
+			Money.bind(stmt, 4, loanEvent.amount);
+			stmt.setString(5, executed.toString());
 			
-			synchronized(loanEventTableLock){
+			synchronized(loanLocks.get(loanEvent.loan)){
 				stmt.executeUpdate();
 			}
 			
@@ -771,10 +2526,21 @@ public class LoanManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 	}
 
+	private void addLoanEventBatch(PreparedStatement stmt, LoanEvent loanEvent, Boolean executed) throws SQLException {
+		stmt.setInt(1, loanEvent.loan);
+		stmt.setTimestamp(2, loanEvent.time);
+		stmt.setString(3, loanEvent.action.toString());
+		Money.bind(stmt, 4, loanEvent.amount);
+		stmt.setString(5, executed.toString());
+		stmt.addBatch();
+	}
+
 	/*
 	 * This method handles assessing of fees. It determines the fee type from
 	 * the input argument and will dismiss a late fee if the minimum payment
@@ -784,49 +2550,48 @@ public class LoanManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "assessFee(LoanEvent)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		try {
-			Statement stmt = plugin.conn.createStatement();
-		
-			Loan theLoan = getLoan(le.loan);
+		Loan theLoan = getStoredLoan(le.loan);
+		PaymentStatement ps = le.action == LoanEventType.SERVICEFEE? null : getPaymentStatement(le.loan);
+		Connection conn = null;
 		
-			String updateLE = String.format("UPDATE LoanEvents SET Executed='true' WHERE LoanEventID=%d;", le.loanEventID);
-			double newFeeBalance = theLoan.getFeesOutstanding();
-			
-			if(le.action == LoanEventType.SERVICEFEE){
+		try {
+			conn = plugin.getConnection();
+			long newFeeBalance = theLoan.getFeesOutstandingMinor();
+			boolean dismissed = false;
 			
+			if(le.action == LoanEventType.SERVICEFEE)
 				newFeeBalance += le.amount;
+			else if(ps.getActualPaidMinor() < Money.fromDouble(theLoan.getMinPayment()))
+				newFeeBalance += le.amount;
+			else
+				dismissed = true;
 			
-				String updateFees = String.format("UPDATE Loans SET FeeBalance=%f WHERE LoanID=%d;", newFeeBalance, theLoan.getLoanID());
-				
-				
-				synchronized(loanTableLock){
-					stmt.executeUpdate(updateFees);
-				}
-			} else {
+			if(!dismissed){
+				PreparedStatement updateFees = Query.UPDATE_LOAN_FEE_BALANCE.prepare(conn);
 				
-				PaymentStatement ps = getPaymentStatement(theLoan.getLoanID());
+				Money.bind(updateFees, 1, newFeeBalance);
+				updateFees.setInt(2, theLoan.getLoanID());
 				
-				
-				if(ps.getActualPaid() < theLoan.getMinPayment()){
-					newFeeBalance += le.amount;
-					
-					String updateFees = String.format("UPDATE Loans SET FeeBalance=%f WHERE LoanID=%d;", newFeeBalance, theLoan.getLoanID());
-					
-					synchronized(loanTableLock){
-						stmt.executeUpdate(updateFees);
-					}
-					
-				} else {
-					
-					updateLE = String.format("UPDATE LoanEvents SET Amount=0.0, Executed='true' WHERE LoanEventID=%d;", le.loanEventID);
-					
+				synchronized(loanLocks.get(le.loan)){
+					updateFees.executeUpdate();
 				}
 				
+				updateFees.close();
 			}
 			
+			PreparedStatement stmt = null;
+			
+			if(dismissed){
+				stmt = Query.EXECUTE_LOAN_EVENT.prepare(conn);
+				Money.bind(stmt, 1, 0);
+				stmt.setInt(2, le.loanEventID);
+			} else {
+				stmt = Query.MARK_LOAN_EVENT_EXECUTED.prepare(conn);
+				stmt.setInt(1, le.loanEventID);
+			}
 	
-			synchronized(loanEventTableLock){
-				stmt.executeUpdate(updateLE);
+			synchronized(loanLocks.get(le.loan)){
+				stmt.executeUpdate();
 			}
 			
 			stmt.close();
@@ -834,71 +2599,108 @@ public class LoanManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 	}
 
-	private void attemptAutoPay(LoanEvent le) {
+	/*
+	 * Pays the outstanding statement from the borrower's account if the loan
+	 * is on autopay, in full if the borrower can afford it and otherwise the
+	 * minimum. Returns the amount paid, which is 0 if nothing was paid.
+	 */
+	private long attemptAutoPay(LoanEvent le) {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "attemptAutoPay(LoanEvent)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String allowedSQL = String.format("SELECT AutoPay FROM Loans WHERE LoanID=%d;", le.loan);
+		if(!isAutoPay(le.loan))
+			return 0;
+		
+		Loan theLoan = getStoredLoan(le.loan);
+		PaymentStatement ps = getPaymentStatement(le.loan);
+		
+		long paymentAmount = 0;
+		
+		long balance = plugin.econ.getBalance(theLoan.getBorrower()).getBalanceMinor();
+		
+		if(balance >= ps.getPaymentRemainingMinor())
+			paymentAmount = ps.getPaymentRemainingMinor();
+		else if(balance >= ps.getMinimumPaymentMinor())
+			paymentAmount = ps.getMinimumPaymentMinor();
+		else
+			return 0;
+		
+		plugin.econ.withdrawMinor(theLoan.getBorrower(), paymentAmount);
+		plugin.econ.depositMinor(theLoan.getLender(), paymentAmount);
+		
+		applyPayment(theLoan, paymentAmount);
+		
+		return paymentAmount;
+	}
+	
+	/*
+	 * Marks the event executed and records its amount.
+	 */
+	private void executeLoanEvent(LoanEvent le) {
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.EXECUTE_LOAN_EVENT.prepare(conn);
+			
+			Money.bind(stmt, 1, le.amount);
+			stmt.setInt(2, le.loanEventID);
+			
+			synchronized(loanLocks.get(le.loan)){
+				stmt.executeUpdate();
+			}
+			
+			stmt.close();
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+	}
+
+	private boolean isAutoPay(int loanID) {
 		boolean doAutoPay = false;
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_LOAN_AUTOPAY.prepare(conn);
+			
+			stmt.setInt(1, loanID);
 			
 			ResultSet rs = null;
 			
-			synchronized(loanTableLock){
-				rs = stmt.executeQuery(allowedSQL);
+			synchronized(loanLocks.get(loanID)){
+				rs = stmt.executeQuery();
 			}
 			
 			if(rs.next())
 				doAutoPay = Boolean.parseBoolean(rs.getString("AutoPay"));
+			
+			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
-		if(!doAutoPay)
-			return;
-		
-		Loan theLoan = getLoan(le.loan);
-		PaymentStatement ps = getPaymentStatement(le.loan);
-		
-		double paymentAmount = 0.0;
-		
-		double balance = plugin.econ.getBalance(theLoan.getBorrower()).balance;
-		
-		if(balance >= ps.getPaymentRemaining())
-			paymentAmount = ps.getPaymentRemaining();
-		else if(balance >= ps.getMinimumPayment())
-			paymentAmount = ps.getMinimumPayment();
-		else
-			return;
-		
-		plugin.econ.withdraw(theLoan.getBorrower(), paymentAmount);
-		plugin.econ.deposit(theLoan.getLender(), paymentAmount);
-		
-		applyPayment(theLoan, paymentAmount);
-		
+		return doAutoPay;
 	}
 
-	private void buildLoanEvents(int loanID) {
+	private List<LoanEvent> buildLoanEvents(Loan theLoan) {
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "buildLoanEvents(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "buildLoanEvents(Loan)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-			Loan theLoan = getLoan(loanID);
+			LinkedList<LoanEvent> schedule = new LinkedList<LoanEvent>();
 			
-			if(theLoan == null){
-				if(SerenityLoans.debugLevel >= 2)
-					SerenityLoans.log.info(String.format("[%s] Loan not found when trying to populate events list.", plugin.getDescription().getName()));
-				return;
-			}
-			
-			addLoanEvent(new LoanEvent(new Timestamp(new Date().getTime()), LoanEventType.OPEN, theLoan.getValue(), theLoan.getLoanID()), true);
-			
-			double paymentAmount = calculatePaymentAmount(theLoan);
+			long paymentAmount = calculatePaymentAmount(theLoan);
 			
 			//===================================Populate Events List=========================================
 			
@@ -911,9 +2713,9 @@ public class LoanManager {
 				Date feeTime = new Date(actionTime.getTime() + theLoan.getGracePeriod());
 				Date statementTime = new Date(actionTime.getTime() - theLoan.getPaymentTime());
 				
-				addLoanEvent(new LoanEvent(new Timestamp(actionTime.getTime()), LoanEventType.PAYMENTDUE, paymentAmount, theLoan.getLoanID()), false);
-				addLoanEvent(new LoanEvent(new Timestamp(feeTime.getTime()), LoanEventType.LATEFEE, theLoan.getLateFee(), theLoan.getLoanID()), false);
-				addLoanEvent(new LoanEvent(new Timestamp(statementTime.getTime()), LoanEventType.STATEMENTOUT, paymentAmount, theLoan.getLoanID()), false);
+				schedule.add(new LoanEvent(new Timestamp(actionTime.getTime()), LoanEventType.PAYMENTDUE, paymentAmount, theLoan.getLoanID()));
+				schedule.add(new LoanEvent(new Timestamp(feeTime.getTime()), LoanEventType.LATEFEE, theLoan.getLateFeeMinor(), theLoan.getLoanID()));
+				schedule.add(new LoanEvent(new Timestamp(statementTime.getTime()), LoanEventType.STATEMENTOUT, paymentAmount, theLoan.getLoanID()));
 				
 				// If the next iteration is strictly greater than the term, add an event for final payoff
 				if((i + 1) * payFrequency > theLoan.getTerm() && i * payFrequency != theLoan.getTerm()){
@@ -923,9 +2725,9 @@ public class LoanManager {
 					Date statementTime2 = new Date(actionTime2.getTime() - theLoan.getPaymentTime());
 					
 					
-					addLoanEvent(new LoanEvent(new Timestamp(actionTime2.getTime()), LoanEventType.PAYMENTDUE, paymentAmount, theLoan.getLoanID()), false);
-					addLoanEvent(new LoanEvent(new Timestamp(feeTime2.getTime()), LoanEventType.LATEFEE, theLoan.getLateFee(), theLoan.getLoanID()), false);		
-					addLoanEvent(new LoanEvent(new Timestamp(statementTime2.getTime()), LoanEventType.STATEMENTOUT, paymentAmount, theLoan.getLoanID()), false);
+					schedule.add(new LoanEvent(new Timestamp(actionTime2.getTime()), LoanEventType.PAYMENTDUE, paymentAmount, theLoan.getLoanID()));
+					schedule.add(new LoanEvent(new Timestamp(feeTime2.getTime()), LoanEventType.LATEFEE, theLoan.getLateFeeMinor(), theLoan.getLoanID()));		
+					schedule.add(new LoanEvent(new Timestamp(statementTime2.getTime()), LoanEventType.STATEMENTOUT, paymentAmount, theLoan.getLoanID()));
 					
 				}
 						
@@ -936,7 +2738,7 @@ public class LoanManager {
 			for(int i = 0; i * theLoan.getServiceFeeFrequency() < theLoan.getTerm() && theLoan.getServiceFeeFrequency() != 0 && theLoan.getServiceFee() != 0; i += 1){
 				Date actionTime = new Date(theLoan.getStartDate().getTime() + i * theLoan.getServiceFeeFrequency());
 							
-				addLoanEvent(new LoanEvent(new Timestamp(actionTime.getTime()), LoanEventType.SERVICEFEE, theLoan.getServiceFee(), theLoan.getLoanID()), false);
+				schedule.add(new LoanEvent(new Timestamp(actionTime.getTime()), LoanEventType.SERVICEFEE, theLoan.getServiceFeeMinor(), theLoan.getLoanID()));
 			}
 				
 			//Calculate interest accrual/compounding times
@@ -944,19 +2746,21 @@ public class LoanManager {
 						
 				Date actionTime = new Date(theLoan.getStartDate().getTime() + i * theLoan.getCompoundingPeriod());
 				
-				addLoanEvent(new LoanEvent(new Timestamp(actionTime.getTime()), LoanEventType.COMPOUND, 0.0, theLoan.getLoanID()), false);
+				schedule.add(new LoanEvent(new Timestamp(actionTime.getTime()), LoanEventType.COMPOUND, 0, theLoan.getLoanID()));
 	//			addLoanEvent(new LoanEvent(new Timestamp(actionTime.getTime() + 1l), LoanEventType.INTERESTACCRUAL, 0.0, theLoan.getLoanID()));
 						
 				if((i + 1) * theLoan.getCompoundingPeriod() > theLoan.getTerm() && i * theLoan.getCompoundingPeriod() != theLoan.getTerm()){
 							
 					Date actionTime2 = new Date(theLoan.getStartDate().getTime() + theLoan.getTerm());
 					
-					addLoanEvent(new LoanEvent(new Timestamp(actionTime2.getTime()), LoanEventType.COMPOUND, 0.0, theLoan.getLoanID()), false);
+					schedule.add(new LoanEvent(new Timestamp(actionTime2.getTime()), LoanEventType.COMPOUND, 0, theLoan.getLoanID()));
 	//				addLoanEvent(new LoanEvent(new Timestamp(actionTime2.getTime() + 1l), LoanEventType.INTERESTACCRUAL, 0.0, theLoan.getLoanID()));
 		
 				}					
 			}
 			
+			return schedule;
+			
 		}
 
 	/*
@@ -968,7 +2772,7 @@ public class LoanManager {
 	 * method assumes there will be one final payment in addition to the regularly
 	 * scheduled ones.
 	 */
-	private double calculatePaymentAmount(Loan theLoan) {
+	private long calculatePaymentAmount(Loan theLoan) {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "calculatePaymentAmount(Loan)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
@@ -976,37 +2780,43 @@ public class LoanManager {
 		double n = Math.ceil(((double)  theLoan.getTerm())/((double) theLoan.getPaymentFrequency()));
 		
 		if(theLoan.getLoanType() == LoanType.AMORTIZING)
-			return theLoan.getBalance() * (r + (r/(Math.pow(1 + r,n) - 1)));
+			return Money.times(theLoan.getBalanceMinor(), r + (r/(Math.pow(1 + r,n) - 1)));
 		else if(theLoan.getLoanType() == LoanType.BULLET)
-			return theLoan.getBalance() * (1 + theLoan.getInterestRate() * theLoan.getTerm()/Conf.getIntReportingTime());
+			return Money.times(theLoan.getBalanceMinor(), 1 + theLoan.getInterestRate() * theLoan.getTerm()/Conf.getIntReportingTime());
 		else
-			return theLoan.getBalance()/n;
+			return Money.times(theLoan.getBalanceMinor(), 1/n);
 	}
 
 	private void closeLoan(int loanID) {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "closeLoan(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		Loan theLoan = getLoan(loanID);
+		Loan theLoan = getStoredLoan(loanID);
 		
-		if(theLoan.getCloseValue() > 0)
+		if(theLoan.getCloseValueMinor() > 0)
 			return;
 		
-		addLoanEvent(new LoanEvent(new Timestamp(new Date().getTime()), LoanEventType.CLOSE, 0.0, loanID), true);
+		addLoanEvent(new LoanEvent(new Timestamp(new Date().getTime()), LoanEventType.CLOSE, 0, loanID), true);
 		
-		String closeSQL = String.format("UPDATE Loans SET Open='false' WHERE LoanID=%d;", loanID);
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.CLOSE_LOAN.prepare(conn);
+			
+			stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
+			stmt.setInt(2, loanID);
 			
-			synchronized(loanTableLock){
-				stmt.executeUpdate(closeSQL);
+			synchronized(loanLocks.get(loanID)){
+				stmt.executeUpdate();
 			}
 			
 			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 	}
 
@@ -1019,30 +2829,41 @@ public class LoanManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "compoundInterest(LoanEvent)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		Loan theLoan = getLoan(le.loan);
+		Loan theLoan = getStoredLoan(le.loan);
 		
-		double compounded = theLoan.getInterestBalance();
-		double newBalance = theLoan.getBalance() + compounded;
+		long compounded = theLoan.getInterestBalanceMinor();
+		long newBalance = theLoan.getBalanceMinor() + compounded;
 		
-		String updateLoan = String.format("UPDATE Loans SET Balance=%f, InterestBalance=%f WHERE LoanID=%d;", newBalance, 0.0, theLoan.getLoanID());
-		String updateLE = String.format("UPDATE LoanEvents SET Amount=%f, Executed='true' WHERE LoanEventID=%d;", compounded, le.loanEventID);
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement updateLoan = Query.UPDATE_LOAN_COMPOUND.prepare(conn);
 			
-			synchronized(loanTableLock){
-				stmt.executeUpdate(updateLoan);
+			Money.bind(updateLoan, 1, newBalance);
+			updateLoan.setInt(2, theLoan.getLoanID());
+			
+			synchronized(loanLocks.get(le.loan)){
+				updateLoan.executeUpdate();
 			}
 			
-			synchronized(loanEventTableLock){
-				stmt.executeUpdate(updateLE);
+			PreparedStatement updateLE = Query.EXECUTE_LOAN_EVENT.prepare(conn);
+			
+			Money.bind(updateLE, 1, compounded);
+			updateLE.setInt(2, le.loanEventID);
+			
+			synchronized(loanLocks.get(le.loan)){
+				updateLE.executeUpdate();
 			}
 			
-			stmt.close();
+			updateLoan.close();
+			updateLE.close();
 			
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 	}
 
@@ -1057,45 +2878,86 @@ public class LoanManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "sendOutStatement(LoanEvent)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		Loan theLoan = getLoan(le.loan);
+		Loan theLoan = getStoredLoan(le.loan);
 		PaymentStatement ps = getPaymentStatement(le.loan);
 		
-		boolean percentageRule = false;
-		String rulePath = "loan.terms-constraints.min-payment.percent-rule";
-		if(plugin.getConfig().contains(rulePath) && plugin.getConfig().isBoolean(rulePath))
-			percentageRule = plugin.getConfig().getBoolean(rulePath);
-	
-		double statementAmount = Math.min(theLoan.getCloseValue() , le.amount) + theLoan.getFeesOutstanding() + ps.getPaymentRemaining();
-		double minPayment = theLoan.getMinPayment() * (percentageRule? le.amount : 1);
+		long previousRemaining = ps == null? 0 : ps.getPaymentRemainingMinor();
+		long statementAmount = Math.min(theLoan.getCloseValueMinor(), le.amount) + theLoan.getFeesOutstandingMinor() + previousRemaining;
+		long minPayment = minimumPayment(theLoan, le.amount);
 		
 		Timestamp due = new Timestamp(le.time.getTime() + theLoan.getPaymentTime());
 		
-		String insertSQL = String.format("INSERT INTO PaymentStatements (LoanID, BillAmount, Minimum, StatementDate, DueDate) VALUES (%d, $f, $f, ?, ?);", le.loan, statementAmount, minPayment);
-	
+		Connection conn = null;
+		
 		try {
+			conn = plugin.getConnection();
+			PreparedStatement prep = Query.INSERT_PAYMENT_STATEMENT.prepare(conn);
 			
-			PreparedStatement prep = plugin.conn.prepareStatement(insertSQL);
-			
-			prep.setTimestamp(1, le.time);
-			prep.setTimestamp(2, due);
+			prep.setInt(1, le.loan);
+			Money.bind(prep, 2, statementAmount);
+			Money.bind(prep, 3, minPayment);
+			prep.setTimestamp(4, le.time);
+			prep.setTimestamp(5, due);
 			
-			synchronized(paymentStatementTableLock){
+			synchronized(loanLocks.get(le.loan)){
 				prep.executeUpdate();
 			}
 			
-			String updateLE = String.format("UPDATE LoanEvents SET Amount=%f, Executed='true' WHERE LoanEventID=%d;", statementAmount, le.loanEventID);
-	
-			Statement stmt = plugin.conn.createStatement();
+			PreparedStatement stmt = Query.EXECUTE_LOAN_EVENT.prepare(conn);
+			
+			Money.bind(stmt, 1, statementAmount);
+			stmt.setInt(2, le.loanEventID);
 			
-			synchronized(loanEventTableLock){
-				stmt.executeUpdate(updateLE);
+			synchronized(loanLocks.get(le.loan)){
+				stmt.executeUpdate();
 			}
 			
+			prep.close();
+			stmt.close();
+			
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
+		notifyStatement(theLoan);
+	}
+	
+	/*
+	 * Returns the minimum payment of a statement for the given scheduled
+	 * payment amount.
+	 */
+	private long minimumPayment(Loan theLoan, long amount) {
+		return minimumPayment(theLoan, amount, usePercentageRule());
+	}
+	
+	/*
+	 * As above, where percentageRule says whether the minimum payment of
+	 * the loan is a share of the scheduled amount.
+	 */
+	static long minimumPayment(Loan theLoan, long amount, boolean percentageRule) {
+		return percentageRule? Money.times(amount, theLoan.getMinPayment()) : Money.fromDouble(theLoan.getMinPayment());
+	}
+	
+	/*
+	 * Returns true if minimum payments are a share of the scheduled 
+	 * payment rather than a fixed amount.
+	 */
+	private boolean usePercentageRule() {
+		boolean percentageRule = false;
+		String rulePath = "loan.terms-constraints.min-payment.percent-rule";
+		if(plugin.getConfig().contains(rulePath) && plugin.getConfig().isBoolean(rulePath))
+			percentageRule = plugin.getConfig().getBoolean(rulePath);
+		
+		return percentageRule;
+	}
+	
+	/*
+	 * Tells the borrower, if online, about the latest statement of the loan.
+	 */
+	private void notifyStatement(Loan theLoan) throws InterruptedException, ExecutionException, TimeoutException {
 		Player recipient = plugin.playerManager.getPlayer(theLoan.getBorrower().getUserID());
 		
 		if(recipient == null)
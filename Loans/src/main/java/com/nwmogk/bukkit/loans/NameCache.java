@@ -0,0 +1,372 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: NameCache.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class keeps player names and UUIDs in memory in both directions,
+ * so that name lookups for players the server has already seen do not
+ * call the Mojang account service. Pairs are learned from joining and
+ * online players and from the results of fetches, and are saved to the
+ * PlayerNames table so they are kept across restarts.
+ * 
+ * A pair older than the configured time to live is still returned, but
+ * is checked against the account service in the background so that name
+ * changes are picked up. Names are matched without regard to case. All
+ * methods of this class are thread-safe and none of them block on the
+ * network; database writes are made on the plugin's thread pool.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nwmogk.bukkit.evilmidget38.NameFetcher;
+import com.nwmogk.bukkit.evilmidget38.UUIDFetcher;
+import com.nwmogk.bukkit.loans.database.Query;
+
+public class NameCache {
+	
+	private SerenityLoans plugin;
+	private final long ttl;
+	
+	// Both maps are guarded by this object.
+	private final Map<UUID, Entry> byId = new HashMap<UUID, Entry>();
+	private final Map<String, UUID> byName = new HashMap<String, UUID>();
+	
+	// UUIDs and lower case names with a background fetch under way
+	private final Set<Object> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+	
+	// Serializes writes to PlayerNames, which are an update then an insert.
+	private final Object writeLock = new Object();
+	
+	/**
+	 * Creates an empty cache. load() should be called once the PlayerNames
+	 * table exists.
+	 * 
+	 * @param plugin SerenityLoans object with which this cache is associated.
+	 * @param ttl Time in milliseconds after which a pair is checked again.
+	 */
+	public NameCache(SerenityLoans plugin, long ttl){
+		this.plugin = plugin;
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Reads every saved pair from the PlayerNames table. Where a name was
+	 * saved for more than one player, the one seen most recently wins.
+	 * 
+	 * @return Number of pairs read.
+	 */
+	public int load(){
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "load()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		int count = 0;
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_PLAYER_NAMES.prepare(conn);
+			ResultSet rs = stmt.executeQuery();
+			
+			synchronized(this){
+				while(rs.next()){
+					Timestamp seen = rs.getTimestamp("LastSeen");
+					put(UUID.fromString(rs.getString("UserID")), rs.getString("Name"), seen == null? 0 : seen.getTime());
+					count++;
+				}
+			}
+			
+			stmt.close();
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Records that the given player currently has the given name, such as
+	 * when the player joins. The pair is saved in the background if it is
+	 * new, has changed, or was due to be checked.
+	 * 
+	 * @param playerID UUID of the player.
+	 * @param name Current name of the player.
+	 */
+	public void learn(UUID playerID, String name){
+		if(playerID == null || name == null)
+			return;
+		
+		long now = System.currentTimeMillis();
+		
+		synchronized(this){
+			Entry old = byId.get(playerID);
+			
+			if(old != null && old.name.equals(name) && now - old.verified < ttl){
+				old.verified = now;
+				return;
+			}
+			
+			put(playerID, name, now);
+		}
+		
+		save(playerID, name, now);
+	}
+	
+	/**
+	 * Records every pair in the result of a UUIDFetcher or NameFetcher.
+	 * 
+	 * @param fetched Names by UUID, as returned by a NameFetcher.
+	 */
+	public void learnNames(Map<UUID, String> fetched){
+		if(fetched == null)
+			return;
+		
+		for(Map.Entry<UUID, String> pair : fetched.entrySet())
+			learn(pair.getKey(), pair.getValue());
+	}
+	
+	/**
+	 * Records every pair in the result of a UUIDFetcher.
+	 * 
+	 * @param fetched UUIDs by name, as returned by a UUIDFetcher.
+	 */
+	public void learnIds(Map<String, UUID> fetched){
+		if(fetched == null)
+			return;
+		
+		for(Map.Entry<String, UUID> pair : fetched.entrySet())
+			learn(pair.getValue(), pair.getKey());
+	}
+	
+	/**
+	 * Returns the UUID of the player with the given name, or null if the
+	 * name has not been seen. A stale pair is returned and checked in the
+	 * background.
+	 * 
+	 * @param name Name of the player, in any case.
+	 * @return UUID of the player, or null.
+	 */
+	public UUID getId(String name){
+		if(name == null)
+			return null;
+		
+		String key = name.toLowerCase(Locale.ENGLISH);
+		UUID result;
+		boolean stale;
+		
+		synchronized(this){
+			result = byName.get(key);
+			
+			if(result == null)
+				return null;
+			
+			stale = System.currentTimeMillis() - byId.get(result).verified >= ttl;
+		}
+		
+		if(stale)
+			refreshName(key);
+		
+		return result;
+	}
+	
+	/**
+	 * Returns the name of the player with the given UUID, or null if the
+	 * player has not been seen. A stale pair is returned and checked in the
+	 * background.
+	 * 
+	 * @param playerID UUID of the player.
+	 * @return Name of the player, or null.
+	 */
+	public String getName(UUID playerID){
+		if(playerID == null)
+			return null;
+		
+		String result;
+		boolean stale;
+		
+		synchronized(this){
+			Entry entry = byId.get(playerID);
+			
+			if(entry == null)
+				return null;
+			
+			result = entry.name;
+			stale = System.currentTimeMillis() - entry.verified >= ttl;
+		}
+		
+		if(stale)
+			refreshId(playerID);
+		
+		return result;
+	}
+	
+	/*
+	 * Stores a pair in both maps. A name belongs to one player at a time,
+	 * so a player who previously held the name is dropped until they are
+	 * seen again. The caller must hold the lock on this object.
+	 */
+	private void put(UUID playerID, String name, long verified){
+		String key = name.toLowerCase(Locale.ENGLISH);
+		
+		Entry old = byId.put(playerID, new Entry(name, verified));
+		
+		if(old != null){
+			String oldKey = old.name.toLowerCase(Locale.ENGLISH);
+			
+			if(!oldKey.equals(key) && playerID.equals(byName.get(oldKey)))
+				byName.remove(oldKey);
+		}
+		
+		UUID previous = byName.put(key, playerID);
+		
+		if(previous != null && !previous.equals(playerID))
+			byId.remove(previous);
+	}
+	
+	/*
+	 * Writes a pair to PlayerNames on the plugin's thread pool.
+	 */
+	private void save(final UUID playerID, final String name, final long verified){
+		plugin.threads.execute(new Runnable(){
+			
+			public void run(){
+				Connection conn = null;
+				
+				try {
+					conn = plugin.getConnection();
+					PreparedStatement update = Query.UPDATE_PLAYER_NAME.prepare(conn);
+					
+					update.setString(1, name);
+					update.setTimestamp(2, new Timestamp(verified));
+					update.setString(3, playerID.toString());
+					
+					synchronized(writeLock){
+						if(update.executeUpdate() == 0){
+							PreparedStatement insert = Query.INSERT_PLAYER_NAME.prepare(conn);
+							
+							insert.setString(1, playerID.toString());
+							insert.setString(2, name);
+							insert.setTimestamp(3, new Timestamp(verified));
+							
+							insert.executeUpdate();
+							insert.close();
+						}
+					}
+					
+					update.close();
+				} catch (SQLException e) {
+					SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+					e.printStackTrace();
+				} finally {
+					plugin.releaseConnection(conn);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Asks the account service for the current name of a player in the
+	 * background, unless that is already under way.
+	 */
+	private void refreshId(final UUID playerID){
+		if(!refreshing.add(playerID))
+			return;
+		
+		plugin.threads.execute(new Runnable(){
+			
+			public void run(){
+				try {
+					learnNames(new NameFetcher(Arrays.asList(playerID)).call());
+				} catch (Exception e) {
+					if(SerenityLoans.debugLevel >= 2)
+						SerenityLoans.logInfo(String.format("Name check for %s failed: %s", playerID.toString(), e.getMessage()));
+				} finally {
+					refreshing.remove(playerID);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Asks the account service for the current owner of a lower case name
+	 * in the background, unless that is already under way.
+	 */
+	private void refreshName(final String key){
+		if(!refreshing.add(key))
+			return;
+		
+		plugin.threads.execute(new Runnable(){
+			
+			public void run(){
+				try {
+					learnIds(new UUIDFetcher(Arrays.asList(key)).call());
+				} catch (Exception e) {
+					if(SerenityLoans.debugLevel >= 2)
+						SerenityLoans.logInfo(String.format("UUID check for %s failed: %s", key, e.getMessage()));
+				} finally {
+					refreshing.remove(key);
+				}
+			}
+		});
+	}
+	
+	private static class Entry {
+		
+		private final String name;
+		private long verified;
+		
+		private Entry(String name, long verified){
+			this.name = name;
+			this.verified = verified;
+		}
+	}
+
+}
@@ -43,13 +43,14 @@
 
 package com.nwmogk.bukkit.loans;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Timestamp;
 import java.text.DecimalFormat;
 import java.text.ParsePosition;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -61,6 +62,8 @@ import org.bukkit.configuration.file.FileConfiguration;
 
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
 import com.nwmogk.bukkit.loans.api.LoanType;
+import com.nwmogk.bukkit.loans.database.Query;
+import com.nwmogk.bukkit.loans.database.StripedLock;
 import com.nwmogk.bukkit.loans.exception.InvalidLoanTermsException;
 import com.nwmogk.bukkit.loans.object.ImmutableOffer;
 
@@ -70,8 +73,8 @@ public class OfferManager {
 	// TODO make thread-safe, + comments
 	public enum OfferExitStatus{SUCCESS, IGNORED, UNKNOWN, OVERWRITE_FAIL};
 	
-	private Object offerTableLock = new Object();
-	private Object preparedLock = new Object();
+	// Offers and PreparedOffers rows are guarded by the stripe of their LenderID.
+	private final StripedLock offerLocks = new StripedLock();
 	
 	public OfferManager(SerenityLoans plugin){
 		this.plugin = plugin;
@@ -95,7 +98,7 @@ public class OfferManager {
 		long paymentFrequency = 2419200000L;
 		long gracePeriod  = 0L;
 		long serviceFeeFrequency =  0L;
-		String loanType = "'Bullet'";
+		String loanType = "Bullet";
 		
 		FileConfiguration config = plugin.getConfig();
 		
@@ -152,19 +155,18 @@ public class OfferManager {
 		if(config.contains(servfreqPath) && config.isString(servfreqPath))
 			serviceFeeFrequency = Conf.parseTime(config.getString(servfreqPath));
 		
-		String columns = "LenderID, OfferName, Value, InterestRate, Term, CompoundingPeriod, GracePeriod, PaymentTime, PaymentFrequency, LateFee, MinPayment, ServiceFeeFrequency, ServiceFee, LoanType";
-		
-		String query1 = "SELECT OfferName FROM PreparedOffers WHERE LenderID=?";
-		String query2 = "INSERT INTO PreparedOffers (" + columns + ") VALUES (?, ?, " + value + ", " + interestRate + ", " + term + ", " + compoundingPeriod + ", " + gracePeriod + ", " + paymentTime + ", " + paymentFrequency + ", " + lateFee + ", " + minPayment + ", " + serviceFeeFrequency + ", " + serviceFee + ", " + loanType + ");";
 
+		Connection conn = null;
+		
 		try {
+			conn = plugin.getConnection();
 			
 			// build two PreparedOffers
 			
-			PreparedStatement stmt1 = plugin.conn.prepareStatement(query1);
-			PreparedStatement stmt2 = plugin.conn.prepareStatement(query2);
+			PreparedStatement stmt1 = Query.SELECT_PREPARED_OFFER_NAMES.prepare(conn);
+			PreparedStatement stmt2 = Query.INSERT_PREPARED_OFFER.prepare(conn);
 			
-			synchronized(preparedLock){
+			synchronized(offerLocks.get(playerID)){
 				stmt1.setString(1, playerID.toString());
 				
 				ResultSet existingOffers = stmt1.executeQuery();
@@ -177,6 +179,18 @@ public class OfferManager {
 				
 				
 				stmt2.setString(1, playerID.toString());
+				stmt2.setDouble(3, value);
+				stmt2.setDouble(4, interestRate);
+				stmt2.setLong(5, term);
+				stmt2.setLong(6, compoundingPeriod);
+				stmt2.setLong(7, gracePeriod);
+				stmt2.setLong(8, paymentTime);
+				stmt2.setLong(9, paymentFrequency);
+				stmt2.setDouble(10, lateFee);
+				stmt2.setDouble(11, minPayment);
+				stmt2.setLong(12, serviceFeeFrequency);
+				stmt2.setDouble(13, serviceFee);
+				stmt2.setString(14, loanType);
 				
 				
 				if(searchSet.size() == 0 || !searchSet.contains("default")){
@@ -200,6 +214,8 @@ public class OfferManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 	
 				
@@ -213,26 +229,18 @@ public class OfferManager {
 		if(plugin.playerManager.isIgnoring(borrowerID, lenderID))
 			return OfferExitStatus.IGNORED;
 		
-		String columns = "LenderID, OfferName, Value, InterestRate, Term, CompoundingPeriod, GracePeriod, PaymentTime, PaymentFrequency, LateFee, MinPayment, ServiceFeeFrequency, ServiceFee, LoanType";
-		String copyColumns = "copy.Value, copy.InterestRate, copy.Term, copy.CompoundingPeriod, copy.GracePeriod, copy.PaymentTime, copy.PaymentFrequency, copy.LateFee, copy.MinPayment, copy.ServiceFeeFrequency, copy.ServiceFee, copy.LoanType";
-		
-		
-		String offerCopy = String.format("INSERT INTO PreparedOffers (%s) SELECT ?, 'inprogress', %s FROM PreparedOffers copy WHERE LenderID=? AND OfferName=?;", columns, copyColumns);
-		String offerQuery = "SELECT OfferID from PreparedOffers WHERE LenderID=? AND OfferName='inprogress';";
-		String offerNameUpdate = "UPDATE PreparedOffers SET OfferName='' WHERE LenderID=? AND OfferName='inprogress';";
-		String deleteOldOffer = "DELETE FROM Offers WHERE LenderID=? AND BorrowerID=?;";
-		String checkDeleted = "SELECT * FROM Offers WHERE LenderID=? AND BorrowerID=?;";
-		
+		Connection conn = null;
 		
 		try {
-			PreparedStatement offerTermsCopier = plugin.conn.prepareStatement(offerCopy);
+			conn = plugin.getConnection();
+			PreparedStatement offerTermsCopier = Query.COPY_PREPARED_OFFER.prepare(conn);
 			
 			offerTermsCopier.setString(1, lenderID.toString());
 			offerTermsCopier.setString(2, lenderID.toString());
 			offerTermsCopier.setString(3, preparedOfferName);
 			
 			
-			synchronized(preparedLock){
+			synchronized(offerLocks.get(lenderID)){
 				int output = offerTermsCopier.executeUpdate();
 				
 				if(output != 1)
@@ -241,13 +249,13 @@ public class OfferManager {
 			}
 			
 			
-			PreparedStatement offerIdFinder = plugin.conn.prepareStatement(offerQuery);
+			PreparedStatement offerIdFinder = Query.SELECT_INPROGRESS_OFFER_ID.prepare(conn);
 			
 			offerIdFinder.setString(1, lenderID.toString());
 			
 			ResultSet newOfferId = null;
 			
-			synchronized(preparedLock){
+			synchronized(offerLocks.get(lenderID)){
 				newOfferId = offerIdFinder.executeQuery();
 			}
 			
@@ -257,26 +265,26 @@ public class OfferManager {
 			
 			int offerId = newOfferId.getInt(1);
 			
-			PreparedStatement renameOffer = plugin.conn.prepareStatement(offerNameUpdate);
+			PreparedStatement renameOffer = Query.CLEAR_INPROGRESS_OFFER_NAME.prepare(conn);
 			
 			renameOffer.setString(1, lenderID.toString());
 			
-			synchronized(preparedLock){
+			synchronized(offerLocks.get(lenderID)){
 				int output = renameOffer.executeUpdate();
 			
 				if(output != 1)
 					return OfferExitStatus.UNKNOWN;
 			}
 			
-			PreparedStatement deleteOldOfferSQL = plugin.conn.prepareStatement(deleteOldOffer);
-			PreparedStatement checkDeletedSQL = plugin.conn.prepareStatement(checkDeleted);
+			PreparedStatement deleteOldOfferSQL = Query.DELETE_OFFER.prepare(conn);
+			PreparedStatement checkDeletedSQL = Query.SELECT_OFFER.prepare(conn);
 			
 			deleteOldOfferSQL.setString(1, lenderID.toString());
 			deleteOldOfferSQL.setString(2, borrowerID.toString());
 			checkDeletedSQL.setString(1, lenderID.toString());
 			checkDeletedSQL.setString(2, borrowerID.toString());
 			
-			synchronized(offerTableLock){
+			synchronized(offerLocks.get(lenderID)){
 				int output = deleteOldOfferSQL.executeUpdate();
 				ResultSet shouldBeEmpty = checkDeletedSQL.executeQuery();
 			
@@ -284,20 +292,20 @@ public class OfferManager {
 					return OfferExitStatus.OVERWRITE_FAIL;
 			}
 			
-			String sentOfferString = String.format("INSERT INTO Offers (LenderID, BorrowerID, ExpirationDate, PreparedTerms) VALUES (?, ?, ?, %d);", offerId);
 			if(SerenityLoans.debugLevel >= 3)
-				SerenityLoans.logInfo(sentOfferString);
+				SerenityLoans.logInfo(String.format("Writing offer with terms %d.", offerId));
 			
-			PreparedStatement buildOffer = plugin.conn.prepareStatement(sentOfferString);
+			PreparedStatement buildOffer = Query.INSERT_OFFER.prepare(conn);
 			
 			buildOffer.setString(1, lenderID.toString());
 			buildOffer.setString(2, borrowerID.toString());
 			buildOffer.setTimestamp(3, offerExpiry);
+			buildOffer.setInt(4, offerId);
 			
 			if(SerenityLoans.debugLevel >= 3)
 				SerenityLoans.logInfo(offerExpiry.toString());
 			
-			synchronized(offerTableLock){
+			synchronized(offerLocks.get(lenderID)){
 				int output = buildOffer.executeUpdate();
 			
 				if(output != 1)
@@ -309,9 +317,12 @@ public class OfferManager {
 			renameOffer.close();
 			deleteOldOfferSQL.close();
 			checkDeletedSQL.close();
+			buildOffer.close();
 		} catch (SQLException e) {
 			SerenityLoans.logFail(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return OfferExitStatus.SUCCESS;
@@ -328,13 +339,13 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getOffer(UUID, UUID, boolean)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = String.format("SELECT * FROM offer_view WHERE LenderID=? AND BorrowerID=?%s;", filterSent? " AND Sent='false'" : "");
-		String query2 = "SELECT PreparedTerms FROM Offers WHERE LenderID=? AND BorrowerID=?;";
 		ImmutableOffer offer = null;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(query);
-			PreparedStatement stmt2 = plugin.conn.prepareStatement(query2);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = (filterSent? Query.SELECT_UNSENT_OFFER_VIEW : Query.SELECT_OFFER_VIEW).prepare(conn);
+			PreparedStatement stmt2 = Query.SELECT_OFFER_TERMS_ID.prepare(conn);
 			
 			stmt.setString(1, lenderID.toString());
 			stmt.setString(2, borrowerID.toString());
@@ -347,8 +358,8 @@ public class OfferManager {
 			if(!results.next())
 				return null;
 			
-			FinancialEntity lender = plugin.playerManager.getFinancialEntity(UUID.fromString(results.getString("LenderID")));
-			FinancialEntity borrower = plugin.playerManager.getFinancialEntity(UUID.fromString(results.getString("BorrowerID")));
+			UUID lenderId = UUID.fromString(results.getString("LenderID"));
+			UUID borrowerId = UUID.fromString(results.getString("BorrowerID"));
 			double value = results.getDouble("Value");
 			double interestRate = results.getDouble("InterestRate");
 			double lateFee = results.getDouble("LateFee");
@@ -363,7 +374,7 @@ public class OfferManager {
 			Timestamp expDate = results.getTimestamp("ExpirationDate");
 			LoanType lt = LoanType.getFromString(results.getString("LoanType"));
 			
-			synchronized(offerTableLock){
+			synchronized(offerLocks.get(lenderID)){
 				results = stmt2.executeQuery();
 			}
 			
@@ -372,13 +383,23 @@ public class OfferManager {
 			
 			int termsID = results.getInt(1);
 			
+			stmt.close();
+			stmt2.close();
+			
+			// Release the connection before the entity lookups borrow their own.
+			plugin.releaseConnection(conn);
+			conn = null;
+			
+			FinancialEntity lender = plugin.playerManager.getFinancialEntity(lenderId);
+			FinancialEntity borrower = plugin.playerManager.getFinancialEntity(borrowerId);
+			
 			offer = new ImmutableOffer(lender, borrower, value, interestRate, lateFee, minPayment, serviceFee, term, compoundingPeriod, gracePeriod, paymentTime, paymentFrequency, serviceFeeFrequency, lt, expDate, termsID);
 
-			
-			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return offer;
@@ -388,29 +409,36 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getOfferRecipientsFrom(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = "SELECT BorrowerID FROM Offers WHERE LenderID=?;";
 		LinkedList<FinancialEntity> list = new LinkedList<FinancialEntity>();
+		LinkedList<UUID> ids = new LinkedList<UUID>();
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(query);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_OFFER_RECIPIENTS.prepare(conn);
 			
 			stmt.setString(1, lenderID.toString());
 			
 			ResultSet results = null;
 			
-			synchronized(offerTableLock){
+			synchronized(offerLocks.get(lenderID)){
 				results = stmt.executeQuery();
 			}
 			
 			while(results.next())
-				list.add(plugin.playerManager.getFinancialEntity(UUID.fromString(results.getString("BorrowerID"))));
+				ids.add(UUID.fromString(results.getString("BorrowerID")));
 			
 			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
+		for(UUID id : ids)
+			list.add(plugin.playerManager.getFinancialEntity(id));
+		
 		return list;
 		
 	}
@@ -426,29 +454,35 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getOfferSendersTo(UUID, boolean)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = String.format("SELECT LenderID FROM Offers WHERE BorrowerID=?%s;", filterSent? " AND Sent='false'" : "");
 		LinkedList<FinancialEntity> list = new LinkedList<FinancialEntity>();
+		LinkedList<UUID> ids = new LinkedList<UUID>();
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(query);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = (filterSent? Query.SELECT_UNSENT_OFFER_SENDERS : Query.SELECT_OFFER_SENDERS).prepare(conn);
 			
 			stmt.setString(1, borrowerID.toString());
 			
 			ResultSet results = null;
 			
-			synchronized(offerTableLock){
-				results = stmt.executeQuery();
-			}
+			// Reads spanning many lenders take no row locks.
+			results = stmt.executeQuery();
 			
 			while(results.next())
-				list.add(plugin.playerManager.getFinancialEntity(UUID.fromString(results.getString("LenderID"))));
+				ids.add(UUID.fromString(results.getString("LenderID")));
 			
 			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
+		for(UUID id : ids)
+			list.add(plugin.playerManager.getFinancialEntity(id));
+		
 		return list;
 	}
 	
@@ -456,18 +490,19 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getPreparedOffer(UUID, String)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = "SELECT * FROM PreparedOffers WHERE LenderID=? AND OfferName=?;";
 		ImmutableOffer offer = null;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(query);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_PREPARED_OFFER_BY_NAME.prepare(conn);
 			
 			stmt.setString(1, lenderId.toString());
 			stmt.setString(2, offerName);
 			
 			ResultSet results = null;
 			
-			synchronized(preparedLock){
+			synchronized(offerLocks.get(lenderId)){
 				results = stmt.executeQuery();
 			}
 			
@@ -476,7 +511,6 @@ public class OfferManager {
 				return null;
 			}
 			
-			FinancialEntity lender = plugin.playerManager.getFinancialEntity(lenderId);
 			FinancialEntity borrower = null;
 			double value = results.getDouble("Value");
 			double interestRate = results.getDouble("InterestRate");
@@ -493,13 +527,21 @@ public class OfferManager {
 			int termsID = results.getInt("OfferID");
 			LoanType lt = LoanType.getFromString(results.getString("LoanType"));
 			
+			stmt.close();
+			
+			// Release the connection before the entity lookup borrows its own.
+			plugin.releaseConnection(conn);
+			conn = null;
+			
+			FinancialEntity lender = plugin.playerManager.getFinancialEntity(lenderId);
+			
 			offer = new ImmutableOffer(lender, borrower, value, interestRate, lateFee, minPayment, serviceFee, term, compoundingPeriod, gracePeriod, paymentTime, paymentFrequency, serviceFeeFrequency, lt, expDate, termsID);
 
-			
-			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return offer;
@@ -509,17 +551,19 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getPreparedOffer(int, FinancialEntity, FinancialEntity)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = String.format("SELECT * FROM PreparedOffers WHERE OfferID=%d;", offerId);
 		ImmutableOffer offer = null;
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_PREPARED_OFFER_BY_ID.prepare(conn);
+			
+			stmt.setInt(1, offerId);
 			
 			ResultSet results = null;
 			
-			synchronized(preparedLock){
-				results = stmt.executeQuery(query);
-			}
+			// Single-row read by key; the terms row is never modified once it is attached to an offer.
+			results = stmt.executeQuery();
 			
 			if(!results.next()){
 				stmt.close();
@@ -547,6 +591,8 @@ public class OfferManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return offer;
@@ -557,20 +603,24 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getTermsValue(int)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String query = String.format("SELECT Value FROM PreparedOffers WHERE OfferID=%d;", preparedTermsId);
 		double result = -1;
+		Connection conn = null;
 		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_PREPARED_OFFER_VALUE.prepare(conn);
+			
+			stmt.setInt(1, preparedTermsId);
 			
 			ResultSet res = null;
 			
-			synchronized(preparedLock){
-				res = stmt.executeQuery(query);
-			}
+			// Single-row read by key; the terms row is never modified once it is attached to an offer.
+			res = stmt.executeQuery();
 			
-			if(!res.next())
+			if(!res.next()){
+				stmt.close();
 				return result;
+			}
 			
 			result = res.getDouble(1);
 			
@@ -579,6 +629,8 @@ public class OfferManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return result;
@@ -589,16 +641,17 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "registerOfferSend(UUID, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String sentUpdate = "UPDATE Offers SET Sent='true' WHERE LenderID=? AND BorrowerID=?;";
 
+		Connection conn = null;
+		
 		try {
-			
-			PreparedStatement stmt = plugin.conn.prepareStatement(sentUpdate);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.UPDATE_OFFER_SENT.prepare(conn);
 			
 			stmt.setString(1, lenderId.toString());
 			stmt.setString(2, borrowerId.toString());
 			
-			synchronized(offerTableLock){
+			synchronized(offerLocks.get(lenderId)){
 				int result = stmt.executeUpdate();
 			
 				if(result != 1){
@@ -614,6 +667,8 @@ public class OfferManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return false;
@@ -623,16 +678,17 @@ public class OfferManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "removeOffer(UUID, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
-		String update = "DELETE FROM Offers WHERE LenderID=? AND BorrowerID=?;";
 		int exit = -1;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement ps = plugin.conn.prepareStatement(update);
+			conn = plugin.getConnection();
+			PreparedStatement ps = Query.DELETE_OFFER.prepare(conn);
 			
 			ps.setString(1, lenderId.toString());
 			ps.setString(2, borrowerId.toString());
 			
-			synchronized(offerTableLock){
+			synchronized(offerLocks.get(lenderId)){
 				exit = ps.executeUpdate();
 			}
 			
@@ -641,6 +697,8 @@ public class OfferManager {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
 			return false;
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return exit == 0 || exit == 1;
@@ -971,7 +1029,7 @@ public class OfferManager {
 
 			String s  = parsedArg[1];
 			if(s.equalsIgnoreCase("Amortizing") || s.equalsIgnoreCase("InterestOnly") || s.equalsIgnoreCase("FixedFee") || s.equalsIgnoreCase("Bullet") || s.equalsIgnoreCase("Credit") || s.equalsIgnoreCase("Gift") || s.equalsIgnoreCase("Bond") || s.equalsIgnoreCase("Deposit") || s.equalsIgnoreCase("Salary"))
-				objective = "'" + s + "'";
+				objective = s;
 			else
 				return false;
 			
@@ -990,16 +1048,23 @@ public class OfferManager {
 		if(objective == null)
 			return false;
 		
-		String updateSQL = String.format("UPDATE PreparedOffers SET %s=%s WHERE LenderID=? AND OfferName='%s';", updateColumn, objective,  isDefault? "default":"prepared" );
+		Query updateQuery = Query.termsUpdate(updateColumn);
+		
+		if(updateQuery == null)
+			return false;
 		
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(updateSQL);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = updateQuery.prepare(conn);
 			
-			stmt.setString(1, lenderId.toString());
+			stmt.setString(1, objective);
+			stmt.setString(2, lenderId.toString());
+			stmt.setString(3, isDefault? "default":"prepared");
 			
 			int result;
-			synchronized(preparedLock){
+			synchronized(offerLocks.get(lenderId)){
 				result = stmt.executeUpdate();
 			}
 			
@@ -1009,6 +1074,8 @@ public class OfferManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return false;
@@ -1019,17 +1086,20 @@ public class OfferManager {
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "updateAll()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
 		
 		
-		String query = "SELECT LenderID, BorrowerID FROM Offers WHERE ExpirationDate < NOW();";
 		HashMap<UUID, UUID> expiredOffers = new HashMap<UUID, UUID>();
 		
+		Connection conn = null;
+		
 		try {
-			Statement stmt = plugin.conn.createStatement();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_EXPIRED_OFFERS.prepare(conn);
+			
+			stmt.setTimestamp(1, new Timestamp(new Date().getTime()));
 			
 			ResultSet rs = null;
 			
-			synchronized(offerTableLock){
-				rs = stmt.executeQuery(query);
-			}
+			// Reads spanning many lenders take no row locks.
+			rs = stmt.executeQuery();
 			
 			while(rs.next()){
 				UUID lenderId = UUID.fromString(rs.getString("LenderID"));
@@ -1037,21 +1107,25 @@ public class OfferManager {
 				expiredOffers.put(lenderId, borrowerId);
 			}
 			
+			stmt.close();
+			
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		for(UUID lenderId : expiredOffers.keySet()){
 			
-			removeOffer(lenderId, expiredOffers.get(lenderId));
-			
 			try {
-				Thread.sleep((int)Math.floor(Math.random() * 200));
+				plugin.getPacer().acquire();
 			} catch (InterruptedException e) {
 				return;
 			}
 			
+			removeOffer(lenderId, expiredOffers.get(lenderId));
+			
 		}
 		
 	}
@@ -15,6 +15,9 @@
  * Memberships, CreditHistory, and Trust tables. All methods of this class
  * are thread-safe.
  * 
+ * Entities that have been read are cached for a configurable time, and the
+ * cached copy is replaced whenever this class changes an entity's cash.
+ * 
  * This class handles name and uuid lookups from the Mojang account service
  * using evilmidget38's fetchers. These methods may block, so should not
  * be run from the main thread. In addition, these methods rely on the
@@ -52,11 +55,12 @@
 
 package com.nwmogk.bukkit.loans;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Vector;
@@ -73,7 +77,10 @@ import com.nwmogk.bukkit.evilmidget38.UUIDFetcher;
 import com.nwmogk.bukkit.evilmidget38.NameFetcher;
 import com.nwmogk.bukkit.loans.api.EconResult;
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
+import com.nwmogk.bukkit.loans.api.Money;
 import com.nwmogk.bukkit.loans.api.PlayerType;
+import com.nwmogk.bukkit.loans.database.Query;
+import com.nwmogk.bukkit.loans.database.StripedLock;
 import com.nwmogk.bukkit.loans.object.FinancialInstitution;
 import com.nwmogk.bukkit.loans.object.FinancialPlayer;
 
@@ -81,15 +88,24 @@ public class PlayerManager {
 	
 	private SerenityLoans plugin;
 	
-	// Each table that this class manages has a lock object.
-	private final Object financialEntitiesLock = new Object();
+	// FinancialEntities and Trust rows are guarded by the stripe of their UserID.
+	private final StripedLock entityLocks = new StripedLock();
+	
+	// FinancialInstitutions keeps a table lock because institution names must be
+	// unique across the whole table. Institutions are created rarely.
 	private final Object financialInstitutionsLock = new Object();
 	@SuppressWarnings("unused")
 	private final Object membershipsLock = new Object();
-	private final Object trustLock = new Object();
 	@SuppressWarnings("unused")
 	private final Object creditHistoryLock = new Object();
 	
+	// Entities already built, least recently used first. Guarded by itself.
+	// An entry is only added or replaced while holding the stripe of its
+	// UserID, so a slow read cannot overwrite a newer cash update.
+	private final long entityCacheTtl;
+	private final int entityCacheSize;
+	private final LinkedHashMap<UUID, CachedEntity> entityCache;
+	
 	/**
 	 * Creates a PlayerManager object with the specified plugin reference.
 	 * 
@@ -97,6 +113,16 @@ public class PlayerManager {
 	 */
 	public PlayerManager(SerenityLoans plugin){
 		this.plugin = plugin;
+		
+		entityCacheTtl = Conf.getEntityCacheTtl();
+		entityCacheSize = Conf.getEntityCacheSize();
+		entityCache = new LinkedHashMap<UUID, CachedEntity>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<UUID, CachedEntity> eldest){
+				return size() > entityCacheSize;
+			}
+		};
 	}
 	
 	
@@ -170,12 +196,12 @@ public class PlayerManager {
 			
 			}
 						
-			String update = "INSERT INTO FinancialEntities (UserID, Type, Cash, CreditScore) VALUES (?,?,?,?);";
 			int rowsUpdated = 0;
+			Connection conn = null;
 			
 			try {
-				
-				PreparedStatement stmt = plugin.getConnection().prepareStatement(update);
+				conn = plugin.getConnection();
+				PreparedStatement stmt = Query.INSERT_FINANCIAL_ENTITY.prepare(conn);
 				
 				stmt.setString(1, aPlayer.getUniqueId().toString());
 				stmt.setString(2, "Player");
@@ -192,7 +218,7 @@ public class PlayerManager {
 				stmt.setDouble(3, cash);
 				stmt.setInt(4, crScore);
 				
-				synchronized(financialEntitiesLock){
+				synchronized(entityLocks.get(aPlayer.getUniqueId())){
 					rowsUpdated = stmt.executeUpdate();
 				}
 				
@@ -201,6 +227,8 @@ public class PlayerManager {
 			} catch (SQLException e) {
 				SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 				
+			} finally {
+				plugin.releaseConnection(conn);
 			}
 			
 			// A single row should have been affected by the addition
@@ -309,17 +337,18 @@ public class PlayerManager {
 		if(SerenityLoans.debugLevel > 1)
 			SerenityLoans.log.info(String.format("[%s] Free UUID found: %s", plugin.getDescription().getName(), instituteId.toString()));
 		
-		String fEntityString = String.format("INSERT INTO FinancialEntities (UserID, Type, Cash, CreditScore) VALUES (?, ?, %f, %d);", initialCash, crScore);		
-		String fInstituteString = "INSERT INTO FinancialInstitutions (BankID, Name, Manager) VALUES (?, ?, ?);";
-		
 		boolean success = true;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement ps1 = plugin.conn.prepareStatement(fEntityString);
-			PreparedStatement ps2 = plugin.conn.prepareStatement(fInstituteString);
+			conn = plugin.getConnection();
+			PreparedStatement ps1 = Query.INSERT_FINANCIAL_ENTITY.prepare(conn);
+			PreparedStatement ps2 = Query.INSERT_FINANCIAL_INSTITUTION.prepare(conn);
 			
 			ps1.setString(1, instituteId.toString());
 			ps1.setString(2, type.toString());
+			ps1.setDouble(3, initialCash);
+			ps1.setInt(4, crScore);
 			
 			ps2.setString(1, instituteId.toString());
 			ps2.setString(2, desiredName);
@@ -327,7 +356,7 @@ public class PlayerManager {
 			
 			// I should probably acquire both locks at the same time, but I don't think
 			// a problem is likely.
-			synchronized(financialEntitiesLock){
+			synchronized(entityLocks.get(instituteId)){
 				success &= ps1.executeUpdate() == 1;
 			}
 			
@@ -348,6 +377,8 @@ public class PlayerManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		// Populate the default offer tables.
@@ -360,7 +391,7 @@ public class PlayerManager {
 	 * This method adds the given amount to the specified
 	 * entity. It returns the success of the method. If the
 	 * amount given is negative, then the method will return
-	 * false. This method locks the FinancialEntities table
+	 * false. This method locks the entity's FinancialEntities row
 	 * for the entire execution to ensure memory consistency.
 	 * 
 	 * @param entityId
@@ -374,24 +405,48 @@ public class PlayerManager {
 		if(amount < 0)
 			return new EconResult(0, 0, false, "Amount query is negative!");
 		
-		synchronized(financialEntitiesLock){
-			
-			FinancialEntity entity = getFinancialEntityAdd(entityId);
-			
-			if(entity == null)
-				return new EconResult(0, 0, false, "Entity is not recognized.");
-			
-			String updateSQL = String.format("UPDATE FinancialEntities SET Cash=%f WHERE UserID=%s;", entity.getCash() + amount, entityId.toString());
+		// Players are added before any lock is held, as adding one borrows a connection.
+		if(getFinancialEntityAdd(entityId) == null)
+			return new EconResult(0, 0, false, "Entity is not recognized.");
+		
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
 			
-			try {
-				Statement stmt = plugin.conn.createStatement();
+			synchronized(entityLocks.get(entityId)){
 				
-				if(stmt.executeUpdate(updateSQL) == 1)
-					return new EconResult(amount, entity.getCash() + amount, true, null);
-			} catch (SQLException e) {
-				SerenityLoans.log.severe(e.getMessage());
-				e.printStackTrace();
+				// The new balance is computed from this read, so it must come
+				// from the database rather than the cache.
+				FinancialEntity entity = buildEntity(conn, entityId);
+				
+				if(entity == null)
+					return new EconResult(0, 0, false, "Entity is not recognized.");
+				
+				PreparedStatement stmt = Query.UPDATE_ENTITY_CASH.prepare(conn);
+				
+				long change = Money.fromDouble(amount);
+				long newCash = Money.fromDouble(entity.getCash()) + change;
+				
+				Money.bind(stmt, 1, newCash);
+				stmt.setString(2, entityId.toString());
+				
+				boolean updated = stmt.executeUpdate() == 1;
+				
+				stmt.close();
+				
+				if(updated){
+					cacheEntity(withCash(entity, Money.toDouble(newCash)));
+					return new EconResult(Money.toDouble(change), Money.toDouble(newCash), true, null);
+				}
+				
+				invalidateEntity(entityId);
 			}
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return new EconResult(0, 0, false, "Problem updating database.");
@@ -399,11 +454,12 @@ public class PlayerManager {
 
 	/**
 	 * This method takes an name of a FinancialEntity and locates the appropriate uuid.
-	 * This method performs the call with a Callable object running in a separate 
-	 * thread. This method will block, and should be used with appropriate caution. 
 	 * A check is first performed to see if the given name represents a FinancialInstitution,
-	 * in which case, no unexpected behavior should result. This method will time out
-	 * according to the configuration settings.
+	 * in which case, no unexpected behavior should result. Then the names of players the
+	 * plugin has already seen are checked. Otherwise this method performs the call with a
+	 * Callable object running in a separate thread. This method may block, and should be
+	 * used with appropriate caution. This method will time out according to the
+	 * configuration settings.
 	 * 
 	 * @param entityName The name of the entity to search for.
 	 * @return A uuid corresponding to the given entity name.
@@ -418,6 +474,12 @@ public class PlayerManager {
 		// First perform the FinancialIstitution search
 		UUID result = getFinancialInstituteID(entityName);
 		
+		if(result != null)
+			return result;
+		
+		// Then players the plugin has already seen
+		result = plugin.names.getId(entityName);
+		
 		if(result != null)
 			return result;
 		
@@ -426,16 +488,18 @@ public class PlayerManager {
 		Future<Map<String,UUID>> answer = plugin.threads.submit(fetcher);
 		
 		// Will either get the answer or throw an exception.
-		// No need to return a special value.
-		result = answer.get(Conf.getLookupTimeout(), TimeUnit.MILLISECONDS).get(entityName);
+		// No need to return a special value. The service returns the name
+		// in its own case, so the answer is read back from the cache.
+		plugin.names.learnIds(answer.get(Conf.getLookupTimeout(), TimeUnit.MILLISECONDS));
 		
-		return result;
+		return plugin.names.getId(entityName);
 	}
 
 	/**
 	 * This method takes a UUID that represents a financial entity and attempts to find a name.
-	 * It first checks the list of FinancialInstitutions, and then it checks the online
-	 * Player list. If neither of these searches return a value, then a call to the Mojang
+	 * It first checks the list of FinancialInstitutions, then the online Player list, and
+	 * then the names of players the plugin has already seen. If none of these searches
+	 * return a value, then a call to the Mojang
 	 * account service ensues. his method performs the call with a Callable object running in 
 	 * a separate thread. This method will block, and should be used with appropriate caution.
 	 * This method will time out according to the configuration settings.
@@ -461,14 +525,21 @@ public class PlayerManager {
 		if(player != null)
 			return player.getName();
 		
+		// Then players the plugin has already seen
+		String result = plugin.names.getName(entityID);
+		
+		if(result != null)
+			return result;
+		
 		// Having exhausted the fast calls, use evilmidget38's Fetcher class
 		Callable<Map<UUID,String>> fetcher = new NameFetcher(Arrays.asList(entityID));
 		Future<Map<UUID,String>> answer = plugin.threads.submit(fetcher);
 		
 		// Will give answer or throw exception
-		String result = answer.get(Conf.getLookupTimeout(), TimeUnit.MILLISECONDS).get(entityID);
+		Map<UUID,String> fetched = answer.get(Conf.getLookupTimeout(), TimeUnit.MILLISECONDS);
+		plugin.names.learnNames(fetched);
 		
-		return result;
+		return fetched.get(entityID);
 	}
 
 	/**
@@ -503,7 +574,43 @@ public class PlayerManager {
 	public FinancialEntity getFinancialEntity(UUID userID){
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getFinancialEntity(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
-		return buildEntity(queryFinancialEntitiesTable(userID));
+		
+		if(userID == null)
+			return null;
+		
+		FinancialEntity result = cachedEntity(userID);
+		
+		if(result != null)
+			return result;
+		
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
+			
+			synchronized(entityLocks.get(userID)){
+				// Another thread may have loaded it while this one waited.
+				result = cachedEntity(userID);
+				
+				if(result != null)
+					return result;
+				
+				// Missing entities are not cached, as they are usually added next.
+				result = buildEntity(conn, userID);
+				
+				if(result != null)
+					cacheEntity(result);
+				
+				return result;
+			}
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
+		}
+		
+		return null;
 	}
 	
 	/**
@@ -587,12 +694,13 @@ public class PlayerManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getFinancialInstituteID(String)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
 		
-		String query = "SELECT BankID from FinancialInstitutions WHERE Name=?;";
 		String idString = null;
 		UUID result = null;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.getConnection().prepareStatement(query);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_INSTITUTION_ID_BY_NAME.prepare(conn);
 			
 			stmt.setString(1, entityName);
 			
@@ -618,8 +726,13 @@ public class PlayerManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
+		if(idString == null)
+			return result;
+		
 		result = UUID.fromString(idString);
 		
 		if(SerenityLoans.debugLevel >=2){
@@ -640,7 +753,7 @@ public class PlayerManager {
 	public FinancialInstitution getFinancialInstitution(UUID bankId){
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "getFinancialInstitution(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
-		FinancialEntity result = buildEntity(queryFinancialEntitiesTable(bankId));
+		FinancialEntity result = getFinancialEntity(bankId);
 		if(result != null && result instanceof FinancialInstitution)
 			return (FinancialInstitution) result;
 		return null;
@@ -674,10 +787,11 @@ public class PlayerManager {
 		
 		Vector<UUID> results = new Vector<UUID>();
 		
-		String query = "SELECT BankID FROM FinancialInstitutions WHERE Manager=?;";
+		Connection conn = null;
 		
 		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(query);
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_INSTITUTIONS_BY_MANAGER.prepare(conn);
 			
 			stmt.setString(1, playerID.toString());
 			
@@ -689,9 +803,13 @@ public class PlayerManager {
 				}
 			}
 			
+			stmt.close();
+			
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		if(results.size() == 0)
@@ -792,14 +910,26 @@ public class PlayerManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "inFinancialEntitiesTable(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
 		
-		ResultSet result = queryFinancialEntitiesTable(entityID);
+		if(entityID == null)
+			return false;
+		
 		boolean answer = false;
+		Connection conn = null;
 		
 		try {
-			answer = result.next();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_FINANCIAL_ENTITY.prepare(conn);
+			
+			stmt.setString(1, entityID.toString());
+			
+			answer = queryFinancialEntitiesTable(stmt, entityID).next();
+			
+			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return answer;
@@ -834,19 +964,48 @@ public class PlayerManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "inFinancialInstitutionsTable(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
 		
-		ResultSet result = queryFinancialInstitutionsTable(entityID);
+		if(entityID == null)
+			return false;
+		
 		boolean answer = false;
+		Connection conn = null;
 		
 		try {
-			answer = result.next();
+			conn = plugin.getConnection();
+			PreparedStatement stmt = Query.SELECT_FINANCIAL_INSTITUTION.prepare(conn);
+			
+			stmt.setString(1, entityID.toString());
+			
+			answer = queryFinancialInstitutionsTable(stmt).next();
+			
+			stmt.close();
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return answer;
 	}
 
+	/**
+	 * Drops the cached copy of the given entity, so that the next lookup
+	 * reads it from the database. This should be called after its
+	 * FinancialEntities or FinancialInstitutions row is changed other than
+	 * through this class, such as when its credit score is recalculated.
+	 * 
+	 * @param entityId UUID of the entity to drop.
+	 */
+	public void invalidateEntity(UUID entityId){
+		if(entityId == null)
+			return;
+		
+		synchronized(entityCache){
+			entityCache.remove(entityId);
+		}
+	}
+
 	/**
 	 * This method checks is the first user is ignoring the second input user.
 	 * If there is no entry for this user pair, then it returns false.
@@ -859,15 +1018,16 @@ public class PlayerManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "isIgnoring(UUID, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
 		
-		String ignoreQuery = "SELECT IgnoreOffers FROM Trust WHERE UserID=? AND TargetID=?;";
+		Connection conn = null;
 		
 		try {
-			PreparedStatement ps = plugin.conn.prepareStatement(ignoreQuery);
+			conn = plugin.getConnection();
+			PreparedStatement ps = Query.SELECT_IGNORE_OFFERS.prepare(conn);
 			
 			ps.setString(1, userId.toString());
 			ps.setString(2, targetId.toString());
 			
-			synchronized(trustLock){
+			synchronized(entityLocks.get(userId)){
 				ResultSet ignoreResult = ps.executeQuery();
 				
 				if(ignoreResult.next() && Boolean.valueOf(ignoreResult.getString("IgnoreOffers"))){
@@ -881,6 +1041,8 @@ public class PlayerManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return false;
@@ -900,22 +1062,22 @@ public class PlayerManager {
 		if(SerenityLoans.debugLevel >= 3)
 			SerenityLoans.logInfo(String.format("Entering %s method. %s", "toggleIgnore(UUID, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
 		
-		String querySQL = "SELECT IgnoreOffers FROM Trust WHERE UserID=? AND TargetID=?;";
-		
 		// Default if there isn't an entry already
 		boolean setToIgnore = true;
+		Connection conn = null;
 		
 		try {
-			PreparedStatement ps = plugin.conn.prepareStatement(querySQL);
+			conn = plugin.getConnection();
+			PreparedStatement ps = Query.SELECT_IGNORE_OFFERS.prepare(conn);
 			
 			ps.setString(1, playerId.toString());
 			ps.setString(2, targetId.toString());
 			
-			synchronized(trustLock){
+			synchronized(entityLocks.get(playerId)){
 			
 				ResultSet currentTrust = ps.executeQuery();
 				
-				String updateSQL;
+				PreparedStatement stmt;
 				
 				if(currentTrust.next()){
 					// Already an entry
@@ -923,19 +1085,18 @@ public class PlayerManager {
 					// Switches current state
 					setToIgnore = !Boolean.parseBoolean(currentTrust.getString("IgnoreOffers"));
 					
-					String ignoreString = setToIgnore? "'true'" : "'false'";
-					updateSQL = String.format("UPDATE Trust SET IgnoreOffers=%s WHERE UserID=? AND TargetID=?;",  ignoreString);
+					stmt = Query.UPDATE_IGNORE_OFFERS.prepare(conn);
+					stmt.setString(1, Boolean.toString(setToIgnore));
+					stmt.setString(2, playerId.toString());
+					stmt.setString(3, targetId.toString());
 					
 				} else {
 					// Need to create an entry
-					updateSQL = "INSERT INTO Trust (UserID, TargetID, IgnoreOffers) VALUES (?, ?, 'true');";
+					stmt = Query.INSERT_IGNORE_OFFERS.prepare(conn);
+					stmt.setString(1, playerId.toString());
+					stmt.setString(2, targetId.toString());
 				}
 				
-				PreparedStatement stmt = plugin.conn.prepareStatement(updateSQL);
-				
-				stmt.setString(1, playerId.toString());
-				stmt.setString(2, targetId.toString());
-				
 				stmt.executeUpdate();
 				
 				ps.close();
@@ -944,6 +1105,8 @@ public class PlayerManager {
 		} catch (SQLException e) {
 			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
 			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return setToIgnore;
@@ -954,7 +1117,7 @@ public class PlayerManager {
 	 * This method subtracts the given amount to the specified
 	 * entity. It returns the success of the method. If the
 	 * amount given is negative, then the method will return
-	 * false. This method locks the FinancialEntities table
+	 * false. This method locks the entity's FinancialEntities row
 	 * for the entire execution to ensure memory consistency.
 	 * 
 	 * @param entityId
@@ -968,139 +1131,216 @@ public class PlayerManager {
 		if(amount < 0)
 			return new EconResult(0, 0, false, "Amount query is negative!");
 		
-		synchronized(financialEntitiesLock){
-			
-			FinancialEntity entity = getFinancialEntityAdd(entityId);
-			
-			if(entity == null)
-				return new EconResult(0, 0, false, "Entity is not recognized.");
-			
-			if(amount > entity.getCash())
-				return new EconResult(0, entity.getCash(), false, "Entity does not have sufficient funds.");
-						
-			String updateSQL = String.format("UPDATE FinancialEntities SET Cash=%f WHERE UserID=%s;", entity.getCash() - amount, entityId.toString());
+		// Players are added before any lock is held, as adding one borrows a connection.
+		if(getFinancialEntityAdd(entityId) == null)
+			return new EconResult(0, 0, false, "Entity is not recognized.");
+		
+		Connection conn = null;
+		
+		try {
+			conn = plugin.getConnection();
 			
-			try {
-				Statement stmt = plugin.conn.createStatement();
+			synchronized(entityLocks.get(entityId)){
 				
-				if(stmt.executeUpdate(updateSQL) == 1)
-					return new EconResult(amount, entity.getCash() - amount, true, null);
-			} catch (SQLException e) {
-				SerenityLoans.log.severe(e.getMessage());
-				e.printStackTrace();
+				// The new balance is computed from this read, so it must come
+				// from the database rather than the cache.
+				FinancialEntity entity = buildEntity(conn, entityId);
+				
+				if(entity == null)
+					return new EconResult(0, 0, false, "Entity is not recognized.");
+				
+				if(amount > entity.getCash())
+					return new EconResult(0, entity.getCash(), false, "Entity does not have sufficient funds.");
+				
+				PreparedStatement stmt = Query.UPDATE_ENTITY_CASH.prepare(conn);
+				
+				long change = Money.fromDouble(amount);
+				long newCash = Money.fromDouble(entity.getCash()) - change;
+				
+				Money.bind(stmt, 1, newCash);
+				stmt.setString(2, entityId.toString());
+				
+				boolean updated = stmt.executeUpdate() == 1;
+				
+				stmt.close();
+				
+				if(updated){
+					cacheEntity(withCash(entity, Money.toDouble(newCash)));
+					return new EconResult(Money.toDouble(change), Money.toDouble(newCash), true, null);
+				}
+				
+				invalidateEntity(entityId);
 			}
+		} catch (SQLException e) {
+			SerenityLoans.log.severe(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			plugin.releaseConnection(conn);
 		}
 		
 		return new EconResult(0, 0, false, "Problem updating database.");
 	}
 
 	/*
-	 * Performs entity construction, given a ResultSet of the desired entry
-	 * in the FinancialEntities table. If the result is not a player, it attempts 
-	 * to find the corresponding entry in the FinancialInstitutions table. If one is found, then a 
-	 * FinancialInstitution object is created, if not, then it returns null.
-	 * A Player type will produce a FinancialPlayer object.
+	 * Returns the cached entity for the given UUID, or null if it is not
+	 * cached or was read from the database more than the configured ttl
+	 * ago.
 	 */
-	private FinancialEntity buildEntity(ResultSet successfulQuery){
-		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "buildEntity(ResultSet)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
-		
-		if(successfulQuery == null)
-			return null;
-		
-		try {
-			if(!successfulQuery.next())
-				return null;
+	private FinancialEntity cachedEntity(UUID userID){
+		synchronized(entityCache){
+			CachedEntity cached = entityCache.get(userID);
 			
-			// Collect FinancialEntity information.
-			String userString = successfulQuery.getString("UserID");
-			PlayerType pt = PlayerType.getFromString(successfulQuery.getString("Type"));
-			double cash = successfulQuery.getDouble("Cash");
-			int crScore = successfulQuery.getInt("CreditScore");
-			
-			UUID userID = UUID.fromString(userString);
-			
-			// Make FinancialPlayer object if that's what it is.
-			if(pt.equals(PlayerType.PLAYER))
-				return new FinancialPlayer(userID, pt, cash, crScore);
-			
-			// Get FinancialInstitution info if it exists.
-			ResultSet instituteQuery = queryFinancialInstitutionsTable(userID);
-				
-			if(instituteQuery == null || !instituteQuery.next())
+			if(cached == null)
 				return null;
-				
-			String name = instituteQuery.getString("Name");
-			String managerString = instituteQuery.getString("Manager");
-			
-			UUID managerID = UUID.fromString(managerString);
 			
-			// Make FinancialInstitution object.
-			return new FinancialInstitution(userID, name, pt, managerID, cash, crScore);
+			if(System.currentTimeMillis() - cached.loadedAt >= entityCacheTtl){
+				entityCache.remove(userID);
+				return null;
+			}
 			
-		} catch (SQLException e) {
-			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
-			e.printStackTrace();
+			return cached.entity;
 		}
+	}
+
+	/*
+	 * Stores the entity as the current copy of its row. Callers must hold
+	 * the stripe of its UserID.
+	 */
+	private void cacheEntity(FinancialEntity entity){
+		if(entityCacheTtl <= 0 || entityCacheSize <= 0)
+			return;
 		
-		return null;
+		synchronized(entityCache){
+			entityCache.put(entity.getUserID(), new CachedEntity(entity, System.currentTimeMillis()));
+		}
+	}
+
+	/*
+	 * Returns a copy of the given entity holding the given cash balance.
+	 */
+	private static FinancialEntity withCash(FinancialEntity entity, double cash){
+		if(entity instanceof FinancialInstitution){
+			FinancialInstitution bank = (FinancialInstitution) entity;
+			return new FinancialInstitution(bank.getUserID(), bank.getName(), bank.getPlayerType(), bank.getResponsibleParty(), cash, bank.getCreditScore());
+		}
+		
+		return new FinancialPlayer(entity.getUserID(), entity.getPlayerType(), cash, entity.getCreditScore());
 	}
 
 	/*
-	 * Performs a SQL query on the FinancialEntities table for the given UUID
-	 * are returns a result set containing every column of that entry. The
-	 * ResultSet may be empty if it was not found.
+	 * Performs entity construction for the given UUID. The entry in the 
+	 * FinancialEntities table is read, and if the result is not a player, it 
+	 * attempts to find the corresponding entry in the FinancialInstitutions 
+	 * table using the same connection. If one is found, then a 
+	 * FinancialInstitution object is created, if not, then it returns null.
+	 * A Player type will produce a FinancialPlayer object. The caller 
+	 * borrows the connection, before taking the entity's stripe.
 	 */
-	private ResultSet queryFinancialEntitiesTable(UUID userID){
+	private FinancialEntity buildEntity(Connection conn, UUID userID) throws SQLException {
 		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "queryFinancialEntitiesTable(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "buildEntity(Connection, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
+		
+		PreparedStatement entityStmt = Query.SELECT_FINANCIAL_ENTITY.prepare(conn);
+		entityStmt.setString(1, userID.toString());
+		
+		ResultSet entityQuery = queryFinancialEntitiesTable(entityStmt, userID);
 		
-		if(userID==null)
+		if(!entityQuery.next()){
+			entityStmt.close();
 			return null;
+		}
 		
-		String entitySearch = "SELECT * from FinancialEntities WHERE UserID=?;";
-		ResultSet result = null;
+		// Collect FinancialEntity information.
+		PlayerType pt = PlayerType.getFromString(entityQuery.getString("Type"));
+		double cash = entityQuery.getDouble("Cash");
+		int crScore = entityQuery.getInt("CreditScore");
 		
-		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(entitySearch);
-			stmt.setString(1, userID.toString());
-			synchronized(financialEntitiesLock){
-				result = stmt.executeQuery();
-			}
-		} catch (SQLException e) {
-			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
-			e.printStackTrace();
+		entityStmt.close();
+		
+		// Make FinancialPlayer object if that's what it is.
+		if(pt.equals(PlayerType.PLAYER))
+			return new FinancialPlayer(userID, pt, cash, crScore);
+		
+		// Get FinancialInstitution info if it exists.
+		PreparedStatement instituteStmt = Query.SELECT_FINANCIAL_INSTITUTION.prepare(conn);
+		instituteStmt.setString(1, userID.toString());
+		
+		ResultSet instituteQuery = queryFinancialInstitutionsTable(instituteStmt);
+			
+		if(!instituteQuery.next()){
+			instituteStmt.close();
+			return null;
 		}
+			
+		String name = instituteQuery.getString("Name");
+		String managerString = instituteQuery.getString("Manager");
 		
-		return result;
+		instituteStmt.close();
+		
+		UUID managerID = UUID.fromString(managerString);
+		
+		// Make FinancialInstitution object.
+		return new FinancialInstitution(userID, name, pt, managerID, cash, crScore);
 	}
 
 	/*
-	 * Performs a SQL query on the FinancialInstitutions table for the given UUID
-	 * are returns a result set containing every column of that entry. The
-	 * ResultSet may be empty if it was not found.
+	 * Builds an entity from columns already read, for example by a joined
+	 * query. Name and manager come from FinancialInstitutions and are null
+	 * for players. Like buildEntity(), a non-player without an institution
+	 * row produces null.
 	 */
-	private ResultSet queryFinancialInstitutionsTable(UUID userID){
-		if(SerenityLoans.debugLevel >= 3)
-			SerenityLoans.logInfo(String.format("Entering %s method. %s", "queryFinancialInstitutionsTable(UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
-		if(userID==null)
+	static FinancialEntity entityFromColumns(UUID userID, String type, double cash, int crScore, String name, String manager){
+		if(userID == null || type == null)
 			return null;
 		
-		String entitySearch = "SELECT * from FinancialInstitutions WHERE BankID=?;";
-		ResultSet result = null;
+		PlayerType pt = PlayerType.getFromString(type);
 		
-		try {
-			PreparedStatement stmt = plugin.conn.prepareStatement(entitySearch);
-			stmt.setString(1, userID.toString());
-			synchronized(financialInstitutionsLock){
-				result = stmt.executeQuery();
-			}
-		} catch (SQLException e) {
-			SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
-			e.printStackTrace();
+		if(pt.equals(PlayerType.PLAYER))
+			return new FinancialPlayer(userID, pt, cash, crScore);
+		
+		if(name == null)
+			return null;
+		
+		return new FinancialInstitution(userID, name, pt, manager == null? null : UUID.fromString(manager), cash, crScore);
+	}
+
+	/*
+	 * Executes a prepared lookup on the FinancialEntities table while holding
+	 * the row lock for the given UserID. The statement must already have the
+	 * UserID bound. The ResultSet may be empty if it was not found.
+	 */
+	private ResultSet queryFinancialEntitiesTable(PreparedStatement stmt, UUID userID) throws SQLException {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "queryFinancialEntitiesTable(PreparedStatement, UUID)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
+		
+		synchronized(entityLocks.get(userID)){
+			return stmt.executeQuery();
 		}
+	}
+
+	/*
+	 * Executes a prepared lookup on the FinancialInstitutions table while 
+	 * holding the table lock. The statement must already have the BankID 
+	 * bound. The ResultSet may be empty if it was not found.
+	 */
+	private ResultSet queryFinancialInstitutionsTable(PreparedStatement stmt) throws SQLException {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "queryFinancialInstitutionsTable(PreparedStatement)", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : ""));
 		
-		return result;
+		synchronized(financialInstitutionsLock){
+			return stmt.executeQuery();
+		}
+	}
+	
+	private static class CachedEntity {
+		
+		private final FinancialEntity entity;
+		private final long loadedAt;
+		
+		private CachedEntity(FinancialEntity entity, long loadedAt){
+			this.entity = entity;
+			this.loadedAt = loadedAt;
+		}
 	}
 
 }
@@ -12,7 +12,8 @@
  * point for command handling. This class passes most operational functions
  * to other classes in the package. It facilitates communication between
  * these functional classes by provides protected objects. This class sets
- * up a mySQL database and builds the necessary tables.
+ * up the configured database backend (MySQL or embedded SQLite) and builds 
+ * the necessary tables.
  * 
  * 
  * ========================================================================
@@ -47,19 +48,32 @@
 package com.nwmogk.bukkit.loans;
 
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.*;
 import org.bukkit.scheduler.BukkitRunnable;
 
+import com.nwmogk.bukkit.loans.api.Money;
 import com.nwmogk.bukkit.loans.api.PlayerType;
+import com.nwmogk.bukkit.loans.command.InfoHandler;
 import com.nwmogk.bukkit.loans.command.LoanHandler;
+import com.nwmogk.bukkit.loans.database.ConnectionPool;
+import com.nwmogk.bukkit.loans.database.MySqlBackend;
+import com.nwmogk.bukkit.loans.database.Query;
+import com.nwmogk.bukkit.loans.database.QueryStats;
+import com.nwmogk.bukkit.loans.database.SchemaIndex;
+import com.nwmogk.bukkit.loans.database.SchemaMigrator;
+import com.nwmogk.bukkit.loans.database.SqliteBackend;
+import com.nwmogk.bukkit.loans.database.StorageBackend;
 import com.nwmogk.bukkit.loans.exception.DatabaseVersionMismatchException;
 import com.nwmogk.bukkit.loans.listener.PlayerLoginListener;
 
+import java.io.File;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
@@ -70,18 +84,22 @@ public final class SerenityLoans extends JavaPlugin {
 	
     // Incrementing these numbers will force a rebuild of the database.
     public static final int dbMajorVersion = 0;
-    public static final int dbMinorVersion = 6;
+    public static final int dbMinorVersion = 13;
     
     private static SerenityLoans plugin;
 	
     public static int debugLevel;
     
-    public Connection conn = null;
+    private StorageBackend storage = null;
+    private ConnectionPool pool = null;
+    private BackgroundPacer pacer = null;
     
     public PlayerManager playerManager;
+    public NameCache names;
     public EconomyManager econ;
 	public LoanManager loanManager;
 	public OfferManager offerManager;
+	public AsyncDataAccess data;
 	
 	public ExecutorService threads;
     
@@ -102,44 +120,24 @@ public final class SerenityLoans extends JavaPlugin {
 		if(debugLevel >= 4)
 			logInfo("Main thread ID: " + Thread.currentThread().getId() + ".");
 		
-		String squrl = "jdbc:mysql://";
+		if(getConfig().contains("economy.currency.fractional-digits"))
+			Money.setFractionalDigits(getConfig().getInt("economy.currency.fractional-digits"));
 		
-		if(getConfig().contains("mysql.host") && getConfig().contains("mysql.port") && getConfig().contains("mysql.databasename")){
-			squrl += getConfig().getString("mysql.host");
-			squrl += ":" + getConfig().getString("mysql.port");
-			squrl += "/" + getConfig().getString("mysql.databasename");
-		}
-		else {
+		storage = buildStorageBackend();
+		
+		if(storage == null){
 			logFail("Database configuration info not found, disabling...");
 			getServer().getPluginManager().disablePlugin(this);
 			return;
 		}
 		
-		if(getConfig().contains("mysql.username") || getConfig().contains("mysql.password")){
-			squrl += "?";
-			if(debugLevel >= 1)
-				logInfo("Using username and password info.");
-		}
-		
-		if(getConfig().contains("mysql.username")){
-			squrl += "user=" + getConfig().getString("mysql.username") + (getConfig().contains("mysql.password")?"&":"");
-			if(debugLevel >= 2)
-				logInfo("Username given.");
-		}
-		if(getConfig().contains("mysql.password")){
-			squrl += "password=" + getConfig().getString("mysql.password");
-			if(debugLevel >= 2)
-				logInfo("Password given.");
-		}
-		
 		if(debugLevel >= 2)
 			logInfo("Database configuration loaded. Setting up...");
 		
 		try {
-			conn = DriverManager.getConnection(squrl);
-			
-			if(conn == null)
-				throw new SQLException("conn null.");
+			storage.loadDriver();
+			pool = buildConnectionPool(storage);
+			pool.start();
 		} catch (SQLException e) {
 			if(debugLevel >=2)
 				logFail(e.getMessage());
@@ -155,6 +153,12 @@ public final class SerenityLoans extends JavaPlugin {
 		try {
 			if(buildRequired())
 				setupTables();
+			
+			if(!isEnabled())
+				return;
+			
+			checkIndexes();
+			reserveArchivedKeys();
 		} catch (SQLException e) {
 			if(debugLevel >=2)
 				logFail(e.getMessage());
@@ -169,6 +173,15 @@ public final class SerenityLoans extends JavaPlugin {
 		}
 		
 		
+		names = new NameCache(this, Conf.getNameCacheTtl());
+		int knownNames = names.load();
+		
+		if(debugLevel >= 2)
+			logInfo(String.format("Loaded %d player names.", knownNames));
+		
+		for(Player aPlayer : getServer().getOnlinePlayers())
+			names.learn(aPlayer.getUniqueId(), aPlayer.getName());
+		
 		// Attempt to add online players to the loan system.
 		if(debugLevel >= 1)
 			logInfo("Attempting to add players to the system...");
@@ -198,6 +211,7 @@ public final class SerenityLoans extends JavaPlugin {
         }
 		
 		loanManager = new LoanManager(this);
+		data = new AsyncDataAccess(this);
 //        setupPermissions();
 //        setupChat();
 		
@@ -207,11 +221,24 @@ public final class SerenityLoans extends JavaPlugin {
 			logInfo("Setting command handlers.");
 		
 		getCommand("loan").setExecutor(new LoanHandler(this));
+		getCommand("serenityloans").setExecutor(new InfoHandler(this));
 		
 		if(debugLevel >= 2)
 			logInfo("Scheduling repeating upates.");
+		
+		pacer = buildPacer();
+		getServer().getScheduler().runTaskTimer(this, new BukkitRunnable(){public void run(){pacer.tick();}}, 1, 1);
+		
+		if(Conf.useTimedEvents() && !loanManager.startScheduler())
+			logWarn("Unable to load scheduled loan events. Falling back to checking every loan on each update.");
 
         getServer().getScheduler().runTaskTimerAsynchronously(this, new BukkitRunnable(){public void run(){loanManager.updateAll();offerManager.updateAll();}}, 0, Conf.getUpdateTime());
+        
+        // Times are in milliseconds and the scheduler counts ticks of 50 ms
+        long compaction = Conf.getCompactionPeriod() / 50;
+        
+        if(compaction > 0)
+        	getServer().getScheduler().runTaskTimerAsynchronously(this, new BukkitRunnable(){public void run(){loanManager.compactEvents();loanManager.archiveClosedLoans();}}, compaction, compaction);
 	}
 	
 	public void onDisable(){
@@ -219,17 +246,150 @@ public final class SerenityLoans extends JavaPlugin {
 		threads.shutdown();
 		this.getServer().getScheduler().cancelTasks(this);
 		
-		try {
-			if(conn != null)
-				conn.close();
-		} catch (SQLException e) {
-			logFail(e.getMessage());
+		if(pool != null)
+			pool.shutdown();
+		
+	}
+	
+	/*
+	 * Reads the storage section of the configuration and returns the selected
+	 * backend, or null if the configuration is incomplete. MySQL is used when
+	 * no storage type is given.
+	 */
+	private StorageBackend buildStorageBackend(){
+		String type = "mysql";
+		
+		if(getConfig().contains("storage.type") && getConfig().isString("storage.type"))
+			type = getConfig().getString("storage.type");
+		
+		if(type.equalsIgnoreCase("sqlite")){
+			String fileName = "loans.db";
+			long busyTimeout = 5000;
+			
+			if(getConfig().contains("storage.sqlite.file") && getConfig().isString("storage.sqlite.file"))
+				fileName = getConfig().getString("storage.sqlite.file");
+			
+			if(getConfig().contains("storage.sqlite.busy-timeout") && getConfig().isString("storage.sqlite.busy-timeout"))
+				busyTimeout = Conf.parseTime(getConfig().getString("storage.sqlite.busy-timeout"));
+			
+			if(fileName.equals(SqliteBackend.IN_MEMORY))
+				return new SqliteBackend(null, busyTimeout);
+			
+			File dbFile = new File(fileName);
+			if(!dbFile.isAbsolute())
+				dbFile = new File(getDataFolder(), fileName);
+			
+			if(debugLevel >= 2)
+				logInfo("Using SQLite database " + dbFile.getPath() + ".");
+			
+			return new SqliteBackend(dbFile, busyTimeout);
+		}
+		
+		if(!type.equalsIgnoreCase("mysql"))
+			logWarn(String.format("Unknown storage type %s. Using mysql.", type));
+		
+		if(!(getConfig().contains("mysql.host") && getConfig().contains("mysql.port") && getConfig().contains("mysql.databasename")))
+			return null;
+		
+		String username = null;
+		String password = null;
+		
+		if(getConfig().contains("mysql.username") || getConfig().contains("mysql.password")){
+			if(debugLevel >= 1)
+				logInfo("Using username and password info.");
 		}
 		
+		if(getConfig().contains("mysql.username")){
+			username = getConfig().getString("mysql.username");
+			if(debugLevel >= 2)
+				logInfo("Username given.");
+		}
+		if(getConfig().contains("mysql.password")){
+			password = getConfig().getString("mysql.password");
+			if(debugLevel >= 2)
+				logInfo("Password given.");
+		}
+		
+		return new MySqlBackend(getConfig().getString("mysql.host"), getConfig().getString("mysql.port"), getConfig().getString("mysql.databasename"), username, password);
+	}
+	
+	private ConnectionPool buildConnectionPool(StorageBackend backend){
+		int minConnections = 2;
+		int maxConnections = 10;
+		String validationQuery = "SELECT 1";
+		long idleTimeout = 600000;
+		long leakThreshold = 60000;
+		long connectionTimeout = 30000;
+		int statementCacheSize = 64;
+		boolean collectStats = true;
+		long slowQueryThreshold = 1000;
+		
+		if(getConfig().contains("mysql.pool.min-connections") && getConfig().isInt("mysql.pool.min-connections"))
+			minConnections = getConfig().getInt("mysql.pool.min-connections");
+		
+		if(getConfig().contains("mysql.pool.max-connections") && getConfig().isInt("mysql.pool.max-connections"))
+			maxConnections = getConfig().getInt("mysql.pool.max-connections");
+		
+		if(getConfig().contains("mysql.pool.validation-query") && getConfig().isString("mysql.pool.validation-query"))
+			validationQuery = getConfig().getString("mysql.pool.validation-query");
+		
+		if(getConfig().contains("mysql.pool.idle-timeout") && getConfig().isString("mysql.pool.idle-timeout"))
+			idleTimeout = Conf.parseTime(getConfig().getString("mysql.pool.idle-timeout"));
+		
+		if(getConfig().contains("mysql.pool.leak-detection-threshold") && getConfig().isString("mysql.pool.leak-detection-threshold"))
+			leakThreshold = Conf.parseTime(getConfig().getString("mysql.pool.leak-detection-threshold"));
+		
+		if(getConfig().contains("mysql.pool.connection-timeout") && getConfig().isString("mysql.pool.connection-timeout"))
+			connectionTimeout = Conf.parseTime(getConfig().getString("mysql.pool.connection-timeout"));
+		
+		if(getConfig().contains("mysql.pool.statement-cache-size") && getConfig().isInt("mysql.pool.statement-cache-size"))
+			statementCacheSize = getConfig().getInt("mysql.pool.statement-cache-size");
+		
+		if(getConfig().contains("mysql.pool.query-stats") && getConfig().isBoolean("mysql.pool.query-stats"))
+			collectStats = getConfig().getBoolean("mysql.pool.query-stats");
+		
+		if(getConfig().contains("mysql.pool.slow-query-threshold") && getConfig().isString("mysql.pool.slow-query-threshold"))
+			slowQueryThreshold = Conf.parseTime(getConfig().getString("mysql.pool.slow-query-threshold"));
+		
+		maxConnections = backend.maxConnections(maxConnections);
+		minConnections = Math.min(minConnections, maxConnections);
+		
+		if(debugLevel >= 2)
+			logInfo(String.format("%s connection pool configured for %d to %d connections.", backend.getName(), minConnections, maxConnections));
+		
+		return new ConnectionPool(backend.getUrl(), minConnections, maxConnections, validationQuery, idleTimeout, leakThreshold, connectionTimeout, statementCacheSize, backend.getInitStatements(), collectStats? new QueryStats(slowQueryThreshold) : null);
 	}
 	
 
 
+	private BackgroundPacer buildPacer(){
+		double minRate = 5;
+		double maxRate = 500;
+		long targetTick = 55;
+		long targetQuery = 20;
+		
+		if(getConfig().contains("options.pacing.min-rate") && getConfig().isDouble("options.pacing.min-rate"))
+			minRate = getConfig().getDouble("options.pacing.min-rate");
+		else if(getConfig().contains("options.pacing.min-rate") && getConfig().isInt("options.pacing.min-rate"))
+			minRate = getConfig().getInt("options.pacing.min-rate");
+		
+		if(getConfig().contains("options.pacing.max-rate") && getConfig().isDouble("options.pacing.max-rate"))
+			maxRate = getConfig().getDouble("options.pacing.max-rate");
+		else if(getConfig().contains("options.pacing.max-rate") && getConfig().isInt("options.pacing.max-rate"))
+			maxRate = getConfig().getInt("options.pacing.max-rate");
+		
+		if(getConfig().contains("options.pacing.target-tick-millis") && getConfig().isInt("options.pacing.target-tick-millis"))
+			targetTick = getConfig().getInt("options.pacing.target-tick-millis");
+		
+		if(getConfig().contains("options.pacing.target-query-millis") && getConfig().isInt("options.pacing.target-query-millis"))
+			targetQuery = getConfig().getInt("options.pacing.target-query-millis");
+		
+		if(debugLevel >= 2)
+			logInfo(String.format("Background updates paced between %.1f and %.1f per second.", minRate, Math.max(minRate, maxRate)));
+		
+		return new BackgroundPacer(minRate, maxRate, targetTick, targetQuery, pool == null? null : pool.getQueryStats());
+	}
+
 //	 private boolean setupChat() {
 //	     RegisteredServiceProvider<Chat> rsp = getServer().getServicesManager().getRegistration(Chat.class);
 //	     chat = rsp.getProvider();
@@ -243,35 +403,37 @@ public final class SerenityLoans extends JavaPlugin {
 //	 }
 	 
 	 private boolean buildRequired() throws SQLException, DatabaseVersionMismatchException{
-		 Statement statement = null;
+		 Connection conn = null;
 		 
 		 try{
-			statement = conn.createStatement();
+			conn = getConnection();
 			
-			ResultSet tables = statement.executeQuery("SHOW Tables;");
+			List<String> tables = storage.listTables(conn);
 			
-			if(!tables.next()){
+			if(tables.isEmpty()){
 				return true;
 			}
 			
 			boolean hasInfo = false;
 			
-			hasInfo |= tables.getString(1).equalsIgnoreCase("Info");
-			while(tables.next())
-				hasInfo |= tables.getString(1).equalsIgnoreCase("Info");
+			for(String table : tables)
+				hasInfo |= table.equalsIgnoreCase("Info");
 			
 			if(!hasInfo)
 				throw new DatabaseVersionMismatchException("Info table missing!");
 			
-			ResultSet version = statement.executeQuery("SELECT * FROM Info;");
+			int batchSize = 1000;
+			if(getConfig().contains("storage.migration-batch-size") && getConfig().isInt("storage.migration-batch-size"))
+				batchSize = Math.max(1, getConfig().getInt("storage.migration-batch-size"));
 			
-			version.next();
+			int decimals = 2;
+			if(getConfig().contains("economy.currency.fractional-digits"))
+				decimals = getConfig().getInt("economy.currency.fractional-digits");
 			
-			if(version.getInt("DBMajor") != dbMajorVersion || version.getInt("DBMinor") != dbMinorVersion){
-				String ruhroh = "DB Version mismatch. V" + version.getInt("DBMajor") + "." + version.getInt("DBMinor")
-						+ " needs V" + dbMajorVersion + "." + dbMinorVersion + ".";
-				throw new DatabaseVersionMismatchException(ruhroh);
-			}
+			SchemaMigrator migrator = new SchemaMigrator(storage, batchSize, decimals);
+			
+			if(migrator.migrate(conn, dbMajorVersion, dbMinorVersion) > 0 && debugLevel >= 1)
+				logInfo("Database migrated successfully.");
 			
 		 } catch (SQLException e) {
 			 if(debugLevel >=2)
@@ -279,7 +441,7 @@ public final class SerenityLoans extends JavaPlugin {
 				
 			 throw e;
 		 } finally {
-			 if(statement != null){statement.close();}
+			 releaseConnection(conn);
 		 }
 		 
 		 return false;
@@ -315,10 +477,10 @@ public final class SerenityLoans extends JavaPlugin {
 				 "CREATE TABLE FinancialEntities"
 					+ "(" 
 					+ "UserID varchar(36) NOT NULL,"
-					+ "Type ENUM('Player','Bank','CreditUnion','Town/Faction','Employer') NOT NULL DEFAULT 'Player',"
+					+ "Type " + storage.enumType("Player", "Bank", "CreditUnion", "Town/Faction", "Employer") + " NOT NULL DEFAULT 'Player',"
 					+ "Cash DECIMAL(10," + decimals +"),"
 					+ "CreditScore int DEFAULT "+ defaultCreditScore + ","
-					+ "LastSystemUse TIMESTAMP NOT NULL DEFAULT NOW() ON UPDATE NOW(),"
+					+ "LastSystemUse TIMESTAMP NOT NULL DEFAULT " + storage.now() + storage.onUpdateNow() + ","
 					+ "PRIMARY KEY (UserID)"
 					+ ");";
 		 
@@ -335,13 +497,22 @@ public final class SerenityLoans extends JavaPlugin {
 				 	+ ");";
 		 
 		
+		 String playerNamesTable = 
+				 "CREATE TABLE PlayerNames"
+				 	+ "("
+				 	+ "UserID varchar(36) NOT NULL,"
+				 	+ "Name varchar(16) NOT NULL,"
+				 	+ "LastSeen TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+				 	+ "PRIMARY KEY (UserID)"
+				 	+ ");";
+		 
 		 String trustTable = 
 				 "CREATE TABLE Trust"
 				 	+ "("
 				 	+ "UserID varchar(36) NOT NULL,"
 				 	+ "TargetID varchar(36) NOT NULL,"
 				 	+ "TrustLevel int NOT NULL DEFAULT 0,"
-				 	+ "IgnoreOffers ENUM('true','false') NOT NULL DEFAULt 'false',"
+				 	+ "IgnoreOffers " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
 				 	+ "CONSTRAINT uc_relationID PRIMARY KEY (UserID,TargetID),"
 				 	+ "FOREIGN KEY (UserID) REFERENCES FinancialEntities(UserID),"
 				 	+ "FOREIGN KEY (TargetID) REFERENCES FinancialEntities(UserID)"
@@ -351,14 +522,13 @@ public final class SerenityLoans extends JavaPlugin {
 		 String creditHistoryTable = 
 				 "CREATE TABLE CreditHistory"
 				 	+ "("
-				 	+ "ItemID int NOT NULL AUTO_INCREMENT,"
+				 	+ "ItemID " + storage.autoIncrementType() + ","
 				 	+ "UserID varchar(36) NOT NULL,"
-				 	+ "EventType ENUM('Bankruptcy','Payment','MinPayment','MissedPayment','Payoff','LoanStart') NOT NULL,"
+				 	+ "EventType " + storage.enumType("Bankruptcy", "Payment", "MinPayment", "MissedPayment", "Payoff", "LoanStart") + " NOT NULL,"
 				 	+ "ScoreValue double NOT NULL,"
 				 	+ "Parameter double NOT NULL DEFAULT " + dissipationFactor + ","
 				 	+ "Notes TEXT,"
-				 	+ "EventTime TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,"
-				 	+ "PRIMARY KEY (ItemID),"
+				 	+ "EventTime TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
 				 	+ "FOREIGN KEY (UserID) REFERENCES FinancialEntities(UserID)"
 				 	+ ");";
 		 
@@ -376,18 +546,18 @@ public final class SerenityLoans extends JavaPlugin {
 		 String loanTable = 
 				 "CREATE TABLE Loans"
 				 	+ "("
-				 	+ "LoanID int NOT NULL AUTO_INCREMENT,"
+				 	+ "LoanID " + storage.autoIncrementType() + ","
 				 	+ "LenderID varchar(36) NOT NULL,"
 				 	+ "BorrowerID varchar(36) NOT NULL,"
 				 	+ "Terms int NOT NULL,"
-				 	+ "AutoPay ENUM('true','false') NOT NULL DEFAULT 'false',"
+				 	+ "AutoPay " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
 					+ "Balance DECIMAL(9," + decimals + ") NOT NULL,"
 				 	+ "InterestBalance DECIMAL(9," + decimals + ") DEFAULT 0.0,"
 				 	+ "FeeBalance DECIMAL(9," + decimals + ") DEFAULT 0.0,"
-				 	+ "StartDate TIMESTAMP NOT NULL DEFAULT NOW(),"
+				 	+ "StartDate TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
 				 	+ "LastUpdate TIMESTAMP NULL,"
-				 	+ "Open ENUM('true', 'false') NOT NULL DEFAULT 'true',"
-				 	+ "PRIMARY KEY (LoanID),"
+				 	+ "NextEventTime TIMESTAMP NULL,"
+				 	+ "Open " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'true',"
 				 	+ "FOREIGN KEY (LenderID) REFERENCES FinancialEntities (UserID),"
 				 	+ "FOREIGN KEY (BorrowerID) REFERENCES FinancialEntities (UserID),"
 				 	+ "FOREIGN KEY (Terms) REFERENCES PreparedOffers (OfferID)"
@@ -396,20 +566,43 @@ public final class SerenityLoans extends JavaPlugin {
 		 String loanEventsTable = 
 				 "CREATE TABLE LoanEvents"
 				 	+ "("
-				 	+ "LoanEventID int NOT NULL AUTO_INCREMENT,"
+				 	+ "LoanEventID " + storage.autoIncrementType() + ","
 				 	+ "LoanID int NOT NULL,"
-				 	+ "EventTime TIMESTAMP NOT NULL DEFAULT NOW(),"
-				 	+ "EventType ENUM('AccrueInterest','CompoundInterest','ServiceFee','LateFee','PaymentDue','PaymentMade','StatementOut','Open','Close','ExtraPrincipalPaid','ExtraInterestPaid','ExtraFeesPaid') NOT NULL,"
+				 	+ "EventTime TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+				 	+ "EventType " + storage.enumType("AccrueInterest", "CompoundInterest", "ServiceFee", "LateFee", "PaymentDue", "PaymentMade", "StatementOut", "Open", "Close", "ExtraPrincipalPaid", "ExtraInterestPaid", "ExtraFeesPaid") + " NOT NULL,"
 				 	+ "Amount DECIMAL(9,"+ decimals + "),"
-				 	+ "Executed ENUM('true', 'false') NOT NULL DEFAULT 'false',"
-				 	+ "PRIMARY KEY (LoanEventID),"
+				 	+ "Executed " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
+				 	+ "FOREIGN KEY (LoanID) REFERENCES Loans (LoanID)"
+				 	+ ");";
+		 
+		 String loanSnapshotsTable = 
+				 "CREATE TABLE LoanSnapshots"
+				 	+ "("
+				 	+ "LoanID int NOT NULL,"
+				 	+ "SnapshotTime TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+				 	+ "Balance DECIMAL(9," + decimals + ") NOT NULL,"
+				 	+ "InterestBalance DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+				 	+ "FeeBalance DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+				 	+ "PRIMARY KEY (LoanID),"
 				 	+ "FOREIGN KEY (LoanID) REFERENCES Loans (LoanID)"
 				 	+ ");";
 		 
+		 String loanEventsArchiveTable = 
+				 "CREATE TABLE LoanEventsArchive"
+				 	+ "("
+				 	+ "LoanEventID int NOT NULL,"
+				 	+ "LoanID int NOT NULL,"
+				 	+ "EventTime TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+				 	+ "EventType " + storage.enumType("AccrueInterest", "CompoundInterest", "ServiceFee", "LateFee", "PaymentDue", "PaymentMade", "StatementOut", "Open", "Close", "ExtraPrincipalPaid", "ExtraInterestPaid", "ExtraFeesPaid") + " NOT NULL,"
+				 	+ "Amount DECIMAL(9,"+ decimals + "),"
+				 	+ "Executed " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'true',"
+				 	+ "PRIMARY KEY (LoanEventID)"
+				 	+ ");";
+		 
 		 String paymentStatementsTable = 
 				 "CREATE TABLE PaymentStatements"
 				 	+ "("
-				 	+ "StatementID int NOT NULL AUTO_INCREMENT,"
+				 	+ "StatementID " + storage.autoIncrementType() + ","
 				 	+ "LoanID int NOT NULL,"
 				 	+ "BillAmount DECIMAL(9," + decimals + ") NOT NULL,"
 				 	+ "Minimum DECIMAL(9," + decimals + ") NOT NULL,"
@@ -419,14 +612,48 @@ public final class SerenityLoans extends JavaPlugin {
 				 	+ "AdditionalPrincipal DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
 				 	+ "AdditionalInterest DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
 				 	+ "AdditionalFees DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
-				 	+ "PRIMARY KEY (StatementID),"
 				 	+ "FOREIGN KEY (LoanID) REFERENCES Loans (LoanID)"
 				 	+ ");";
 		 
+		 String loansArchiveTable = 
+				 "CREATE TABLE LoansArchive"
+				 	+ "("
+				 	+ "LoanID int NOT NULL,"
+				 	+ "LenderID varchar(36) NOT NULL,"
+				 	+ "BorrowerID varchar(36) NOT NULL,"
+				 	+ "Terms int NOT NULL,"
+				 	+ "AutoPay " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
+					+ "Balance DECIMAL(9," + decimals + ") NOT NULL,"
+				 	+ "InterestBalance DECIMAL(9," + decimals + ") DEFAULT 0.0,"
+				 	+ "FeeBalance DECIMAL(9," + decimals + ") DEFAULT 0.0,"
+				 	+ "StartDate TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+				 	+ "LastUpdate TIMESTAMP NULL,"
+				 	+ "NextEventTime TIMESTAMP NULL,"
+				 	+ "Open " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
+				 	+ "PRIMARY KEY (LoanID),"
+				 	+ "FOREIGN KEY (Terms) REFERENCES PreparedOffers (OfferID)"
+				 	+ ");";
+		 
+		 String paymentStatementsArchiveTable = 
+				 "CREATE TABLE PaymentStatementsArchive"
+				 	+ "("
+				 	+ "StatementID int NOT NULL,"
+				 	+ "LoanID int NOT NULL,"
+				 	+ "BillAmount DECIMAL(9," + decimals + ") NOT NULL,"
+				 	+ "Minimum DECIMAL(9," + decimals + ") NOT NULL,"
+				 	+ "StatementDate TIMESTAMP DEFAULT 0,"
+				 	+ "DueDate TIMESTAMP DEFAULT 0,"
+				 	+ "BillAmountPaid DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+				 	+ "AdditionalPrincipal DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+				 	+ "AdditionalInterest DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+				 	+ "AdditionalFees DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+				 	+ "PRIMARY KEY (StatementID)"
+				 	+ ");";
+		 
 		 String preparedOffersTable = 
 				 "CREATE TABLE PreparedOffers"
 				 	+ "("
-				 	+ "OfferID int NOT NULL AUTO_INCREMENT,"
+				 	+ "OfferID " + storage.autoIncrementType() + ","
 				 	+ "LenderID varchar(36) NOT NULL,"
 				 	+ "OfferName varchar(255),"
 				 	+ "Value DECIMAL(9," + decimals + ") NOT NULL,"
@@ -440,8 +667,7 @@ public final class SerenityLoans extends JavaPlugin {
 				 	+ "MinPayment DECIMAL(9," + decimals + ") NOT NULL,"
 				 	+ "ServiceFeeFrequency BIGINT,"
 				 	+ "ServiceFee DECIMAL(7," + decimals + "),"
-				 	+ "LoanType ENUM('Amortizing','Bullet','FixedFee','InterestOnly','Credit','Gift','Deposit','Bond','Salary') NOT NULL,"
-				 	+ "PRIMARY KEY (OfferID),"
+				 	+ "LoanType " + storage.enumType("Amortizing", "Bullet", "FixedFee", "InterestOnly", "Credit", "Gift", "Deposit", "Bond", "Salary") + " NOT NULL,"
 				 	+ "FOREIGN KEY (LenderID) REFERENCES FinancialEntities (UserID)"
 				 	+ ");";
 
@@ -452,7 +678,7 @@ public final class SerenityLoans extends JavaPlugin {
 				 	+ "BorrowerID varchar(36) NOT NULL,"
 				 	+ "ExpirationDate TIMESTAMP DEFAULT 0,"
 				 	+ "PreparedTerms int NOT NULL,"
-				 	+ "Sent ENUM('true','false') NOT NULL DEFAULT 'false',"
+				 	+ "Sent " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
 				 	+ "CONSTRAINT uc_offerID PRIMARY KEY (LenderID,BorrowerID),"
 				 	+ "FOREIGN KEY (LenderID) REFERENCES FinancialEntities (UserID),"
 				 	+ "FOREIGN KEY (BorrowerID) REFERENCES FinancialEntities (UserID),"
@@ -472,14 +698,14 @@ public final class SerenityLoans extends JavaPlugin {
 		 
 		 String loanView = 
 				 "CREATE VIEW loans_all AS "
-				 	+ "SELECT Loans.LoanID, Loans.LenderID, Loans.BorrowerID, Loans.StartDate, Loans.Balance, Loans.InterestBalance, Loans.FeeBalance, Loans.AutoPay, Loans.LastUpdate, PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFeeFrequency, PreparedOffers.ServiceFee " 
-				 	+ "FROM Loans JOIN (PreparedOffers) "
+				 	+ "SELECT Loans.LoanID, Loans.LenderID, Loans.BorrowerID, Loans.StartDate, Loans.Balance, Loans.InterestBalance, Loans.FeeBalance, Loans.AutoPay, Loans.LastUpdate, Loans.Open, PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFeeFrequency, PreparedOffers.ServiceFee " 
+				 	+ "FROM Loans JOIN PreparedOffers "
 		 			+ "ON Loans.Terms = PreparedOffers.OfferID;";
 		 
 		 String offerView = 
 				"CREATE VIEW offer_view AS "
-				 	+ "SELECT Offers.LenderID, Offers.BorrowerID,  Offers.ExpirationDate, PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFeeFrequency, PreparedOffers.ServiceFee, PreparedOffers.LoanType " 
-				 	+ "FROM Offers JOIN (PreparedOffers) "
+				 	+ "SELECT Offers.LenderID, Offers.BorrowerID,  Offers.ExpirationDate, Offers.Sent, PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFeeFrequency, PreparedOffers.ServiceFee, PreparedOffers.LoanType " 
+				 	+ "FROM Offers JOIN PreparedOffers "
 				 	+ "ON Offers.PreparedTerms = PreparedOffers.OfferID;";
 		 
 		 String debtorView =
@@ -498,9 +724,11 @@ public final class SerenityLoans extends JavaPlugin {
 		 
 		 String writeVersion = "INSERT INTO Info VALUES(" + dbMajorVersion + "," + dbMinorVersion + ");";
 
+		 Connection conn = null;
 		 Statement statement = null;
 		 
 		 try {
+			conn = getConnection();
 			statement = conn.createStatement();
 			
 			if(debugLevel >=2)
@@ -516,6 +744,11 @@ public final class SerenityLoans extends JavaPlugin {
 			if(debugLevel >=2)
 				logInfo("Built FinancialInstitutions table successfully.");
 			
+			statement.executeUpdate(playerNamesTable);
+			
+			if(debugLevel >=2)
+				logInfo("Built PlayerNames table successfully.");
+			
 			statement.executeUpdate(trustTable);
 			
 			if(debugLevel >=2)
@@ -546,11 +779,31 @@ public final class SerenityLoans extends JavaPlugin {
 			if(debugLevel >=2)
 				logInfo("Built LoanEvents table successfully.");
 			
+			statement.executeUpdate(loanSnapshotsTable);
+			
+			if(debugLevel >=2)
+				logInfo("Built LoanSnapshots table successfully.");
+			
+			statement.executeUpdate(loanEventsArchiveTable);
+			
+			if(debugLevel >=2)
+				logInfo("Built LoanEventsArchive table successfully.");
+			
 			statement.executeUpdate(paymentStatementsTable);
 			
 			if(debugLevel >=2)
 				logInfo("Built PaymentStatements table successfully.");
 			
+			statement.executeUpdate(loansArchiveTable);
+			
+			if(debugLevel >=2)
+				logInfo("Built LoansArchive table successfully.");
+			
+			statement.executeUpdate(paymentStatementsArchiveTable);
+			
+			if(debugLevel >=2)
+				logInfo("Built PaymentStatementsArchive table successfully.");
+			
 			statement.executeUpdate(offersTable);
 			
 			if(debugLevel >=2)
@@ -594,6 +847,7 @@ public final class SerenityLoans extends JavaPlugin {
 			success = false;
 		 } finally {
 			 if(statement != null){statement.close();};
+			 releaseConnection(conn);
 		 }
 		 
 		 if(!success){
@@ -625,13 +879,154 @@ public final class SerenityLoans extends JavaPlugin {
 			}
 	 }
 	 
+	 /*
+	  * Compares the indexes in the database against SchemaIndex. This runs
+	  * on every startup, so a new database gets its indexes right after the
+	  * tables are built and a database from an earlier version gets the ones
+	  * it is missing. When storage.create-missing-indexes is false, the
+	  * missing indexes are only reported along with the SQL to create them.
+	  */
+	 private void checkIndexes() throws SQLException{
+		 boolean create = true;
+		 if(getConfig().contains("storage.create-missing-indexes") && getConfig().isBoolean("storage.create-missing-indexes"))
+			 create = getConfig().getBoolean("storage.create-missing-indexes");
+		 
+		 Connection conn = null;
+		 
+		 try{
+			 conn = getConnection();
+			 
+			 List<SchemaIndex> missing = SchemaIndex.findMissing(conn);
+			 
+			 if(missing.isEmpty()){
+				 if(debugLevel >= 2)
+					 logInfo("All database indexes present.");
+				 return;
+			 }
+			 
+			 for(SchemaIndex index : missing){
+				 if(!create){
+					 logWarn(String.format("Missing index %s on %s. Create it with: %s", index.getIndexName(), index.getTable(), index.getCreateSQL()));
+					 continue;
+				 }
+				 
+				 if(debugLevel >= 1)
+					 logInfo(String.format("Building index %s on %s...", index.getIndexName(), index.getTable()));
+				 
+				 index.create(conn);
+			 }
+			 
+			 if(create && debugLevel >= 1)
+				 logInfo(String.format("Built %d database indexes successfully.", missing.size()));
+			 
+		 } catch (SQLException e) {
+			 if(debugLevel >=2)
+				 logFail(e.getMessage());
+			 
+			 throw e;
+		 } finally {
+			 releaseConnection(conn);
+		 }
+	 }
+	 
+	 /**
+	  * Moves the key counters of the tables with archives past the largest
+	  * key in either the table or its archive, so that a new row never
+	  * takes the key of an archived one. MySQL servers before 8.0 forget
+	  * the counter on restart, so this runs on every startup.
+	  */
+	 private void reserveArchivedKeys() throws SQLException{
+		 Connection conn = null;
+		 
+		 try{
+			 conn = getConnection();
+			 
+			 reserveKeys(conn, "Loans", Query.SELECT_MAX_LOAN_ID);
+			 reserveKeys(conn, "LoanEvents", Query.SELECT_MAX_LOAN_EVENT_ID);
+			 reserveKeys(conn, "PaymentStatements", Query.SELECT_MAX_STATEMENT_ID);
+		 } catch (SQLException e) {
+			 if(debugLevel >=2)
+				 logFail(e.getMessage());
+			 
+			 throw e;
+		 } finally {
+			 releaseConnection(conn);
+		 }
+	 }
+	 
+	 private void reserveKeys(Connection conn, String table, Query maxKey) throws SQLException{
+		 PreparedStatement stmt = maxKey.prepare(conn);
+		 ResultSet rs = stmt.executeQuery();
+		 
+		 long max = rs.next()? rs.getLong(1) : 0;
+		 
+		 stmt.close();
+		 
+		 storage.reserveKeys(conn, table, max + 1);
+	 }
+	 
 	 public static SerenityLoans getPlugin(){
 		 return plugin;
 	 }
 	    
 	    	 
-	 public Connection getConnection(){
-		 return conn;
+	 /**
+	  * Returns the storage backend, which describes the SQL dialect of the
+	  * database in use.
+	  */
+	 public StorageBackend getStorage(){
+		 return storage;
+	 }
+	 
+	 /**
+	  * Returns the connection pool, for reporting on its connections and
+	  * statement timings.
+	  */
+	 public ConnectionPool getConnectionPool(){
+		 return pool;
+	 }
+	 
+	 /**
+	  * Returns the pacer which all background loan and offer updates wait
+	  * on between units of work.
+	  */
+	 public BackgroundPacer getPacer(){
+		 return pacer;
+	 }
+	 
+	 /**
+	  * Borrows a connection from the connection pool. Every connection
+	  * obtained here must be handed back with releaseConnection() (or
+	  * close()) once the unit of work is finished, preferably in a finally
+	  * block.
+	  * 
+	  * @return A pooled database connection.
+	  * @throws SQLException if no connection could be obtained.
+	  */
+	 public Connection getConnection() throws SQLException {
+		 if(pool == null)
+			 throw new SQLException("Database connection pool not available.");
+		 
+		 return pool.getConnection();
+	 }
+	 
+	 /**
+	  * Returns a connection obtained from getConnection() to the pool.
+	  * Null connections are ignored so this may be called unconditionally
+	  * from a finally block.
+	  * 
+	  * @param conn Connection to return.
+	  */
+	 public void releaseConnection(Connection conn){
+		 if(conn == null)
+			 return;
+		 
+		 try {
+			 conn.close();
+		 } catch (SQLException e) {
+			 if(debugLevel >= 2)
+				 logWarn("Error returning database connection: " + e.getMessage());
+		 }
 	 }
 	 
 	 public EconomyManager getEcon(){
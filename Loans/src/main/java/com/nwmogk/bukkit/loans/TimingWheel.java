@@ -0,0 +1,204 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: TimingWheel.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class is a hierarchical timing wheel. Items are scheduled for a
+ * time in milliseconds and handed back by advance() once that time has
+ * passed. Time is divided into ticks, and each level of the wheel is a
+ * ring of slots where a slot of one level spans a whole ring of the
+ * level below. An item is placed in the lowest level whose ring reaches
+ * its time, and is moved down a level each time the wheel turns past the
+ * start of its slot, so scheduling and firing cost the same no matter how
+ * many items are waiting. Items further out than the top level are kept
+ * in an overflow list and placed whenever the top level turns.
+ * 
+ * The wheel does not keep its own clock or threads; the owner calls
+ * advance() with the current time, usually once per tick.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingWheel<T> {
+
+	private final long tickMillis;
+	private final int bits;
+	private final int mask;
+	private final List<Entry<T>>[][] levels;
+	
+	private List<Entry<T>> overflow = new ArrayList<Entry<T>>();
+	private List<T> due = new ArrayList<T>();
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * Creates an empty wheel whose current time is the given time.
+	 *
+	 * @param tickMillis Length of one tick in milliseconds. Items fire at most this late.
+	 * @param slotBits Each level has 2^slotBits slots.
+	 * @param levelCount Number of levels. The wheel reaches tickMillis * 2^(slotBits * levelCount) ahead.
+	 * @param now Current time in milliseconds.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long tickMillis, int slotBits, int levelCount, long now){
+		this.tickMillis = Math.max(1, tickMillis);
+		this.bits = Math.max(1, slotBits);
+		this.mask = (1 << bits) - 1;
+		this.levels = new List[Math.max(1, levelCount)][1 << bits];
+		this.currentTick = now / this.tickMillis;
+	}
+
+	/**
+	 * Schedules an item. Items whose time has already passed are returned
+	 * by the next call to advance().
+	 *
+	 * @param time Time in milliseconds at which the item is due.
+	 * @param item Item to hand back.
+	 */
+	public synchronized void schedule(long time, T item){
+		// Round up so an item never fires before its time
+		long tick = time / tickMillis + (time % tickMillis == 0? 0 : 1);
+		
+		place(new Entry<T>(tick, item));
+		size++;
+	}
+
+	/**
+	 * Moves the wheel forward to the given time and returns every item
+	 * which has come due, in no particular order.
+	 *
+	 * @param now Current time in milliseconds.
+	 * @return Items which are due. Never null.
+	 */
+	public synchronized List<T> advance(long now){
+		long target = now / tickMillis;
+		
+		while(currentTick < target){
+			currentTick++;
+			
+			// Turning past the start of a slot moves its items down to the level below.
+			for(int level = 1; level < levels.length && ((currentTick >> (bits * (level - 1))) & mask) == 0; level++){
+				cascade(level, (int)((currentTick >> (bits * level)) & mask));
+				
+				if(level == levels.length - 1)
+					placeOverflow();
+			}
+			
+			if(levels.length == 1 && (currentTick & mask) == 0)
+				placeOverflow();
+			
+			List<Entry<T>> slot = levels[0][(int)(currentTick & mask)];
+			
+			if(slot != null){
+				levels[0][(int)(currentTick & mask)] = null;
+				
+				for(Entry<T> e : slot)
+					due.add(e.item);
+			}
+		}
+		
+		List<T> result = due;
+		due = new ArrayList<T>();
+		size -= result.size();
+		
+		return result;
+	}
+
+	/**
+	 * Returns the number of items waiting in the wheel.
+	 */
+	public synchronized int size(){
+		return size;
+	}
+
+	private void place(Entry<T> e){
+		long delta = e.tick - currentTick;
+		
+		if(delta <= 0){
+			due.add(e.item);
+			return;
+		}
+		
+		for(int level = 0; level < levels.length; level++){
+			if(delta < 1L << (bits * (level + 1))){
+				int index = (int)((e.tick >> (bits * level)) & mask);
+				
+				if(levels[level][index] == null)
+					levels[level][index] = new ArrayList<Entry<T>>();
+				
+				levels[level][index].add(e);
+				return;
+			}
+		}
+		
+		overflow.add(e);
+	}
+
+	private void cascade(int level, int index){
+		List<Entry<T>> slot = levels[level][index];
+		
+		if(slot == null)
+			return;
+		
+		levels[level][index] = null;
+		
+		for(Entry<T> e : slot)
+			place(e);
+	}
+
+	private void placeOverflow(){
+		if(overflow.isEmpty())
+			return;
+		
+		List<Entry<T>> waiting = overflow;
+		overflow = new ArrayList<Entry<T>>();
+		
+		for(Entry<T> e : waiting)
+			place(e);
+	}
+
+	private static class Entry<T> {
+		private final long tick;
+		private final T item;
+		
+		private Entry(long tick, T item){
+			this.tick = tick;
+			this.item = item;
+		}
+	}
+}
@@ -66,5 +66,19 @@ public final class EconResult {
 		callSuccess = vaultResponse.transactionSuccess();
 		errMsg = vaultResponse.errorMessage;
 	}
+	
+	/**
+	 * Returns the amount in minor units of the currency, see Money.
+	 */
+	public long getAmountMinor(){
+		return Money.fromDouble(amount);
+	}
+	
+	/**
+	 * Returns the balance in minor units of the currency, see Money.
+	 */
+	public long getBalanceMinor(){
+		return Money.fromDouble(balance);
+	}
 
 }
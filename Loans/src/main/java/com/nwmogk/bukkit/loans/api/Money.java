@@ -0,0 +1,139 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: Money.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class converts between amounts of money held as longs in minor
+ * units of the currency (cents, for two fractional digits) and the
+ * doubles used by Vault and the configuration, and the DECIMAL columns
+ * used by the database. Loan arithmetic is done on the long values, which
+ * are exact and never need rounding, so balances do not drift. Values are
+ * only rounded when they come in from a double or a multiplication by a
+ * rate.
+ *
+ * The number of fractional digits comes from
+ * economy.currency.fractional-digits and is set once when the plugin is
+ * enabled.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.api;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public final class Money {
+
+	private static int digits = 2;
+	private static long unit = 100;
+
+	private Money(){}
+
+	/**
+	 * Sets the number of fractional digits of the currency. Amounts created
+	 * before the change keep their old scale, so this must only be called
+	 * when the plugin is enabled.
+	 *
+	 * @param fractionalDigits Digits after the decimal point, from 0 to 9.
+	 */
+	public static void setFractionalDigits(int fractionalDigits){
+		digits = Math.max(0, Math.min(9, fractionalDigits));
+
+		long u = 1;
+		for(int i = 0; i < digits; i++)
+			u *= 10;
+
+		unit = u;
+	}
+
+	public static int getFractionalDigits(){
+		return digits;
+	}
+
+	/**
+	 * Converts an amount in major units to minor units, rounding half up.
+	 */
+	public static long fromDouble(double amount){
+		return Math.round(amount * unit);
+	}
+
+	/**
+	 * Converts an amount in minor units to major units.
+	 */
+	public static double toDouble(long amount){
+		return ((double) amount) / unit;
+	}
+
+	/**
+	 * Multiplies an amount by a rate or other factor, rounding half up to
+	 * the nearest minor unit.
+	 */
+	public static long times(long amount, double factor){
+		return Math.round(amount * factor);
+	}
+
+	/**
+	 * Converts an amount in minor units to an exact decimal.
+	 */
+	public static BigDecimal toDecimal(long amount){
+		return BigDecimal.valueOf(amount, digits);
+	}
+
+	/**
+	 * Converts a decimal to minor units, rounding half even. Null is zero.
+	 */
+	public static long fromDecimal(BigDecimal amount){
+		if(amount == null)
+			return 0;
+
+		return amount.setScale(digits, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+	}
+
+	/**
+	 * Reads a DECIMAL column as minor units.
+	 */
+	public static long read(ResultSet rs, String column) throws SQLException {
+		return fromDecimal(rs.getBigDecimal(column));
+	}
+
+	/**
+	 * Binds an amount in minor units to a DECIMAL parameter.
+	 */
+	public static void bind(PreparedStatement stmt, int index, long amount) throws SQLException {
+		stmt.setBigDecimal(index, toDecimal(amount));
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: InfoHandler.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class performs command handling for the /serenityloans command of
+ * the SerenityLoans plugin. It reports the plugin version and, for
+ * administrators, the database statement timings collected by the
+ * connection pool so that slow or frequent queries can be found.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.command;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.nwmogk.bukkit.loans.Conf;
+import com.nwmogk.bukkit.loans.SerenityLoans;
+import com.nwmogk.bukkit.loans.database.ConnectionPool;
+import com.nwmogk.bukkit.loans.database.QueryStats;
+import com.nwmogk.bukkit.loans.object.ImmutableOffer;
+import com.nwmogk.bukkit.loans.object.SimulationReport;
+
+public class InfoHandler implements CommandExecutor {
+
+	// Number of statements listed by dbstats unless a count is given
+	private static final int defaultRows = 10;
+	
+	// Number of loans simulated unless a count is given
+	private static final int defaultLoans = 1000;
+	
+	// Largest number of loans one simulation may run, so it cannot hold a worker thread for long
+	private static final int maxLoans = 100000;
+	
+	private SerenityLoans plugin;
+	private static String prfx;
+	
+	public InfoHandler(SerenityLoans plugin){
+		this.plugin = plugin;
+		prfx = Conf.getMessageString();
+	}
+	
+	@Override
+	public boolean onCommand(CommandSender sender, Command cmd, String alias, String[] args) {
+		
+		if(args.length == 0 || args[0].equalsIgnoreCase("help") || args[0].equalsIgnoreCase("?"))
+			return helpCommand(sender, alias);
+		
+		String subCommand = args[0];
+		
+		if(subCommand.equalsIgnoreCase("version")){
+			sender.sendMessage(String.format("%s %s version %s.", prfx, plugin.getDescription().getName(), plugin.getDescription().getVersion()));
+			return true;
+		}
+		
+		else if(subCommand.equalsIgnoreCase("dbstats"))
+			return dbStatsCommand(sender, alias + " " + subCommand, args);
+		
+		else if(subCommand.equalsIgnoreCase("simulate"))
+			return simulateCommand(sender, alias + " " + subCommand, args);
+		
+		return helpCommand(sender, alias);
+	}
+	
+	private boolean helpCommand(CommandSender sender, String alias){
+		sender.sendMessage(prfx + " The '/" + alias + "' command gives information on the plugin.");
+		sender.sendMessage("    /" + alias + " version");
+		
+		if(sender.hasPermission("serenityloans.admin"))
+			sender.sendMessage("    /" + alias + " dbstats [count | reset]");
+		
+		if(sender.hasPermission("serenityloans.admin") && sender instanceof Player)
+			sender.sendMessage("    /" + alias + " simulate <offername> [loans] [pay-in-full] [pay-minimum]");
+		
+		return true;
+	}
+	
+	/*
+	 * Lists the statements which have taken the most database time since
+	 * the statistics were last reset, along with pool usage.
+	 */
+	private boolean dbStatsCommand(CommandSender sender, String alias, String[] args){
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "dbStatsCommand(CommandSender, String, String[])", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		if(!sender.hasPermission("serenityloans.admin")){
+			sender.sendMessage(prfx + " You are not able to use this command.");
+			return true;
+		}
+		
+		if(args.length > 2){
+			sender.sendMessage(prfx + " Too many arguments.");
+			return true;
+		}
+		
+		ConnectionPool pool = plugin.getConnectionPool();
+		QueryStats stats = pool == null? null : pool.getQueryStats();
+		
+		if(stats == null){
+			sender.sendMessage(prfx + " Query statistics are disabled. Set mysql.pool.query-stats to true to collect them.");
+			return true;
+		}
+		
+		int rows = defaultRows;
+		
+		if(args.length == 2){
+			if(args[1].equalsIgnoreCase("reset")){
+				stats.reset();
+				sender.sendMessage(prfx + " Query statistics reset.");
+				return true;
+			}
+			
+			try {
+				rows = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				sender.sendMessage(prfx + " Use '/" + alias + " [count | reset]'.");
+				return true;
+			}
+		}
+		
+		List<QueryStats.Entry> entries = stats.getEntries();
+		List<String> message = new ArrayList<String>();
+		
+		message.add(String.format("%s Database statements since %s. Pool: %d in use, %d idle.", prfx, DateFormat.getDateTimeInstance().format(new Date(stats.getSince())), pool.getActiveCount(), pool.getIdleCount()));
+		
+		if(plugin.loanManager != null && plugin.loanManager.getLastSweepMillis() >= 0)
+			message.add(String.format("    Last update sweep checked %d loans in %d ms.", plugin.loanManager.getLastSweepLoans(), plugin.loanManager.getLastSweepMillis()));
+		
+		if(entries.isEmpty())
+			message.add("    No statements recorded.");
+		else
+			message.add("    name: count, total ms, p50 ms, p99 ms, max ms, rows");
+		
+		for(int i = 0; i < entries.size() && i < rows; i++){
+			QueryStats.Entry e = entries.get(i);
+			message.add(String.format("    %s: %d, %.1f, %.2f, %.2f, %.2f, %d", e.getLabel(), e.getCount(), e.getTotalMillis(), e.getPercentileMillis(0.5), e.getPercentileMillis(0.99), e.getMaxMillis(), e.getRows()));
+		}
+		
+		if(entries.size() > rows)
+			message.add(String.format("    %d more not shown.", entries.size() - rows));
+		
+		sender.sendMessage(message.toArray(new String[0]));
+		
+		return true;
+	}
+	
+	/*
+	 * Runs one of the sender's prepared offers for a number of loans in 
+	 * memory and reports how they turned out. The shares of borrowers paying
+	 * in full and paying the minimum default to all and none. The offer is
+	 * looked up and simulated off the main thread.
+	 */
+	private boolean simulateCommand(final CommandSender sender, String alias, String[] args){
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "simulateCommand(CommandSender, String, String[])", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+		
+		if(!sender.hasPermission("serenityloans.admin")){
+			sender.sendMessage(prfx + " You are not able to use this command.");
+			return true;
+		}
+		
+		if(!(sender instanceof Player)){
+			sender.sendMessage(prfx + " Only players have prepared offers to simulate.");
+			return true;
+		}
+		
+		if(args.length < 2 || args.length > 5){
+			sender.sendMessage(prfx + " Use '/" + alias + " <offername> [loans] [pay-in-full] [pay-minimum]'.");
+			return true;
+		}
+		
+		int loans = defaultLoans;
+		double payInFull = 1.0;
+		double payMinimum = 0.0;
+		
+		try {
+			if(args.length > 2)
+				loans = Integer.parseInt(args[2]);
+			if(args.length > 3)
+				payInFull = Double.parseDouble(args[3]);
+			if(args.length > 4)
+				payMinimum = Double.parseDouble(args[4]);
+		} catch (NumberFormatException e) {
+			sender.sendMessage(prfx + " Use '/" + alias + " <offername> [loans] [pay-in-full] [pay-minimum]'.");
+			return true;
+		}
+		
+		if(loans <= 0 || payInFull < 0 || payMinimum < 0 || payInFull + payMinimum > 1){
+			sender.sendMessage(prfx + " Give a positive number of loans and shares of borrowers which add up to at most 1.");
+			return true;
+		}
+		
+		if(loans > maxLoans){
+			sender.sendMessage(String.format("%s At most %d loans can be simulated at once.", prfx, maxLoans));
+			return true;
+		}
+		
+		final UUID lenderId = ((Player)sender).getUniqueId();
+		final String offerName = args[1];
+		final int count = loans;
+		final double inFull = payInFull;
+		final double minimum = payMinimum;
+		
+		sender.sendMessage(String.format("%s Simulating %d loans...", prfx, count));
+		
+		plugin.threads.execute(new Runnable(){
+			public void run(){
+				ImmutableOffer terms = plugin.offerManager.getPreparedOffer(lenderId, offerName);
+				
+				if(terms == null){
+					plugin.scheduleMessage(sender, prfx + " You do not have a prepared offer named " + offerName + ".");
+					return;
+				}
+				
+				SimulationReport report = plugin.loanManager.simulate(terms, count, inFull, minimum, System.currentTimeMillis());
+				
+				String[] message = {
+					String.format("%s Simulated %s of %d loans in %d ms.", prfx, Conf.buildTimeString(report.simulatedTime), report.loans, report.elapsedMillis),
+					String.format("    Paid off: %d, defaulted: %d (%s), events: %d", report.closed, report.defaulted, plugin.econ.formatPercent(report.getDefaultRate()), report.events),
+					String.format("    Lent: %s, interest: %s, fees: %s", plugin.econ.formatMinor(report.principal), plugin.econ.formatMinor(report.interest), plugin.econ.formatMinor(report.fees)),
+					String.format("    Repaid: %s, still owed: %s", plugin.econ.formatMinor(report.paid), plugin.econ.formatMinor(report.outstanding))
+				};
+				
+				plugin.scheduleMessage(sender, message);
+			}
+		});
+		
+		return true;
+	}
+}
@@ -48,11 +48,13 @@ package com.nwmogk.bukkit.loans.command;
 //import java.sql.PreparedStatement;
 import java.sql.Timestamp;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import org.bukkit.command.Command;
@@ -63,11 +65,13 @@ import org.bukkit.entity.Player;
 import com.nwmogk.bukkit.loans.Conf;
 import com.nwmogk.bukkit.loans.SerenityLoans;
 import com.nwmogk.bukkit.loans.OfferManager.OfferExitStatus;
+import com.nwmogk.bukkit.loans.api.EconResult;
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
 import com.nwmogk.bukkit.loans.exception.InvalidLoanTermsException;
 import com.nwmogk.bukkit.loans.object.FinancialInstitution;
 import com.nwmogk.bukkit.loans.object.ImmutableOffer;
 import com.nwmogk.bukkit.loans.object.Loan;
+import com.nwmogk.bukkit.loans.object.PaymentStatement;
 
 public class LoanHandler implements CommandExecutor{
 
@@ -252,13 +256,19 @@ public class LoanHandler implements CommandExecutor{
 					return;
 				}
 				
-				plugin.econ.withdraw(lender, value);
-				plugin.econ.deposit(borrower, value);
+				// The lender's money is held until the loan is written, so a rolled back loan never has to be taken back from the borrower
+				if(!plugin.econ.withdraw(lender, value).callSuccess){
+					plugin.scheduleMessage(sender, String.format(prfx + " %s does not have enough money to loan!", lenderName));
+					return;
+				}
 				
 				boolean returnSuccess = plugin.loanManager.createLoan(lender.getUserID(), borrower.getUserID(), termsID, value);
 				
 				// TODO message center
 				if(returnSuccess){
+					if(!plugin.econ.deposit(borrower, value).callSuccess)
+						SerenityLoans.logFail(String.format("Loan from %s to %s was written but %s could not be paid to the borrower.", lender.getUserID().toString(), borrower.getUserID().toString(), plugin.econ.format(value)));
+					
 					plugin.scheduleMessage(sender, prfx + " Successfully processed loan!");
 					
 					Player newLender = plugin.playerManager.getPlayer(lender.getUserID());
@@ -266,6 +276,10 @@ public class LoanHandler implements CommandExecutor{
 					if(newLender != null)
 						plugin.scheduleMessage(newLender, prfx + " Successfully processed loan!");
 				} else {
+					// The loan was rolled back, so return the held funds
+					if(!plugin.econ.deposit(lender, value).callSuccess)
+						SerenityLoans.logFail(String.format("Could not return %s to %s after a loan was rolled back.", plugin.econ.format(value), lender.getUserID().toString()));
+					
 					plugin.scheduleMessage(sender, prfx + " Loan not processed!");
 				}
 				
@@ -967,17 +981,27 @@ public class LoanHandler implements CommandExecutor{
 				String output = Conf.messageCenter(args.length == 1 && !sentOffers ? "received-offers" : "sent-offers", new String[]{"$$p", "$$c"}, new String[]{sender.getName(), alias});
 				output += "\n    " + lenderLabel + " --- Expires";
 				
-				// Collect information for each offer in the list.
+				// Start the name and offer lookups for every entry before waiting on any of them.
+				List<Future<String>> names = new ArrayList<Future<String>>(othersList.size());
+				List<Future<ImmutableOffer>> offers = new ArrayList<Future<ImmutableOffer>>(othersList.size());
+				
 				for(FinancialEntity fe : othersList){
+					names.add(plugin.data.entityNameLookup(fe));
+					offers.add(sentOffers? plugin.data.getOffer(player.getUserID(), fe.getUserID()) : plugin.data.getOffer(fe.getUserID(), player.getUserID()));
+				}
+				
+				// Collect information for each offer in the list.
+				for(int i = 0; i < othersList.size(); i++){
+					FinancialEntity fe = othersList.get(i);
 					String name = null;
+					ImmutableOffer offer = null;
 					try {
-						name = plugin.playerManager.entityNameLookup(fe);
-					} catch (InterruptedException | ExecutionException | TimeoutException e) {
+						name = names.get(i).get();
+						offer = offers.get(i).get();
+					} catch (InterruptedException | ExecutionException e) {
 						plugin.scheduleMessage(sender, String.format("%s Problem during name lookup for %s. Try again later.", prfx, fe.getUserID().toString()));
 						continue;
 					}
-					
-					ImmutableOffer offer = sentOffers? plugin.offerManager.getOffer(player.getUserID(), fe.getUserID()) : plugin.offerManager.getOffer(fe.getUserID(), player.getUserID());
 				
 					if(offer == null){
 						plugin.scheduleMessage(sender, Conf.messageCenter("no-offers", new String[]{"$$p", "$$c", "$$r"}, new String[]{sender.getName(), alias, args.length == 2 && args[1].equalsIgnoreCase(sender.getName()) ? args[1] : ""}));
@@ -1128,10 +1152,14 @@ public class LoanHandler implements CommandExecutor{
 			public void run(){
 				String lenderName = args[1];
 				
+				// The borrower's balance does not depend on the loan, so look it up
+				// while the lender and loan are being resolved.
+				Future<EconResult> borrowerBalance = plugin.data.getBalance(borrower);
+				
 				FinancialEntity lender = null;
 				try {
-					lender = plugin.playerManager.getFinancialEntity(args[1]);
-				} catch (InterruptedException | ExecutionException | TimeoutException e1) {
+					lender = plugin.data.getFinancialEntity(lenderName).get();
+				} catch (InterruptedException | ExecutionException e1) {
 					// TODO add message to configuration
 					plugin.scheduleMessage(sender, prfx + " Problem during name lookup for " + lenderName + ". Try again later.");
 					return;
@@ -1168,17 +1196,26 @@ public class LoanHandler implements CommandExecutor{
 				}
 				
 				double payAmount = 0;
+				EconResult balance = null;
 				
 				try{
+					
+					Future<PaymentStatement> statement = loanSelection.remainingArgs.length != 0 || payOff? null : plugin.data.getPaymentStatement(loanSelection.result.getLoanID());
 
-					payAmount = loanSelection.remainingArgs.length != 0? Double.parseDouble(loanSelection.remainingArgs[0]) : (payOff? loanSelection.result.getCloseValue() : plugin.loanManager.getPaymentStatement(loanSelection.result.getLoanID()).getPaymentRemaining());
+					payAmount = loanSelection.remainingArgs.length != 0? Double.parseDouble(loanSelection.remainingArgs[0]) : (payOff? loanSelection.result.getCloseValue() : statement.get().getPaymentRemaining());
+					
+					balance = borrowerBalance.get();
 						
 				} catch(NumberFormatException e){
 					plugin.scheduleMessage(sender, String.format("%s Value specified incorrectly.", prfx));
 					return;
+				} catch (InterruptedException | ExecutionException e) {
+					SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+					e.printStackTrace();
+					return;
 				}
 				
-				if(!plugin.econ.has(borrower, payAmount).callSuccess){
+				if(payAmount < 0 || !balance.callSuccess || balance.balance < payAmount){
 					plugin.scheduleMessage(sender, String.format("%s You do not have enough money!", prfx));
 					return;
 				}
@@ -0,0 +1,731 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: ConnectionPool.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class provides a bounded pool of JDBC connections for the plugin.
+ * Connections are borrowed with getConnection() and handed back by calling
+ * close() on the borrowed object, which returns the underlying physical
+ * connection to the pool rather than closing it. The pool keeps a minimum
+ * number of connections open, evicts connections which have sat idle for
+ * too long, validates connections before handing them out, and reports
+ * connections which have been held longer than the leak detection
+ * threshold along with the stack trace of the code which borrowed them.
+ * 
+ * Each pooled connection also keeps a bounded cache of prepared
+ * statements keyed by their SQL text. Preparing a statement that is 
+ * already cached returns the existing statement, and closing it only 
+ * clears its parameters so that it can be reused by the next borrower.
+ * 
+ * When the pool is given a QueryStats, every statement it hands out is 
+ * wrapped so that each execution is timed and its row count recorded.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.nwmogk.bukkit.loans.SerenityLoans;
+
+public class ConnectionPool {
+
+	// Connections idle for less than this many milliseconds are handed out without validation
+	private static final long validationInterval = 1000;
+
+	private final String url;
+	private final int minConnections;
+	private final int maxConnections;
+	private final String validationQuery;
+	private final long idleTimeout;
+	private final long leakThreshold;
+	private final long connectionTimeout;
+	private final int statementCacheSize;
+	private final String[] initStatements;
+	private final QueryStats stats;
+
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final Set<PooledConnection> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+	private final Semaphore permits;
+
+	private ScheduledExecutorService housekeeper = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new connection pool. No connections are opened until
+	 * start() is called.
+	 *
+	 * @param url JDBC url including any credentials.
+	 * @param minConnections Number of connections to keep open at all times.
+	 * @param maxConnections Maximum number of connections which may be borrowed at once.
+	 * @param validationQuery Query used to test idle connections. If null or empty, Connection.isValid() is used.
+	 * @param idleTimeout Time in milliseconds after which surplus idle connections are closed.
+	 * @param leakThreshold Time in milliseconds after which a borrowed connection is reported as leaked. 0 disables.
+	 * @param connectionTimeout Time in milliseconds to wait for a free connection before failing.
+	 * @param statementCacheSize Number of prepared statements to keep open per connection. 0 disables.
+	 * @param initStatements Statements executed on every new physical connection. May be null.
+	 * @param stats Statistics to record statement timings into. null disables timing.
+	 */
+	public ConnectionPool(String url, int minConnections, int maxConnections, String validationQuery, long idleTimeout, long leakThreshold, long connectionTimeout, int statementCacheSize, String[] initStatements, QueryStats stats){
+		this.url = url;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.minConnections = Math.max(0, Math.min(minConnections, this.maxConnections));
+		this.validationQuery = validationQuery;
+		this.idleTimeout = idleTimeout;
+		this.leakThreshold = leakThreshold;
+		this.connectionTimeout = connectionTimeout;
+		this.statementCacheSize = Math.max(0, statementCacheSize);
+		this.initStatements = initStatements == null? new String[0] : initStatements;
+		this.stats = stats;
+
+		permits = new Semaphore(this.maxConnections, true);
+	}
+
+	/**
+	 * Opens the minimum number of connections and starts the housekeeping
+	 * task which handles idle eviction and leak detection.
+	 *
+	 * @throws SQLException if the first connection cannot be opened.
+	 */
+	public synchronized void start() throws SQLException {
+		if(SerenityLoans.debugLevel >= 3)
+			SerenityLoans.logInfo(String.format("Entering %s method. %s", "start()", SerenityLoans.debugLevel >= 4? "Thread: " + Thread.currentThread().getId() : "."));
+
+		// Always open one connection so that configuration problems are caught immediately.
+		idle.offerFirst(new PooledConnection(openPhysical()));
+
+		fillToMinimum();
+
+		housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SerenityLoans-PoolHousekeeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long period = Math.max(5000, Math.min(30000, Math.min(idleTimeout > 0? idleTimeout / 2 : Long.MAX_VALUE, leakThreshold > 0? leakThreshold / 2 : Long.MAX_VALUE)));
+
+		housekeeper.scheduleWithFixedDelay(new Runnable(){public void run(){housekeep();}}, period, period, TimeUnit.MILLISECONDS);
+
+		if(SerenityLoans.debugLevel >= 2)
+			SerenityLoans.logInfo(String.format("Connection pool started with %d of at most %d connections.", idle.size(), maxConnections));
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new one if no idle
+	 * connections are available and the pool is below its maximum size.
+	 * The returned connection must be closed by the caller, which returns
+	 * it to the pool.
+	 *
+	 * @return A connection wrapper which returns itself to the pool on close().
+	 * @throws SQLException if the pool is closed, no connection becomes
+	 * available within the connection timeout, or a new connection cannot
+	 * be opened.
+	 */
+	public Connection getConnection() throws SQLException {
+		if(closed)
+			throw new SQLException("Connection pool has been shut down.");
+
+		try {
+			if(!permits.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS))
+				throw new SQLException(String.format("Timed out after %d ms waiting for a database connection. %d connections in use.", connectionTimeout, borrowed.size()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection.");
+		}
+
+		try {
+			PooledConnection pc = null;
+
+			while((pc = idle.pollFirst()) != null){
+				if(System.currentTimeMillis() - pc.lastReturned < validationInterval || isValid(pc.physical))
+					break;
+
+				if(SerenityLoans.debugLevel >= 2)
+					SerenityLoans.logWarn("Discarding database connection which failed validation.");
+
+				closePhysical(pc.physical);
+			}
+
+			if(pc == null)
+				pc = new PooledConnection(openPhysical());
+
+			pc.lend();
+			borrowed.add(pc);
+
+			return pc.proxy;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes all idle connections and prevents further borrowing.
+	 * Connections which are currently borrowed are closed when they are
+	 * returned.
+	 */
+	public synchronized void shutdown(){
+		closed = true;
+
+		if(housekeeper != null)
+			housekeeper.shutdownNow();
+
+		PooledConnection pc = null;
+		while((pc = idle.pollFirst()) != null)
+			closePhysical(pc.physical);
+
+		if(!borrowed.isEmpty() && SerenityLoans.debugLevel >= 1)
+			SerenityLoans.logWarn(String.format("Connection pool shut down with %d connections still in use.", borrowed.size()));
+	}
+
+	public int getActiveCount(){
+		return borrowed.size();
+	}
+
+	public int getIdleCount(){
+		return idle.size();
+	}
+
+	public int getMaxConnections(){
+		return maxConnections;
+	}
+
+	/**
+	 * Returns the statement timings collected by this pool.
+	 *
+	 * @return QueryStats, or null if timing is disabled.
+	 */
+	public QueryStats getQueryStats(){
+		return stats;
+	}
+
+	/*
+	 * Wraps a statement prepared or created on a physical connection so
+	 * that its executions are timed, unless timing is disabled.
+	 */
+	private Statement instrument(Statement stmt, Class<?> type, String sql){
+		if(stats == null || stmt == null || !type.isInterface() || !Statement.class.isAssignableFrom(type))
+			return stmt;
+
+		return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{type}, new InstrumentedStatement(stmt, sql));
+	}
+
+	private void release(PooledConnection pc){
+		if(!borrowed.remove(pc))
+			return;
+
+		try {
+			boolean reusable = !closed && !pc.physical.isClosed();
+
+			pc.closeStatements();
+			
+			if(!reusable)
+				pc.closeCache();
+
+			if(reusable && !pc.physical.getAutoCommit()){
+				pc.physical.rollback();
+				pc.physical.setAutoCommit(true);
+			}
+
+			if(reusable){
+				pc.lastReturned = System.currentTimeMillis();
+				idle.offerFirst(pc);
+			} else
+				closePhysical(pc.physical);
+
+		} catch (SQLException e) {
+			if(SerenityLoans.debugLevel >= 2)
+				SerenityLoans.logWarn("Discarding database connection after error on return: " + e.getMessage());
+			pc.closeCache();
+			closePhysical(pc.physical);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void housekeep(){
+		long now = System.currentTimeMillis();
+
+		if(idleTimeout > 0){
+			// Idle connections are kept most recently used first, so the stale ones are at the tail.
+			Iterator<PooledConnection> it = idle.descendingIterator();
+
+			while(it.hasNext() && idle.size() + borrowed.size() > minConnections){
+				PooledConnection pc = it.next();
+
+				if(now - pc.lastReturned < idleTimeout)
+					break;
+
+				if(idle.removeLastOccurrence(pc))
+					closePhysical(pc.physical);
+			}
+		}
+
+		try {
+			fillToMinimum();
+		} catch (SQLException e) {
+			if(SerenityLoans.debugLevel >= 2)
+				SerenityLoans.logWarn("Unable to replenish connection pool: " + e.getMessage());
+		}
+
+		if(leakThreshold > 0){
+			for(PooledConnection pc : borrowed){
+				if(pc.leakReported || now - pc.borrowedAt < leakThreshold)
+					continue;
+
+				pc.leakReported = true;
+
+				SerenityLoans.logWarn(String.format("Possible connection leak: connection held for %d ms by thread %s.", now - pc.borrowedAt, pc.borrower));
+
+				if(pc.borrowTrace != null)
+					pc.borrowTrace.printStackTrace();
+			}
+		}
+	}
+
+	private synchronized void fillToMinimum() throws SQLException {
+		while(!closed && idle.size() + borrowed.size() < minConnections){
+			PooledConnection pc = new PooledConnection(openPhysical());
+			pc.lastReturned = System.currentTimeMillis();
+			idle.offerLast(pc);
+		}
+	}
+
+	private Connection openPhysical() throws SQLException {
+		Connection physical = DriverManager.getConnection(url);
+
+		if(physical == null)
+			throw new SQLException("Driver returned null connection.");
+
+		if(initStatements.length == 0)
+			return physical;
+
+		Statement stmt = null;
+
+		try {
+			stmt = physical.createStatement();
+
+			for(String sql : initStatements)
+				stmt.execute(sql);
+		} catch (SQLException e) {
+			physical.close();
+			throw e;
+		} finally {
+			if(stmt != null)
+				stmt.close();
+		}
+
+		return physical;
+	}
+
+	private boolean isValid(Connection physical){
+		try {
+			if(physical.isClosed())
+				return false;
+
+			if(validationQuery == null || validationQuery.isEmpty())
+				return physical.isValid(5);
+
+			Statement stmt = physical.createStatement();
+
+			try {
+				stmt.execute(validationQuery);
+			} finally {
+				stmt.close();
+			}
+
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void closePhysical(Connection physical){
+		try {
+			physical.close();
+		} catch (SQLException e) {
+			if(SerenityLoans.debugLevel >= 3)
+				SerenityLoans.logWarn("Error closing database connection: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Wraps one physical connection. The proxy handed to callers forwards
+	 * everything to the physical connection except close(), which returns
+	 * the connection to the pool. Statements opened through the proxy are
+	 * tracked so that any left open by the borrower are cleaned up on
+	 * return.
+	 */
+	private class PooledConnection implements InvocationHandler {
+
+		private final Connection physical;
+		private final Connection proxy;
+		private final List<Statement> statements = new ArrayList<Statement>();
+		private final LinkedHashMap<String, CachedStatement> cache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest){
+				if(size() <= statementCacheSize)
+					return false;
+				
+				// A statement still in use is closed with the other open statements on return.
+				if(eldest.getValue().inUse)
+					statements.add(eldest.getValue().physical);
+				else
+					eldest.getValue().closePhysical();
+				
+				return true;
+			}
+		};
+
+		private volatile boolean returned = true;
+		private volatile long borrowedAt = 0;
+		private volatile long lastReturned = System.currentTimeMillis();
+		private volatile String borrower = null;
+		private volatile Throwable borrowTrace = null;
+		private volatile boolean leakReported = false;
+
+		private PooledConnection(Connection physical){
+			this.physical = physical;
+			this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+		}
+
+		private void lend(){
+			returned = false;
+			leakReported = false;
+			borrowedAt = System.currentTimeMillis();
+			borrower = Thread.currentThread().getName();
+			borrowTrace = leakThreshold > 0? new Throwable("Connection borrowed here") : null;
+		}
+
+		private synchronized void closeStatements(){
+			for(Statement stmt : statements){
+				try {
+					if(!stmt.isClosed())
+						stmt.close();
+				} catch (SQLException e) {
+					// Nothing useful can be done here.
+				}
+			}
+
+			statements.clear();
+			
+			for(CachedStatement cs : cache.values())
+				cs.reset();
+		}
+		
+		private synchronized void closeCache(){
+			for(CachedStatement cs : cache.values())
+				cs.closePhysical();
+			
+			cache.clear();
+		}
+		
+		private synchronized PreparedStatement prepareCached(String sql) throws SQLException {
+			CachedStatement cs = cache.get(sql);
+			
+			if(cs != null && !cs.inUse && cs.physical.isClosed()){
+				cache.remove(sql);
+				cs = null;
+			}
+			
+			if(cs == null){
+				cs = new CachedStatement((PreparedStatement) instrument(physical.prepareStatement(sql), PreparedStatement.class, sql));
+				cache.put(sql, cs);
+			} else if(cs.inUse){
+				// The same SQL is open twice in one unit of work. Hand out a plain statement.
+				PreparedStatement ps = (PreparedStatement) instrument(physical.prepareStatement(sql), PreparedStatement.class, sql);
+				statements.add(ps);
+				return ps;
+			}
+			
+			cs.inUse = true;
+			return cs.proxy;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if(name.equals("close")){
+				synchronized(this){
+					if(returned)
+						return null;
+					returned = true;
+				}
+
+				release(this);
+				return null;
+			}
+
+			if(name.equals("isClosed"))
+				return returned || physical.isClosed();
+
+			if(name.equals("equals"))
+				return proxy == args[0];
+
+			if(name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+
+			if(name.equals("toString"))
+				return "Pooled" + physical.toString();
+
+			if(returned)
+				throw new SQLException("Connection has already been returned to the pool.");
+			
+			if(name.equals("prepareStatement") && args.length == 1 && statementCacheSize > 0)
+				return prepareCached((String) args[0]);
+
+			Object result = null;
+
+			try {
+				result = method.invoke(physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+
+			if(result instanceof Statement){
+				result = instrument((Statement) result, method.getReturnType(), args != null && args.length > 0 && args[0] instanceof String? (String) args[0] : null);
+				
+				synchronized(this){
+					statements.add((Statement)result);
+				}
+			}
+
+			return result;
+		}
+	}
+	
+	/*
+	 * Wraps a prepared statement which stays open for the life of its
+	 * connection. close() clears the parameters and makes the statement
+	 * available to the next caller instead of closing it.
+	 */
+	private static class CachedStatement implements InvocationHandler {
+		
+		private final PreparedStatement physical;
+		private final PreparedStatement proxy;
+		
+		private volatile boolean inUse = false;
+		
+		private CachedStatement(PreparedStatement physical){
+			this.physical = physical;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, this);
+		}
+		
+		private void reset(){
+			if(!inUse)
+				return;
+			
+			inUse = false;
+			
+			try {
+				physical.clearParameters();
+			} catch (SQLException e) {
+				// Will surface on the next use of the statement.
+			}
+		}
+		
+		private void closePhysical(){
+			inUse = false;
+			
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				// Nothing useful can be done here.
+			}
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			
+			if(name.equals("close")){
+				reset();
+				return null;
+			}
+			
+			if(name.equals("isClosed"))
+				return !inUse || physical.isClosed();
+			
+			if(name.equals("equals"))
+				return proxy == args[0];
+			
+			if(name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			
+			if(name.equals("toString"))
+				return "Cached" + physical.toString();
+			
+			if(!inUse)
+				throw new SQLException("Statement has already been closed.");
+			
+			try {
+				return method.invoke(physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/*
+	 * Times every execute call on a statement and counts the rows it
+	 * changes or returns. Plain statements take their SQL text from the
+	 * execute call; prepared statements from the text they were prepared
+	 * with.
+	 */
+	private class InstrumentedStatement implements InvocationHandler {
+		
+		private final Statement physical;
+		private final String sql;
+		
+		private InstrumentedStatement(Statement physical, String sql){
+			this.physical = physical;
+			this.sql = sql;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			
+			if(name.equals("equals"))
+				return proxy == args[0];
+			
+			if(name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			
+			if(!name.startsWith("execute")){
+				try {
+					return method.invoke(physical, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+			
+			String text = sql;
+			
+			if(text == null && args != null && args.length > 0 && args[0] instanceof String)
+				text = (String) args[0];
+			
+			QueryStats.Entry entry = stats.entryFor(text);
+			Object result = null;
+			long start = System.nanoTime();
+			
+			try {
+				result = method.invoke(physical, args);
+			} catch (InvocationTargetException e) {
+				stats.record(entry, text, System.nanoTime() - start, 0);
+				throw e.getCause();
+			}
+			
+			long elapsed = System.nanoTime() - start;
+			long rows = 0;
+			
+			if(result instanceof Integer)
+				rows = (Integer) result;
+			else if(result instanceof int[]){
+				for(int count : (int[]) result)
+					rows += Math.max(0, count);
+			} else if(result instanceof ResultSet)
+				result = Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, new CountedResultSet((ResultSet) result, entry));
+			
+			stats.record(entry, text, elapsed, rows);
+			
+			return result;
+		}
+	}
+	
+	/*
+	 * Adds each row fetched from a result set to the statement's row count.
+	 */
+	private static class CountedResultSet implements InvocationHandler {
+		
+		private final ResultSet physical;
+		private final QueryStats.Entry entry;
+		
+		private CountedResultSet(ResultSet physical, QueryStats.Entry entry){
+			this.physical = physical;
+			this.entry = entry;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			
+			if(name.equals("equals"))
+				return proxy == args[0];
+			
+			if(name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			
+			Object result = null;
+			
+			try {
+				result = method.invoke(physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			
+			if(name.equals("next") && Boolean.TRUE.equals(result))
+				entry.addRows(1);
+			
+			return result;
+		}
+	}
+
+}
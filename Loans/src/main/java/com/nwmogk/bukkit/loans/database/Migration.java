@@ -0,0 +1,270 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: Migration.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class is the base for a single step in the schema migration
+ * sequence. A step moves the database from the version before it to the
+ * version it names, for example by adding a column, an index or a table,
+ * or by rebuilding a view.
+ *
+ * Steps must be idempotent. MySQL commits DDL immediately, so a step that
+ * fails partway cannot be rolled back and will be run again in full on the
+ * next startup. The helper methods here check for existing columns and
+ * tables before changing them, and backfill() must be given an update
+ * which gives the same result when run twice, so steps built from them
+ * can safely be repeated.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.nwmogk.bukkit.loans.SerenityLoans;
+
+public abstract class Migration {
+
+	/**
+	 * Fills in the parameters of a backfill update from one selected row.
+	 */
+	public interface RowFiller {
+
+		/**
+		 * Binds the parameters of the update statement for the given row.
+		 *
+		 * @param row Current row of the backfill selection.
+		 * @param update Update statement to bind. The caller adds it to the
+		 * batch.
+		 * @throws SQLException
+		 */
+		public void fill(ResultSet row, PreparedStatement update) throws SQLException;
+	}
+
+	private final int major;
+	private final int minor;
+	private final String description;
+
+	/**
+	 * Creates a migration step which produces the given schema version.
+	 *
+	 * @param major Major version after this step.
+	 * @param minor Minor version after this step.
+	 * @param description Short description used in the log.
+	 */
+	protected Migration(int major, int minor, String description){
+		this.major = major;
+		this.minor = minor;
+		this.description = description;
+	}
+
+	public int getMajor(){
+		return major;
+	}
+
+	public int getMinor(){
+		return minor;
+	}
+
+	public String getDescription(){
+		return description;
+	}
+
+	/**
+	 * Returns true if this step produces a version newer than the given
+	 * one.
+	 */
+	public boolean isNewerThan(int major, int minor){
+		return this.major > major || (this.major == major && this.minor > minor);
+	}
+
+	/**
+	 * Returns true if this step produces the version directly after the
+	 * given one, either the next minor version or the first of the next
+	 * major version.
+	 */
+	public boolean follows(int major, int minor){
+		return (this.major == major && this.minor == minor + 1) || (this.major == major + 1 && this.minor == 0);
+	}
+
+	/**
+	 * Applies this step to the database.
+	 *
+	 * @param conn Connection to the plugin's database, in autocommit mode.
+	 * @param storage Backend describing the database dialect.
+	 * @param batchSize Number of rows to update per transaction when
+	 * backfilling.
+	 * @param decimals Fractional digits of the currency, used for the scale
+	 * of new monetary columns.
+	 * @throws SQLException
+	 */
+	public abstract void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException;
+
+	/**
+	 * Returns true if the given table or view exists.
+	 */
+	protected boolean hasTable(Connection conn, String table) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet rs = meta.getTables(conn.getCatalog(), null, null, new String[]{"TABLE", "VIEW"});
+
+		boolean found = false;
+
+		while(rs.next() && !found)
+			found = table.equalsIgnoreCase(rs.getString("TABLE_NAME"));
+
+		rs.close();
+
+		return found;
+	}
+
+	/**
+	 * Returns true if the given table has a column with the given name.
+	 */
+	protected boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet rs = meta.getColumns(conn.getCatalog(), null, table, null);
+
+		boolean found = false;
+
+		while(rs.next() && !found)
+			found = column.equalsIgnoreCase(rs.getString("COLUMN_NAME"));
+
+		rs.close();
+
+		return found;
+	}
+
+	/**
+	 * Runs the given statement.
+	 */
+	protected void execute(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			stmt.executeUpdate(sql);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Adds a column to a table unless it is already present.
+	 *
+	 * @param table Table to alter.
+	 * @param column Name of the new column.
+	 * @param definition Type and constraints of the new column.
+	 * @return True if the column was added.
+	 */
+	protected boolean addColumn(Connection conn, String table, String column, String definition) throws SQLException {
+		if(hasColumn(conn, table, column))
+			return false;
+
+		execute(conn, String.format("ALTER TABLE %s ADD COLUMN %s %s;", table, column, definition));
+
+		return true;
+	}
+
+	/**
+	 * Updates every row matched by a selection in batches, committing after
+	 * each batch so that large tables are not locked for the whole run and
+	 * an interrupted backfill keeps the work already done.
+	 *
+	 * Rows are walked in order of an integer key, so the update may leave
+	 * a row still matching the selection. The selection takes the last key
+	 * seen and the batch size as its two parameters, for example
+	 * "SELECT LoanID FROM Loans WHERE Open='true' AND LoanID > ? ORDER BY LoanID LIMIT ?;".
+	 * The backfill stops when the selection returns no rows.
+	 *
+	 * @param table Table being filled, used in log messages.
+	 * @param key Integer key column returned by the selection.
+	 * @param select Selection of rows to be filled, ordered by key.
+	 * @param update Update statement whose parameters are bound by filler.
+	 * @param filler Binds the update for each selected row.
+	 * @return Total number of rows visited.
+	 * @throws SQLException
+	 */
+	protected int backfill(Connection conn, String table, String key, String select, String update, RowFiller filler, int batchSize) throws SQLException {
+		int total = 0;
+
+		PreparedStatement selectStmt = conn.prepareStatement(select);
+		PreparedStatement updateStmt = conn.prepareStatement(update);
+
+		try {
+			conn.setAutoCommit(false);
+
+			long last = Long.MIN_VALUE;
+
+			while(true){
+				selectStmt.setLong(1, last);
+				selectStmt.setInt(2, batchSize);
+				ResultSet rs = selectStmt.executeQuery();
+
+				int rows = 0;
+
+				while(rs.next()){
+					last = rs.getLong(key);
+					filler.fill(rs, updateStmt);
+					updateStmt.addBatch();
+					rows++;
+				}
+
+				rs.close();
+
+				if(rows == 0)
+					break;
+
+				updateStmt.executeBatch();
+				conn.commit();
+				total += rows;
+
+				if(SerenityLoans.debugLevel >= 2)
+					SerenityLoans.logInfo(String.format("Backfilled %d rows of %s.", total, table));
+			}
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(true);
+			selectStmt.close();
+			updateStmt.close();
+		}
+
+		return total;
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: MySqlBackend.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class is the StorageBackend for a MySQL server. It is the default
+ * backend and reads its connection details from the mysql section of
+ * config.yml.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class MySqlBackend extends StorageBackend {
+
+	private final String host;
+	private final String port;
+	private final String database;
+	private final String username;
+	private final String password;
+
+	/**
+	 * Creates a MySQL backend. Username and password may be null if the
+	 * server does not require them.
+	 */
+	public MySqlBackend(String host, String port, String database, String username, String password){
+		this.host = host;
+		this.port = port;
+		this.database = database;
+		this.username = username;
+		this.password = password;
+	}
+
+	@Override
+	public String getName(){
+		return "MySQL";
+	}
+
+	@Override
+	public String getDriverClass(){
+		return "com.mysql.jdbc.Driver";
+	}
+
+	@Override
+	public String getUrl(){
+		String url = "jdbc:mysql://" + host + ":" + port + "/" + database;
+
+		// Statements are prepared once per pooled connection, so have the server compile them too.
+		// Batched inserts are sent as multi-row statements.
+		url += "?useServerPrepStmts=true&rewriteBatchedStatements=true";
+
+		if(username != null)
+			url += "&user=" + username;
+		if(password != null)
+			url += "&password=" + password;
+
+		return url;
+	}
+
+	@Override
+	public String enumType(String... values){
+		return "ENUM(" + quotedList(values) + ")";
+	}
+
+	@Override
+	public String autoIncrementType(){
+		return "int NOT NULL AUTO_INCREMENT PRIMARY KEY";
+	}
+
+	@Override
+	public void reserveKeys(Connection conn, String table, long next) throws SQLException {
+		// Servers before 8.0 reset the counter to the largest live key on restart.
+		// The server ignores a value below the largest live key.
+		Statement stmt = conn.createStatement();
+
+		try {
+			stmt.executeUpdate(String.format("ALTER TABLE %s AUTO_INCREMENT = %d;", table, next));
+		} finally {
+			stmt.close();
+		}
+	}
+
+	@Override
+	public String now(){
+		return "NOW()";
+	}
+
+	@Override
+	public String onUpdateNow(){
+		return " ON UPDATE NOW()";
+	}
+
+	@Override
+	public String elapsedMillis(String from, String to){
+		return String.format("(TIMESTAMPDIFF(MICROSECOND, %s, %s) / 1000)", from, to);
+	}
+}
@@ -0,0 +1,453 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: Query.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This enum is the catalog of every SQL statement issued by the managers.
+ * Each statement is declared exactly once with bound parameters in place
+ * of values, so that it can be prepared once per pooled connection and
+ * reused. Statements should be obtained with prepare(Connection) and
+ * closed normally when finished; the connection pool keeps the underlying
+ * statement open for the next caller.
+ *
+ * The statements must run on every StorageBackend, so they avoid engine
+ * specific functions. In particular the current time is always bound as a
+ * parameter rather than taken from NOW().
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+public enum Query {
+
+	//=========================== FinancialEntities ===========================
+
+	INSERT_FINANCIAL_ENTITY				("INSERT INTO FinancialEntities (UserID, Type, Cash, CreditScore) VALUES (?, ?, ?, ?);"),
+	SELECT_FINANCIAL_ENTITY				("SELECT * FROM FinancialEntities WHERE UserID=?;"),
+	UPDATE_ENTITY_CASH					("UPDATE FinancialEntities SET Cash=? WHERE UserID=?;"),
+
+	//========================= FinancialInstitutions =========================
+
+	INSERT_FINANCIAL_INSTITUTION		("INSERT INTO FinancialInstitutions (BankID, Name, Manager) VALUES (?, ?, ?);"),
+	SELECT_FINANCIAL_INSTITUTION		("SELECT * FROM FinancialInstitutions WHERE BankID=?;"),
+	SELECT_INSTITUTION_ID_BY_NAME		("SELECT BankID FROM FinancialInstitutions WHERE Name=?;"),
+	SELECT_INSTITUTIONS_BY_MANAGER		("SELECT BankID FROM FinancialInstitutions WHERE Manager=?;"),
+
+	//============================== PlayerNames ==============================
+
+	SELECT_PLAYER_NAMES					("SELECT UserID, Name, LastSeen FROM PlayerNames ORDER BY LastSeen;"),
+	UPDATE_PLAYER_NAME					("UPDATE PlayerNames SET Name=?, LastSeen=? WHERE UserID=?;"),
+	INSERT_PLAYER_NAME					("INSERT INTO PlayerNames (UserID, Name, LastSeen) VALUES (?, ?, ?);"),
+
+	//================================= Trust =================================
+
+	SELECT_IGNORE_OFFERS				("SELECT IgnoreOffers FROM Trust WHERE UserID=? AND TargetID=?;"),
+	UPDATE_IGNORE_OFFERS				("UPDATE Trust SET IgnoreOffers=? WHERE UserID=? AND TargetID=?;"),
+	INSERT_IGNORE_OFFERS				("INSERT INTO Trust (UserID, TargetID, IgnoreOffers) VALUES (?, ?, 'true');"),
+
+	//============================ PreparedOffers =============================
+
+	SELECT_PREPARED_OFFER_NAMES			("SELECT OfferName FROM PreparedOffers WHERE LenderID=?;"),
+	INSERT_PREPARED_OFFER				("INSERT INTO PreparedOffers (LenderID, OfferName, Value, InterestRate, Term, CompoundingPeriod, GracePeriod, PaymentTime, PaymentFrequency, LateFee, MinPayment, ServiceFeeFrequency, ServiceFee, LoanType) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);"),
+	COPY_PREPARED_OFFER					("INSERT INTO PreparedOffers (LenderID, OfferName, Value, InterestRate, Term, CompoundingPeriod, GracePeriod, PaymentTime, PaymentFrequency, LateFee, MinPayment, ServiceFeeFrequency, ServiceFee, LoanType) "
+											+ "SELECT ?, 'inprogress', copy.Value, copy.InterestRate, copy.Term, copy.CompoundingPeriod, copy.GracePeriod, copy.PaymentTime, copy.PaymentFrequency, copy.LateFee, copy.MinPayment, copy.ServiceFeeFrequency, copy.ServiceFee, copy.LoanType "
+											+ "FROM PreparedOffers copy WHERE LenderID=? AND OfferName=?;"),
+	SELECT_INPROGRESS_OFFER_ID			("SELECT OfferID FROM PreparedOffers WHERE LenderID=? AND OfferName='inprogress';"),
+	CLEAR_INPROGRESS_OFFER_NAME			("UPDATE PreparedOffers SET OfferName='' WHERE LenderID=? AND OfferName='inprogress';"),
+	SELECT_PREPARED_OFFER_BY_NAME		("SELECT * FROM PreparedOffers WHERE LenderID=? AND OfferName=?;"),
+	SELECT_PREPARED_OFFER_BY_ID			("SELECT * FROM PreparedOffers WHERE OfferID=?;"),
+	SELECT_PREPARED_OFFER_VALUE			("SELECT Value FROM PreparedOffers WHERE OfferID=?;"),
+
+	// Column names cannot be bound, so each editable terms column has its own statement.
+	UPDATE_TERMS_VALUE					("UPDATE PreparedOffers SET Value=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_INTEREST_RATE			("UPDATE PreparedOffers SET InterestRate=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_TERM					("UPDATE PreparedOffers SET Term=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_COMPOUNDING_PERIOD		("UPDATE PreparedOffers SET CompoundingPeriod=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_GRACE_PERIOD			("UPDATE PreparedOffers SET GracePeriod=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_PAYMENT_TIME			("UPDATE PreparedOffers SET PaymentTime=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_PAYMENT_FREQUENCY		("UPDATE PreparedOffers SET PaymentFrequency=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_LATE_FEE				("UPDATE PreparedOffers SET LateFee=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_MIN_PAYMENT			("UPDATE PreparedOffers SET MinPayment=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_SERVICE_FEE_FREQUENCY	("UPDATE PreparedOffers SET ServiceFeeFrequency=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_SERVICE_FEE			("UPDATE PreparedOffers SET ServiceFee=? WHERE LenderID=? AND OfferName=?;"),
+	UPDATE_TERMS_LOAN_TYPE				("UPDATE PreparedOffers SET LoanType=? WHERE LenderID=? AND OfferName=?;"),
+
+	//================================ Offers =================================
+
+	INSERT_OFFER						("INSERT INTO Offers (LenderID, BorrowerID, ExpirationDate, PreparedTerms) VALUES (?, ?, ?, ?);"),
+	SELECT_OFFER						("SELECT * FROM Offers WHERE LenderID=? AND BorrowerID=?;"),
+	SELECT_OFFER_TERMS_ID				("SELECT PreparedTerms FROM Offers WHERE LenderID=? AND BorrowerID=?;"),
+	SELECT_OFFER_VIEW					("SELECT * FROM offer_view WHERE LenderID=? AND BorrowerID=?;"),
+	SELECT_UNSENT_OFFER_VIEW			("SELECT * FROM offer_view WHERE LenderID=? AND BorrowerID=? AND Sent='false';"),
+	SELECT_OFFER_RECIPIENTS				("SELECT BorrowerID FROM Offers WHERE LenderID=?;"),
+	SELECT_OFFER_SENDERS				("SELECT LenderID FROM Offers WHERE BorrowerID=?;"),
+	SELECT_UNSENT_OFFER_SENDERS			("SELECT LenderID FROM Offers WHERE BorrowerID=? AND Sent='false';"),
+	UPDATE_OFFER_SENT					("UPDATE Offers SET Sent='true' WHERE LenderID=? AND BorrowerID=?;"),
+	DELETE_OFFER						("DELETE FROM Offers WHERE LenderID=? AND BorrowerID=?;"),
+	SELECT_EXPIRED_OFFERS				("SELECT LenderID, BorrowerID FROM Offers WHERE ExpirationDate < ?;"),
+
+	//================================= Loans =================================
+
+	INSERT_LOAN							("INSERT INTO Loans (LenderID, BorrowerID, Terms, Balance, StartDate, LastUpdate) VALUES (?, ?, ?, ?, ?, ?);"),
+	SELECT_LOAN_IDS_BY_PARTIES			("SELECT LoanID FROM Loans WHERE LenderID=? AND BorrowerID=? ORDER BY LoanID;"),
+	SELECT_OPEN_LOAN_IDS				("SELECT DISTINCT LoanID FROM Loans WHERE Open='true' ORDER BY LastUpdate ASC;"),
+	SELECT_DUE_LOAN_IDS					("SELECT LoanID FROM Loans WHERE Open='true' AND NextEventTime <= ? ORDER BY NextEventTime;"),
+	SELECT_OPEN_CONTINUOUS_LOAN_IDS		("SELECT LoanID FROM loans_all WHERE Open='true' AND COALESCE(CompoundingPeriod, 0) = 0;"),
+	SELECT_LOAN_AUTOPAY					("SELECT AutoPay FROM Loans WHERE LoanID=?;"),
+	SELECT_LOAN_BALANCES				("SELECT Balance, InterestBalance, FeeBalance FROM Loans WHERE LoanID=?;"),
+	UPDATE_LOAN_BALANCES				("UPDATE Loans SET Balance=?, InterestBalance=?, FeeBalance=? WHERE LoanID=?;"),
+	UPDATE_LOAN_FEE_BALANCE				("UPDATE Loans SET FeeBalance=? WHERE LoanID=?;"),
+	UPDATE_LOAN_ACCRUAL					("UPDATE Loans SET Balance=?, InterestBalance=? WHERE LoanID=?;"),
+	UPDATE_LOAN_COMPOUND				("UPDATE Loans SET Balance=?, InterestBalance=0 WHERE LoanID=?;"),
+	UPDATE_LOAN_LENDER					("UPDATE Loans SET LenderID=? WHERE LoanID=?;"),
+	// Records that the loan has been updated and keeps the time of its first pending event after the given time
+	UPDATE_LOAN_SCHEDULE				("UPDATE Loans SET LastUpdate=?, NextEventTime=(SELECT MIN(e.EventTime) FROM LoanEvents e WHERE e.LoanID = Loans.LoanID AND e.Executed='false' AND e.EventTime > ? AND e.EventType <> ?) WHERE LoanID=?;"),
+	// Adds the AccrueInterest events a bulk accrual pass has inserted as pending, which no other path does.
+	// Continuously compounded loans accrue into Balance, all others into InterestBalance.
+	APPLY_ACCRUAL_TO_BALANCE			("UPDATE Loans SET Balance = Balance + COALESCE((SELECT SUM(e.Amount) FROM LoanEvents e WHERE e.LoanID = Loans.LoanID AND e.Executed='false' AND e.EventType='AccrueInterest'), 0) "
+											+ "WHERE Open='true' AND Terms IN (SELECT OfferID FROM PreparedOffers WHERE COALESCE(CompoundingPeriod, 0) = 0);"),
+	APPLY_ACCRUAL_TO_INTEREST_BALANCE	("UPDATE Loans SET InterestBalance = InterestBalance + COALESCE((SELECT SUM(e.Amount) FROM LoanEvents e WHERE e.LoanID = Loans.LoanID AND e.Executed='false' AND e.EventType='AccrueInterest'), 0) "
+											+ "WHERE Open='true' AND Terms IN (SELECT OfferID FROM PreparedOffers WHERE CompoundingPeriod <> 0);"),
+	EXECUTE_BULK_ACCRUAL				("UPDATE LoanEvents SET Executed='true' WHERE Executed='false' AND EventType='AccrueInterest';"),
+	CLOSE_LOAN							("UPDATE Loans SET Open='false', LastUpdate=? WHERE LoanID=?;"),
+	SELECT_ARCHIVABLE_LOAN_IDS			("SELECT LoanID FROM Loans WHERE Open='false' AND LastUpdate < ? ORDER BY LastUpdate LIMIT ?;"),
+	ARCHIVE_LOAN						("INSERT INTO LoansArchive (LoanID, LenderID, BorrowerID, Terms, AutoPay, Balance, InterestBalance, FeeBalance, StartDate, LastUpdate, NextEventTime, Open) SELECT LoanID, LenderID, BorrowerID, Terms, AutoPay, Balance, InterestBalance, FeeBalance, StartDate, LastUpdate, NextEventTime, Open FROM Loans WHERE LoanID=? AND Open='false';"),
+	DELETE_ARCHIVED_LOAN				("DELETE FROM Loans WHERE LoanID=? AND Open='false';"),
+
+	//============================= LoansArchive ==============================
+
+	SELECT_ARCHIVED_LOAN_IDS_BY_PARTIES	("SELECT LoanID FROM LoansArchive WHERE LenderID=? AND BorrowerID=? ORDER BY LoanID;"),
+
+	//=============================== LoanEvents ==============================
+
+	INSERT_LOAN_EVENT					("INSERT INTO LoanEvents (LoanID, EventTime, EventType, Amount, Executed) VALUES (?, ?, ?, ?, ?);"),
+	SELECT_PENDING_LOAN_EVENTS			("SELECT * FROM LoanEvents WHERE LoanID=? AND Executed='false' ORDER BY EventTime;"),
+	SELECT_LAST_EXECUTED_EVENT_TIME		("SELECT EventTime FROM LoanEvents WHERE LoanID=? AND Executed='true' ORDER BY EventTime DESC LIMIT 1;"),
+	SELECT_COMPACTABLE_LOAN_IDS			("SELECT DISTINCT LoanID FROM LoanEvents WHERE Executed='true' AND EventTime < ?;"),
+	// Executed events before the given time are copied to LoanEventsArchive, then removed
+	ARCHIVE_LOAN_EVENTS					("INSERT INTO LoanEventsArchive (LoanEventID, LoanID, EventTime, EventType, Amount, Executed) SELECT LoanEventID, LoanID, EventTime, EventType, Amount, Executed FROM LoanEvents WHERE LoanID=? AND Executed='true' AND EventTime < ?;"),
+	DELETE_ARCHIVED_LOAN_EVENTS			("DELETE FROM LoanEvents WHERE LoanID=? AND Executed='true' AND EventTime < ?;"),
+	ARCHIVE_ALL_LOAN_EVENTS				("INSERT INTO LoanEventsArchive (LoanEventID, LoanID, EventTime, EventType, Amount, Executed) SELECT LoanEventID, LoanID, EventTime, EventType, Amount, Executed FROM LoanEvents WHERE LoanID=?;"),
+	DELETE_ALL_LOAN_EVENTS				("DELETE FROM LoanEvents WHERE LoanID=?;"),
+	MARK_LOAN_EVENT_EXECUTED			("UPDATE LoanEvents SET Executed='true' WHERE LoanEventID=?;"),
+	EXECUTE_LOAN_EVENT					("UPDATE LoanEvents SET Amount=?, Executed='true' WHERE LoanEventID=?;"),
+	SELECT_NEXT_EVENT_TIMES				("SELECT LoanEvents.LoanID, MIN(LoanEvents.EventTime) AS NextEvent FROM LoanEvents JOIN Loans ON Loans.LoanID = LoanEvents.LoanID WHERE LoanEvents.Executed='false' AND LoanEvents.EventType <> ? AND Loans.Open='true' GROUP BY LoanEvents.LoanID;"),
+	SELECT_NEXT_LOAN_EVENT_TIME			("SELECT MIN(LoanEvents.EventTime) FROM LoanEvents JOIN Loans ON Loans.LoanID = LoanEvents.LoanID WHERE LoanEvents.LoanID=? AND LoanEvents.Executed='false' AND LoanEvents.EventTime > ? AND LoanEvents.EventType <> ? AND Loans.Open='true';"),
+
+	//============================= LoanSnapshots =============================
+
+	INSERT_LOAN_SNAPSHOT				("INSERT INTO LoanSnapshots (LoanID, SnapshotTime, Balance, InterestBalance, FeeBalance) VALUES (?, ?, ?, ?, ?);"),
+	SELECT_LOAN_SNAPSHOT_TIME			("SELECT SnapshotTime FROM LoanSnapshots WHERE LoanID=?;"),
+	DELETE_LOAN_SNAPSHOT				("DELETE FROM LoanSnapshots WHERE LoanID=?;"),
+
+	//=========================== PaymentStatements ===========================
+
+	INSERT_PAYMENT_STATEMENT			("INSERT INTO PaymentStatements (LoanID, BillAmount, Minimum, StatementDate, DueDate) VALUES (?, ?, ?, ?, ?);"),
+	INSERT_PAYMENT_STATEMENT_PAID		("INSERT INTO PaymentStatements (LoanID, BillAmount, Minimum, StatementDate, DueDate, BillAmountPaid) VALUES (?, ?, ?, ?, ?, ?);"),
+	SELECT_LATEST_PAYMENT_STATEMENT		("SELECT * FROM PaymentStatements WHERE LoanID=? ORDER BY StatementDate DESC LIMIT 1;"),
+	SELECT_OUTSTANDING_STATEMENT_LOANS	("SELECT DISTINCT PaymentStatements.LoanID FROM PaymentStatements JOIN Loans ON Loans.LoanID = PaymentStatements.LoanID WHERE Loans.BorrowerID=? AND PaymentStatements.BillAmountPaid < PaymentStatements.BillAmount;"),
+	UPDATE_STATEMENT_PAID				("UPDATE PaymentStatements SET BillAmountPaid=? WHERE StatementID=?;"),
+	ARCHIVE_PAYMENT_STATEMENTS			("INSERT INTO PaymentStatementsArchive (StatementID, LoanID, BillAmount, Minimum, StatementDate, DueDate, BillAmountPaid, AdditionalPrincipal, AdditionalInterest, AdditionalFees) SELECT StatementID, LoanID, BillAmount, Minimum, StatementDate, DueDate, BillAmountPaid, AdditionalPrincipal, AdditionalInterest, AdditionalFees FROM PaymentStatements WHERE LoanID=?;"),
+	DELETE_PAYMENT_STATEMENTS			("DELETE FROM PaymentStatements WHERE LoanID=?;"),
+
+	//================================= Keys ==================================
+
+	// Largest keys ever issued, counting rows moved to the archive tables
+	SELECT_MAX_LOAN_ID					("SELECT MAX(LoanID) FROM (SELECT MAX(LoanID) AS LoanID FROM Loans UNION ALL SELECT MAX(LoanID) FROM LoansArchive) ids;"),
+	SELECT_MAX_LOAN_EVENT_ID			("SELECT MAX(LoanEventID) FROM (SELECT MAX(LoanEventID) AS LoanEventID FROM LoanEvents UNION ALL SELECT MAX(LoanEventID) FROM LoanEventsArchive) ids;"),
+	SELECT_MAX_STATEMENT_ID				("SELECT MAX(StatementID) FROM (SELECT MAX(StatementID) AS StatementID FROM PaymentStatements UNION ALL SELECT MAX(StatementID) FROM PaymentStatementsArchive) ids;"),
+
+	//================================= Info ==================================
+
+	SELECT_SCHEMA_VERSION				("SELECT DBmajor, DBminor FROM Info;"),
+	UPDATE_SCHEMA_VERSION				("UPDATE Info SET DBmajor=?, DBminor=?;");
+
+
+	/**
+	 * Largest number of LoanIDs hydrated by one statement from
+	 * selectLoansHydrated().
+	 */
+	public static final int HYDRATION_BATCH_SIZE = 32;
+
+	// Loans with their terms and both parties. Institution columns are null for players.
+	private static final String LOAN_HYDRATION = "SELECT Loans.LoanID, Loans.Terms, Loans.Balance, Loans.InterestBalance, Loans.FeeBalance, Loans.StartDate, Loans.LastUpdate, Loans.LenderID, Loans.BorrowerID, "
+			+ "PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFee, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, "
+			+ "PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.ServiceFeeFrequency, PreparedOffers.LoanType, "
+			+ "Lender.Type AS LenderType, Lender.Cash AS LenderCash, Lender.CreditScore AS LenderCreditScore, LenderBank.Name AS LenderName, LenderBank.Manager AS LenderManager, "
+			+ "Borrower.Type AS BorrowerType, Borrower.Cash AS BorrowerCash, Borrower.CreditScore AS BorrowerCreditScore, BorrowerBank.Name AS BorrowerName, BorrowerBank.Manager AS BorrowerManager "
+			+ "FROM Loans JOIN PreparedOffers ON Loans.Terms = PreparedOffers.OfferID "
+			+ "JOIN FinancialEntities Lender ON Lender.UserID = Loans.LenderID "
+			+ "JOIN FinancialEntities Borrower ON Borrower.UserID = Loans.BorrowerID "
+			+ "LEFT JOIN FinancialInstitutions LenderBank ON LenderBank.BankID = Loans.LenderID "
+			+ "LEFT JOIN FinancialInstitutions BorrowerBank ON BorrowerBank.BankID = Loans.BorrowerID ";
+
+	// The same for closed loans which have been archived, which are read under the Loans alias
+	private static final String ARCHIVED_LOAN_HYDRATION = LOAN_HYDRATION.replace("FROM Loans JOIN", "FROM LoansArchive Loans JOIN");
+
+	// Pending AccrueInterest events for every open loan, for APPLY_ACCRUAL_TO_BALANCE and APPLY_ACCRUAL_TO_INTEREST_BALANCE
+	private static final String BULK_ACCRUAL = "INSERT INTO LoanEvents (LoanID, EventTime, EventType, Amount, Executed) SELECT f.LoanID, ?, 'AccrueInterest', ";
+
+	// Time each loan's stored balances are accurate to and the amount paid on its latest statement, with its
+	// pending compounding and fees due by the bound time. Loans with no such event come back as one row with null event columns.
+	private static final String ACCRUAL_BASIS = "SELECT Loans.LoanID, "
+			+ "COALESCE((SELECT MAX(e.EventTime) FROM LoanEvents e WHERE e.LoanID = Loans.LoanID AND e.Executed='true'), "
+			+ "(SELECT s.SnapshotTime FROM LoanSnapshots s WHERE s.LoanID = Loans.LoanID), Loans.StartDate) AS AccruedTo, "
+			+ "(SELECT p.BillAmountPaid FROM PaymentStatements p WHERE p.LoanID = Loans.LoanID ORDER BY p.StatementDate DESC LIMIT 1) AS LatestPaid, "
+			+ "Due.LoanEventID, Due.EventTime, Due.EventType, Due.Amount "
+			+ "FROM Loans LEFT JOIN LoanEvents Due ON Due.LoanID = Loans.LoanID AND Due.Executed='false' AND Due.EventType IN ('CompoundInterest', 'ServiceFee', 'LateFee') AND Due.EventTime <= ? ";
+
+	private static final Map<String, Query> bySQL = new HashMap<String, Query>();
+
+	static {
+		for(Query q : values())
+			bySQL.put(q.sql, q);
+	}
+
+	private final String sql;
+
+	private Query(String sql){
+		this.sql = sql;
+	}
+
+	/**
+	 * Returns the SQL text of this statement.
+	 *
+	 * @return SQL string with ? placeholders for parameters.
+	 */
+	public String getSQL(){
+		return sql;
+	}
+
+	/**
+	 * Prepares this statement on the given connection. Connections from
+	 * the plugin's ConnectionPool keep prepared statements cached, so
+	 * repeated calls on the same pooled connection reuse the statement that
+	 * was already compiled. The caller should close the statement when
+	 * finished as usual.
+	 *
+	 * @param conn Connection on which to prepare the statement.
+	 * @return PreparedStatement for this query.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(Connection conn) throws SQLException {
+		return conn.prepareStatement(sql);
+	}
+
+	/**
+	 * Prepares this statement so that keys generated by the database for
+	 * inserted rows can be read with getGeneratedKeys(). These statements
+	 * are not kept in the per-connection cache.
+	 *
+	 * @param conn Connection on which to prepare the statement.
+	 * @return PreparedStatement for this query.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareReturningKeys(Connection conn) throws SQLException {
+		return conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+	}
+
+	/**
+	 * Returns the statement which reads complete loans, with their terms and
+	 * both parties, for the given number of LoanIDs. The count is rounded up
+	 * to a power of two, at most HYDRATION_BATCH_SIZE, so that only a few
+	 * distinct statements reach the statement cache. Callers bind every
+	 * placeholder, repeating the last LoanID to fill any left over.
+	 *
+	 * @param count Number of LoanIDs to read.
+	 * @return SQL string with one ? placeholder per LoanID.
+	 */
+	public static String selectLoansHydrated(int count){
+		return selectLoansHydrated(count, false);
+	}
+
+	/**
+	 * Returns the statement of selectLoansHydrated(count), reading from
+	 * LoansArchive instead of Loans if archived is true.
+	 */
+	public static String selectLoansHydrated(int count, boolean archived){
+		int size = hydratedPlaceholders(count);
+
+		StringBuilder sb = new StringBuilder(archived? ARCHIVED_LOAN_HYDRATION : LOAN_HYDRATION).append("WHERE Loans.LoanID IN (");
+
+		for(int i = 0; i < size; i++)
+			sb.append(i == 0? "?" : ", ?");
+
+		return sb.append(");").toString();
+	}
+
+	/**
+	 * Returns the statement which reads what is needed to work out the
+	 * current balances of the given number of loans: the time each loan's
+	 * stored balances are accurate to, the amount paid on its latest
+	 * statement, and its pending compounding and fee events due by the time
+	 * bound to the first placeholder. Rows are ordered by
+	 * LoanID and then EventTime. The LoanID placeholders follow the time
+	 * and are sized and filled as for selectLoansHydrated(count).
+	 *
+	 * @param count Number of LoanIDs to read.
+	 * @return SQL string with a ? placeholder for the time and one per LoanID.
+	 */
+	public static String selectAccrualBasis(int count){
+		int size = hydratedPlaceholders(count);
+
+		StringBuilder sb = new StringBuilder(ACCRUAL_BASIS).append("WHERE Loans.LoanID IN (");
+
+		for(int i = 0; i < size; i++)
+			sb.append(i == 0? "?" : ", ?");
+
+		return sb.append(") ORDER BY Loans.LoanID, Due.EventTime;").toString();
+	}
+
+	/**
+	 * Returns the statement which inserts a pending AccrueInterest event for
+	 * every open loan, with the interest since its balances were last
+	 * accurate (last executed event, else snapshot, else start date). The
+	 * parameters are the event time, the same time as the end of the
+	 * accrual period, and the reporting time in milliseconds.
+	 *
+	 * Continuously compounded loans need an exponential. On a backend
+	 * without one they are left out, and the caller must accrue them one
+	 * at a time.
+	 *
+	 * @param storage Backend whose dialect the statement is written in.
+	 * @return SQL string with three ? placeholders.
+	 */
+	public static String insertBulkAccrual(StorageBackend storage){
+		String exp = storage.exp("f.Rate * f.Factor");
+		String lastEvent = "COALESCE((SELECT MAX(e.EventTime) FROM LoanEvents e WHERE e.LoanID = a.LoanID AND e.Executed='true'), "
+				+ "(SELECT s.SnapshotTime FROM LoanSnapshots s WHERE s.LoanID = a.LoanID), a.StartDate)";
+		String amount = exp == null? "f.Balance * f.Rate * f.Factor"
+				: String.format("CASE WHEN f.Period = 0 THEN f.Balance * (%s - 1) ELSE f.Balance * f.Rate * f.Factor END", exp);
+
+		return BULK_ACCRUAL + amount + ", 'false' "
+				+ "FROM (SELECT a.LoanID, a.Balance, a.InterestRate AS Rate, COALESCE(a.CompoundingPeriod, 0) AS Period, "
+				+ storage.elapsedMillis(lastEvent, "?") + " / ? AS Factor "
+				+ "FROM loans_all a WHERE a.Open='true') f "
+				+ "WHERE f.Factor > 0" + (exp == null? " AND f.Period <> 0;" : ";");
+	}
+
+	/**
+	 * Returns the number of placeholders in selectLoansHydrated(count).
+	 */
+	public static int hydratedPlaceholders(int count){
+		int size = 1;
+		while(size < Math.min(count, HYDRATION_BATCH_SIZE))
+			size <<= 1;
+
+		return size;
+	}
+
+	/**
+	 * Returns a short name for the given SQL text, used to group statement
+	 * timings. Statements from this catalog are named after their constant,
+	 * every size of selectLoansHydrated() or selectAccrualBasis() shares one
+	 * name, and so does insertBulkAccrual(). Any other
+	 * text, such as schema changes, is named by its first few words.
+	 *
+	 * @param sql SQL text as it was prepared or executed.
+	 * @return Name for reporting, never null.
+	 */
+	public static String labelFor(String sql){
+		if(sql == null)
+			return "(batch)";
+
+		Query q = bySQL.get(sql);
+
+		if(q != null)
+			return q.name();
+
+		if(sql.startsWith(LOAN_HYDRATION))
+			return "SELECT_LOANS_HYDRATED";
+
+		if(sql.startsWith(ARCHIVED_LOAN_HYDRATION))
+			return "SELECT_ARCHIVED_LOANS_HYDRATED";
+
+		if(sql.startsWith(ACCRUAL_BASIS))
+			return "SELECT_ACCRUAL_BASIS";
+
+		if(sql.startsWith(BULK_ACCRUAL))
+			return "INSERT_BULK_ACCRUAL";
+
+		String text = sql.trim().replaceAll("\\s+", " ");
+
+		return text.length() <= 40? text : text.substring(0, 40) + "...";
+	}
+
+	/**
+	 * Looks up the update statement for the named PreparedOffers terms
+	 * column. This is the only supported way to choose a column at run
+	 * time, so arbitrary column names never reach the SQL text.
+	 *
+	 * @param column Name of the PreparedOffers column, case insensitive.
+	 * @return Matching update statement, or null if the column is not editable.
+	 */
+	public static Query termsUpdate(String column){
+		if(column == null)
+			return null;
+
+		if(column.equalsIgnoreCase("Value"))
+			return UPDATE_TERMS_VALUE;
+		if(column.equalsIgnoreCase("InterestRate"))
+			return UPDATE_TERMS_INTEREST_RATE;
+		if(column.equalsIgnoreCase("Term"))
+			return UPDATE_TERMS_TERM;
+		if(column.equalsIgnoreCase("CompoundingPeriod"))
+			return UPDATE_TERMS_COMPOUNDING_PERIOD;
+		if(column.equalsIgnoreCase("GracePeriod"))
+			return UPDATE_TERMS_GRACE_PERIOD;
+		if(column.equalsIgnoreCase("PaymentTime"))
+			return UPDATE_TERMS_PAYMENT_TIME;
+		if(column.equalsIgnoreCase("PaymentFrequency"))
+			return UPDATE_TERMS_PAYMENT_FREQUENCY;
+		if(column.equalsIgnoreCase("LateFee"))
+			return UPDATE_TERMS_LATE_FEE;
+		if(column.equalsIgnoreCase("MinPayment"))
+			return UPDATE_TERMS_MIN_PAYMENT;
+		if(column.equalsIgnoreCase("ServiceFeeFrequency"))
+			return UPDATE_TERMS_SERVICE_FEE_FREQUENCY;
+		if(column.equalsIgnoreCase("ServiceFee"))
+			return UPDATE_TERMS_SERVICE_FEE;
+		if(column.equalsIgnoreCase("LoanType"))
+			return UPDATE_TERMS_LOAN_TYPE;
+
+		return null;
+	}
+}
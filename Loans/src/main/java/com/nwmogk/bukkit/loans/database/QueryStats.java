@@ -0,0 +1,271 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: QueryStats.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class collects timing statistics for the statements run through
+ * the ConnectionPool. Statements are grouped by their name in the Query
+ * catalog, and for each group the pool records how many times it ran,
+ * the total time spent, the number of rows read or changed, and a latency
+ * histogram from which the median and 99th percentile are estimated.
+ * Any single statement taking longer than the slow query threshold is
+ * also written to the log along with its SQL text.
+ * 
+ * The histogram uses power of two buckets of microseconds, so reported
+ * percentiles are the upper edge of the bucket they fall in and may be
+ * up to twice the true value. This keeps recording to a handful of
+ * atomic increments on the calling thread.
+ * 
+ * A moving average of the time of all statements is also kept, which
+ * the BackgroundPacer uses to tell when the database is under load.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.nwmogk.bukkit.loans.SerenityLoans;
+
+public class QueryStats {
+
+	// Bucket i holds latencies of less than 2^i microseconds. The last bucket is unbounded.
+	private static final int BUCKETS = 32;
+
+	private final long slowThreshold;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	
+	// Moving average of recent statement times, each new statement weighted 1/8
+	private final AtomicLong recentNanos = new AtomicLong();
+
+	private volatile long since = System.currentTimeMillis();
+
+	/**
+	 * Creates an empty set of statistics.
+	 *
+	 * @param slowThreshold Time in milliseconds above which a statement is logged. 0 disables.
+	 */
+	public QueryStats(long slowThreshold){
+		this.slowThreshold = Math.max(0, slowThreshold);
+	}
+
+	/**
+	 * Returns the statistics for the statement with the given SQL text,
+	 * creating them if this is the first time it has run.
+	 *
+	 * @param sql SQL text of the statement, or null for a batch of plain statements.
+	 * @return Entry to record into.
+	 */
+	public Entry entryFor(String sql){
+		String label = Query.labelFor(sql);
+		Entry e = entries.get(label);
+
+		if(e == null){
+			Entry created = new Entry(label);
+			e = entries.putIfAbsent(label, created);
+
+			if(e == null)
+				e = created;
+		}
+
+		return e;
+	}
+
+	/**
+	 * Records one execution of a statement and logs it if it was slow.
+	 *
+	 * @param entry Entry obtained from entryFor().
+	 * @param sql SQL text, used only in the slow query log.
+	 * @param nanos Elapsed time of the execution.
+	 * @param rows Number of rows changed by the execution. Rows read from
+	 * a result set are added separately as they are fetched.
+	 */
+	public void record(Entry entry, String sql, long nanos, long rows){
+		entry.record(nanos, rows);
+		
+		long average = recentNanos.get();
+		while(!recentNanos.compareAndSet(average, average + (nanos - average) / 8))
+			average = recentNanos.get();
+
+		if(slowThreshold > 0 && nanos >= slowThreshold * 1000000L)
+			SerenityLoans.logWarn(String.format("Slow query %s took %d ms: %s", entry.label, nanos / 1000000L, sql == null? "(batch)" : sql));
+	}
+
+	/**
+	 * Returns every entry, most total time first.
+	 *
+	 * @return List of entries. The entries keep updating after this returns.
+	 */
+	public List<Entry> getEntries(){
+		List<Entry> result = new ArrayList<Entry>(entries.values());
+
+		Collections.sort(result, new Comparator<Entry>(){
+			public int compare(Entry a, Entry b) {
+				long ta = a.totalNanos.get();
+				long tb = b.totalNanos.get();
+				return ta < tb? 1 : (ta == tb? a.label.compareTo(b.label) : -1);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Returns the time at which collection started or was last reset.
+	 *
+	 * @return Time in milliseconds since the epoch.
+	 */
+	public long getSince(){
+		return since;
+	}
+
+	/**
+	 * Returns the moving average time of the most recent statements.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public double getRecentMillis(){
+		return recentNanos.get() / 1000000.0;
+	}
+
+	public long getSlowThreshold(){
+		return slowThreshold;
+	}
+
+	/**
+	 * Discards all statistics collected so far.
+	 */
+	public void reset(){
+		entries.clear();
+		since = System.currentTimeMillis();
+	}
+
+	/**
+	 * Statistics for one named statement.
+	 */
+	public static class Entry {
+
+		private final String label;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		private Entry(String label){
+			this.label = label;
+		}
+
+		private void record(long nanos, long rowCount){
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			if(rowCount > 0)
+				rows.addAndGet(rowCount);
+
+			long max = maxNanos.get();
+			while(nanos > max && !maxNanos.compareAndSet(max, nanos))
+				max = maxNanos.get();
+
+			long micros = Math.max(0, nanos / 1000L);
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			histogram.incrementAndGet(bucket);
+		}
+
+		/**
+		 * Adds rows read from a result set produced by this statement.
+		 */
+		void addRows(long rowCount){
+			rows.addAndGet(rowCount);
+		}
+
+		public String getLabel(){
+			return label;
+		}
+
+		public long getCount(){
+			return count.get();
+		}
+
+		public double getTotalMillis(){
+			return totalNanos.get() / 1000000.0;
+		}
+
+		public double getMaxMillis(){
+			return maxNanos.get() / 1000000.0;
+		}
+
+		public long getRows(){
+			return rows.get();
+		}
+
+		/**
+		 * Estimates the given latency percentile from the histogram.
+		 *
+		 * @param fraction Percentile as a fraction, such as 0.99.
+		 * @return Upper edge in milliseconds of the bucket containing the
+		 * percentile, capped at the largest time seen. 0 if nothing has run.
+		 */
+		public double getPercentileMillis(double fraction){
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+
+			for(int i = 0; i < BUCKETS; i++){
+				counts[i] = histogram.get(i);
+				total += counts[i];
+			}
+
+			if(total == 0)
+				return 0;
+
+			long target = (long) Math.ceil(total * fraction);
+			long seen = 0;
+
+			for(int i = 0; i < BUCKETS - 1; i++){
+				seen += counts[i];
+
+				if(seen >= target)
+					return Math.min((1L << i) / 1000.0, getMaxMillis());
+			}
+
+			return getMaxMillis();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: SchemaIndex.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This enum lists the secondary indexes which the plugin's queries rely
+ * on. Each index is matched to one of the frequently executed statements
+ * in Query, with columns ordered as equality filters first, then the sort
+ * or range column, then any extra columns needed to answer the query from
+ * the index alone.
+ *
+ * The indexes are created with the tables on a new database. On startup
+ * the plugin checks an existing database for missing indexes and either
+ * creates them or reports them, depending on configuration, so databases
+ * built by earlier versions pick them up as well.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+public enum SchemaIndex {
+
+	// SELECT_PENDING_LOAN_EVENTS and SELECT_LAST_EXECUTED_EVENT_TIME
+	LOAN_EVENTS_SCHEDULE		("idx_loanevents_schedule",		"LoanEvents",			"LoanID, Executed, EventTime"),
+
+	// Lookups of the history of one loan once its events have been compacted
+	LOAN_EVENTS_ARCHIVE			("idx_loaneventsarchive_loan",	"LoanEventsArchive",	"LoanID, EventTime"),
+
+	// SELECT_ARCHIVED_LOAN_IDS_BY_PARTIES
+	LOANS_ARCHIVE_PARTIES		("idx_loansarchive_parties",	"LoansArchive",			"LenderID, BorrowerID"),
+
+	// Lookups of the statements of one archived loan
+	STATEMENTS_ARCHIVE_LOAN		("idx_statementsarchive_loan",	"PaymentStatementsArchive",	"LoanID, StatementDate"),
+
+	// SELECT_LATEST_PAYMENT_STATEMENT
+	STATEMENTS_BY_DATE			("idx_statements_date",			"PaymentStatements",	"LoanID, StatementDate"),
+
+	// SELECT_OUTSTANDING_STATEMENT_LOANS compares two columns, so it cannot seek.
+	// This index lets it scan the index alone, already in LoanID order, before joining Loans.
+	STATEMENTS_OUTSTANDING		("idx_statements_outstanding",	"PaymentStatements",	"LoanID, BillAmount, BillAmountPaid"),
+
+	// SELECT_OPEN_LOAN_IDS and SELECT_ARCHIVABLE_LOAN_IDS
+	LOANS_OPEN					("idx_loans_open",				"Loans",				"Open, LastUpdate, LoanID"),
+
+	// SELECT_DUE_LOAN_IDS
+	LOANS_NEXT_EVENT			("idx_loans_next_event",		"Loans",				"Open, NextEventTime"),
+
+	// SELECT_LOAN_IDS_BY_PARTIES
+	LOANS_PARTIES				("idx_loans_parties",			"Loans",				"LenderID, BorrowerID"),
+
+	// Foreign key checks when PreparedOffers rows are removed
+	LOANS_TERMS					("idx_loans_terms",				"Loans",				"Terms"),
+
+	// SELECT_EXPIRED_OFFERS
+	OFFERS_EXPIRATION			("idx_offers_expiration",		"Offers",				"ExpirationDate"),
+
+	// SELECT_OFFER_SENDERS and SELECT_UNSENT_OFFER_SENDERS
+	OFFERS_BORROWER				("idx_offers_borrower",			"Offers",				"BorrowerID, Sent"),
+
+	// SELECT_PREPARED_OFFER_BY_NAME, SELECT_INPROGRESS_OFFER_ID and the UPDATE_TERMS_ statements
+	PREPARED_OFFERS_NAME		("idx_preparedoffers_name",		"PreparedOffers",		"LenderID, OfferName"),
+
+	// SELECT_INSTITUTIONS_BY_MANAGER
+	INSTITUTIONS_MANAGER		("idx_institutions_manager",	"FinancialInstitutions","Manager");
+
+
+	private final String indexName;
+	private final String table;
+	private final String columns;
+
+	private SchemaIndex(String indexName, String table, String columns){
+		this.indexName = indexName;
+		this.table = table;
+		this.columns = columns;
+	}
+
+	public String getIndexName(){
+		return indexName;
+	}
+
+	public String getTable(){
+		return table;
+	}
+
+	/**
+	 * Returns the SQL statement which creates this index.
+	 */
+	public String getCreateSQL(){
+		return String.format("CREATE INDEX %s ON %s (%s);", indexName, table, columns);
+	}
+
+	/**
+	 * Creates this index on the given connection.
+	 *
+	 * @param conn Connection to the plugin's database.
+	 * @throws SQLException
+	 */
+	public void create(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			stmt.executeUpdate(getCreateSQL());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Returns the indexes which are not present in the database. Indexes
+	 * are recognized by name, without regard to case.
+	 *
+	 * @param conn Connection to the plugin's database.
+	 * @return List of missing indexes, empty if all are present.
+	 * @throws SQLException
+	 */
+	public static List<SchemaIndex> findMissing(Connection conn) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		List<SchemaIndex> missing = new LinkedList<SchemaIndex>();
+		Set<String> checkedTables = new HashSet<String>();
+		Set<String> present = new HashSet<String>();
+
+		for(SchemaIndex index : values()){
+			if(checkedTables.add(index.table)){
+				ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, index.table, false, false);
+
+				while(rs.next()){
+					String name = rs.getString("INDEX_NAME");
+					if(name != null)
+						present.add(name.toLowerCase());
+				}
+
+				rs.close();
+			}
+
+			if(!present.contains(index.indexName.toLowerCase()))
+				missing.add(index);
+		}
+
+		return missing;
+	}
+}
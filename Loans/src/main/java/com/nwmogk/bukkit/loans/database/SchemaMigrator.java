@@ -0,0 +1,310 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: SchemaMigrator.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class brings an existing database up to the schema version the
+ * plugin expects. The migration steps are listed in order of the version
+ * they produce. On startup every step newer than the version recorded in
+ * the Info table is applied in turn, and the Info table is updated after
+ * each one, so an interrupted upgrade resumes from the last completed
+ * step. Existing data is kept.
+ *
+ * Any schema change must bump SerenityLoans.dbMinorVersion (or
+ * dbMajorVersion), change setupTables() so new databases are built at the
+ * new version directly, and add a step here which makes the same change
+ * to an older database. Steps describe the schema as it was at their
+ * version and must not be edited once released.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.nwmogk.bukkit.loans.SerenityLoans;
+import com.nwmogk.bukkit.loans.exception.DatabaseVersionMismatchException;
+
+public class SchemaMigrator {
+
+	private static final List<Migration> migrations;
+
+	static {
+		List<Migration> steps = new ArrayList<Migration>();
+
+		// offer_view was built without the Sent column, which SELECT_UNSENT_OFFER_VIEW filters on
+		steps.add(new Migration(0, 7, "Add Sent column to offer_view"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				execute(conn, "DROP VIEW IF EXISTS offer_view;");
+				execute(conn, "CREATE VIEW offer_view AS "
+						+ "SELECT Offers.LenderID, Offers.BorrowerID, Offers.ExpirationDate, Offers.Sent, PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFeeFrequency, PreparedOffers.ServiceFee, PreparedOffers.LoanType "
+						+ "FROM Offers JOIN PreparedOffers "
+						+ "ON Offers.PreparedTerms = PreparedOffers.OfferID;");
+			}
+		});
+
+		// Bulk interest accrual selects open loans with their terms from loans_all
+		steps.add(new Migration(0, 8, "Add Open column to loans_all"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				execute(conn, "DROP VIEW IF EXISTS loans_all;");
+				execute(conn, "CREATE VIEW loans_all AS "
+						+ "SELECT Loans.LoanID, Loans.LenderID, Loans.BorrowerID, Loans.StartDate, Loans.Balance, Loans.InterestBalance, Loans.FeeBalance, Loans.AutoPay, Loans.LastUpdate, Loans.Open, PreparedOffers.Value, PreparedOffers.InterestRate, PreparedOffers.Term, PreparedOffers.CompoundingPeriod, PreparedOffers.GracePeriod, PreparedOffers.PaymentTime, PreparedOffers.PaymentFrequency, PreparedOffers.LateFee, PreparedOffers.MinPayment, PreparedOffers.ServiceFeeFrequency, PreparedOffers.ServiceFee "
+						+ "FROM Loans JOIN PreparedOffers "
+						+ "ON Loans.Terms = PreparedOffers.OfferID;");
+			}
+		});
+
+		// The polling update selects only loans whose next event is due
+		steps.add(new Migration(0, 9, "Add NextEventTime column to Loans"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				addColumn(conn, "Loans", "NextEventTime", "TIMESTAMP NULL");
+				
+				// Loans without pending events keep a null NextEventTime, which is why rows are walked by LoanID
+				backfill(conn, "Loans", "LoanID",
+						"SELECT LoanID FROM Loans WHERE Open='true' AND LoanID > ? ORDER BY LoanID LIMIT ?;",
+						"UPDATE Loans SET NextEventTime=(SELECT MIN(e.EventTime) FROM LoanEvents e WHERE e.LoanID = Loans.LoanID AND e.Executed='false' AND e.EventTime > COALESCE(Loans.LastUpdate, Loans.StartDate)) WHERE LoanID=?;",
+						new Migration.RowFiller(){
+							public void fill(ResultSet row, PreparedStatement update) throws SQLException {
+								update.setInt(1, row.getInt("LoanID"));
+							}
+						}, batchSize);
+			}
+		});
+
+		// Old executed events are folded into per-loan snapshots and moved out of LoanEvents
+		steps.add(new Migration(0, 10, "Add LoanSnapshots and LoanEventsArchive tables"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				if(!hasTable(conn, "LoanSnapshots"))
+					execute(conn, "CREATE TABLE LoanSnapshots"
+							+ "("
+							+ "LoanID int NOT NULL,"
+							+ "SnapshotTime TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+							+ "Balance DECIMAL(9," + decimals + ") NOT NULL,"
+							+ "InterestBalance DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+							+ "FeeBalance DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+							+ "PRIMARY KEY (LoanID),"
+							+ "FOREIGN KEY (LoanID) REFERENCES Loans (LoanID)"
+							+ ");");
+				
+				if(!hasTable(conn, "LoanEventsArchive"))
+					execute(conn, "CREATE TABLE LoanEventsArchive"
+							+ "("
+							+ "LoanEventID int NOT NULL,"
+							+ "LoanID int NOT NULL,"
+							+ "EventTime TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+							+ "EventType " + storage.enumType("AccrueInterest", "CompoundInterest", "ServiceFee", "LateFee", "PaymentDue", "PaymentMade", "StatementOut", "Open", "Close", "ExtraPrincipalPaid", "ExtraInterestPaid", "ExtraFeesPaid") + " NOT NULL,"
+							+ "Amount DECIMAL(9," + decimals + "),"
+							+ "Executed " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'true',"
+							+ "PRIMARY KEY (LoanEventID)"
+							+ ");");
+			}
+		});
+
+		// Closed loans and their statements are moved out of the active tables after a retention period
+		steps.add(new Migration(0, 11, "Add LoansArchive and PaymentStatementsArchive tables"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				if(!hasTable(conn, "LoansArchive"))
+					execute(conn, "CREATE TABLE LoansArchive"
+							+ "("
+							+ "LoanID int NOT NULL,"
+							+ "LenderID varchar(36) NOT NULL,"
+							+ "BorrowerID varchar(36) NOT NULL,"
+							+ "Terms int NOT NULL,"
+							+ "AutoPay " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
+							+ "Balance DECIMAL(9," + decimals + ") NOT NULL,"
+							+ "InterestBalance DECIMAL(9," + decimals + ") DEFAULT 0.0,"
+							+ "FeeBalance DECIMAL(9," + decimals + ") DEFAULT 0.0,"
+							+ "StartDate TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+							+ "LastUpdate TIMESTAMP NULL,"
+							+ "NextEventTime TIMESTAMP NULL,"
+							+ "Open " + storage.enumType("true", "false") + " NOT NULL DEFAULT 'false',"
+							+ "PRIMARY KEY (LoanID),"
+							+ "FOREIGN KEY (Terms) REFERENCES PreparedOffers (OfferID)"
+							+ ");");
+				
+				if(!hasTable(conn, "PaymentStatementsArchive"))
+					execute(conn, "CREATE TABLE PaymentStatementsArchive"
+							+ "("
+							+ "StatementID int NOT NULL,"
+							+ "LoanID int NOT NULL,"
+							+ "BillAmount DECIMAL(9," + decimals + ") NOT NULL,"
+							+ "Minimum DECIMAL(9," + decimals + ") NOT NULL,"
+							+ "StatementDate TIMESTAMP DEFAULT 0,"
+							+ "DueDate TIMESTAMP DEFAULT 0,"
+							+ "BillAmountPaid DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+							+ "AdditionalPrincipal DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+							+ "AdditionalInterest DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+							+ "AdditionalFees DECIMAL(9," + decimals + ") NOT NULL DEFAULT 0,"
+							+ "PRIMARY KEY (StatementID)"
+							+ ");");
+			}
+		});
+
+		// Player names are remembered so that lookups do not call the account service
+		steps.add(new Migration(0, 12, "Add PlayerNames table"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				if(!hasTable(conn, "PlayerNames"))
+					execute(conn, "CREATE TABLE PlayerNames"
+							+ "("
+							+ "UserID varchar(36) NOT NULL,"
+							+ "Name varchar(16) NOT NULL,"
+							+ "LastSeen TIMESTAMP NOT NULL DEFAULT " + storage.now() + ","
+							+ "PRIMARY KEY (UserID)"
+							+ ");");
+			}
+		});
+
+		// Archiving deletes rows from these tables, and SQLite handed the largest deleted key out again
+		steps.add(new Migration(0, 13, "Stop reusing generated keys"){
+			public void apply(Connection conn, StorageBackend storage, int batchSize, int decimals) throws SQLException {
+				storage.upgradeAutoIncrement(conn, "CreditHistory", "ItemID");
+				storage.upgradeAutoIncrement(conn, "PreparedOffers", "OfferID");
+				storage.upgradeAutoIncrement(conn, "Loans", "LoanID");
+				storage.upgradeAutoIncrement(conn, "LoanEvents", "LoanEventID");
+				storage.upgradeAutoIncrement(conn, "PaymentStatements", "StatementID");
+			}
+		});
+
+		migrations = Collections.unmodifiableList(steps);
+	}
+
+	private StorageBackend storage;
+	private int batchSize;
+	private int decimals;
+
+	/**
+	 * Creates a SchemaMigrator for the given storage backend.
+	 *
+	 * @param storage Backend describing the database dialect.
+	 * @param batchSize Number of rows per transaction when a step backfills
+	 * a table.
+	 * @param decimals Fractional digits of the currency, as in
+	 * economy.currency.fractional-digits.
+	 */
+	public SchemaMigrator(StorageBackend storage, int batchSize, int decimals){
+		this.storage = storage;
+		this.batchSize = batchSize;
+		this.decimals = decimals;
+	}
+
+	/**
+	 * Migrates the database to the given version. Does nothing if the
+	 * database is already at that version.
+	 *
+	 * @param conn Connection to the plugin's database, in autocommit mode.
+	 * @param targetMajor Major version the plugin expects.
+	 * @param targetMinor Minor version the plugin expects.
+	 * @return Number of steps applied.
+	 * @throws SQLException
+	 * @throws DatabaseVersionMismatchException if the database is newer than
+	 * the target version, or if any version between the two has no step.
+	 */
+	public int migrate(Connection conn, int targetMajor, int targetMinor) throws SQLException, DatabaseVersionMismatchException {
+		PreparedStatement stmt = Query.SELECT_SCHEMA_VERSION.prepare(conn);
+		ResultSet rs = stmt.executeQuery();
+
+		if(!rs.next()){
+			stmt.close();
+			throw new DatabaseVersionMismatchException("Info table has no version!");
+		}
+
+		int major = rs.getInt("DBmajor");
+		int minor = rs.getInt("DBminor");
+
+		stmt.close();
+
+		if(major == targetMajor && minor == targetMinor)
+			return 0;
+
+		String versions = String.format("V%d.%d to V%d.%d", major, minor, targetMajor, targetMinor);
+
+		if(major > targetMajor || (major == targetMajor && minor > targetMinor))
+			throw new DatabaseVersionMismatchException("DB Version mismatch. Cannot downgrade database from " + versions + ".");
+
+		List<Migration> pending = new ArrayList<Migration>();
+
+		for(Migration step : migrations){
+			if(step.isNewerThan(major, minor) && !step.isNewerThan(targetMajor, targetMinor))
+				pending.add(step);
+		}
+
+		if(pending.isEmpty())
+			throw new DatabaseVersionMismatchException("DB Version mismatch. No migration from " + versions + ".");
+
+		// Every version between the stored one and the target must have its step
+		int fromMajor = major;
+		int fromMinor = minor;
+
+		for(Migration step : pending){
+			if(!step.follows(fromMajor, fromMinor))
+				throw new DatabaseVersionMismatchException(String.format("DB Version mismatch. No migration from V%d.%d, cannot migrate %s.", fromMajor, fromMinor, versions));
+
+			fromMajor = step.getMajor();
+			fromMinor = step.getMinor();
+		}
+
+		if(fromMajor != targetMajor || fromMinor != targetMinor)
+			throw new DatabaseVersionMismatchException("DB Version mismatch. No migration from " + versions + ".");
+
+		SerenityLoans.logInfo(String.format("Migrating database from %s in %d steps.", versions, pending.size()));
+
+		int applied = 0;
+
+		for(Migration step : pending){
+			long start = System.currentTimeMillis();
+
+			SerenityLoans.logInfo(String.format("Applying migration to V%d.%d: %s...", step.getMajor(), step.getMinor(), step.getDescription()));
+
+			step.apply(conn, storage, batchSize, decimals);
+
+			stmt = Query.UPDATE_SCHEMA_VERSION.prepare(conn);
+			stmt.setInt(1, step.getMajor());
+			stmt.setInt(2, step.getMinor());
+			stmt.executeUpdate();
+			stmt.close();
+
+			applied++;
+
+			SerenityLoans.logInfo(String.format("Database now at V%d.%d (%d of %d, %d ms).", step.getMajor(), step.getMinor(), applied, pending.size(), System.currentTimeMillis() - start));
+		}
+
+		return applied;
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: SqliteBackend.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class is the StorageBackend for an embedded SQLite database. The
+ * SQLite driver ships with CraftBukkit, so no database server or extra
+ * download is needed. The database may be a file, normally in the
+ * plugin's data folder, or held in memory for testing. An in-memory
+ * database exists only as long as its single connection, so the pool is
+ * limited to one connection in that case.
+ *
+ * The SQLite driver stores timestamps as milliseconds since the epoch, so
+ * now() produces the same representation for column defaults.
+ *
+ * Key columns are declared AUTOINCREMENT. A plain INTEGER primary key is
+ * an alias for the rowid and SQLite gives the next row the largest live
+ * rowid plus one, so the key of an archived loan would be handed out
+ * again. Tables built before this was fixed are rebuilt by
+ * upgradeAutoIncrement().
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedList;
+import java.util.List;
+
+public class SqliteBackend extends StorageBackend {
+
+	public static final String IN_MEMORY = ":memory:";
+
+	private final String path;
+	private final long busyTimeout;
+
+	/**
+	 * Creates an SQLite backend.
+	 *
+	 * @param file Database file, or null for an in-memory database.
+	 * @param busyTimeout Milliseconds a connection waits for another writer before failing.
+	 */
+	public SqliteBackend(File file, long busyTimeout){
+		this.path = file == null? IN_MEMORY : file.getAbsolutePath();
+		this.busyTimeout = busyTimeout;
+	}
+
+	public boolean isInMemory(){
+		return IN_MEMORY.equals(path);
+	}
+
+	@Override
+	public String getName(){
+		return isInMemory()? "SQLite (in memory)" : "SQLite";
+	}
+
+	@Override
+	public String getDriverClass(){
+		return "org.sqlite.JDBC";
+	}
+
+	@Override
+	public String getUrl(){
+		return "jdbc:sqlite:" + path;
+	}
+
+	@Override
+	public String[] getInitStatements(){
+		if(isInMemory())
+			return new String[]{
+				"PRAGMA foreign_keys = ON;"
+			};
+
+		// Write-ahead logging lets readers proceed while the update sweep writes.
+		return new String[]{
+			"PRAGMA foreign_keys = ON;",
+			"PRAGMA journal_mode = WAL;",
+			"PRAGMA synchronous = NORMAL;",
+			"PRAGMA busy_timeout = " + busyTimeout + ";"
+		};
+	}
+
+	@Override
+	public int maxConnections(int requested){
+		return isInMemory()? 1 : requested;
+	}
+
+	@Override
+	public String enumType(String... values){
+		int length = 1;
+		for(String s : values)
+			length = Math.max(length, s.length());
+
+		return "varchar(" + length + ")";
+	}
+
+	@Override
+	public String autoIncrementType(){
+		// AUTOINCREMENT records the largest key ever used in sqlite_sequence
+		return "INTEGER PRIMARY KEY AUTOINCREMENT";
+	}
+
+	@Override
+	public void reserveKeys(Connection conn, String table, long next) throws SQLException {
+		PreparedStatement update = conn.prepareStatement("UPDATE sqlite_sequence SET seq=? WHERE name=? AND seq<?;");
+		PreparedStatement select = conn.prepareStatement("SELECT 1 FROM sqlite_sequence WHERE name=?;");
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO sqlite_sequence (name, seq) VALUES (?,?);");
+
+		try {
+			update.setLong(1, next - 1);
+			update.setString(2, table);
+			update.setLong(3, next - 1);
+
+			if(update.executeUpdate() > 0)
+				return;
+
+			select.setString(1, table);
+			ResultSet rs = select.executeQuery();
+			boolean present = rs.next();
+			rs.close();
+
+			// The row only appears after the first insert into the table
+			if(!present){
+				insert.setString(1, table);
+				insert.setLong(2, next - 1);
+				insert.executeUpdate();
+			}
+		} finally {
+			update.close();
+			select.close();
+			insert.close();
+		}
+	}
+
+	/**
+	 * Rebuilds a table whose key was declared as a plain INTEGER primary
+	 * key so that it is declared AUTOINCREMENT. SQLite cannot alter a
+	 * column, so the table is copied into a new one with the patched
+	 * definition, which then takes the old name. Indexes on the table and
+	 * all views are dropped with it and recreated from their stored SQL.
+	 * Does nothing if the key is already AUTOINCREMENT.
+	 */
+	@Override
+	public void upgradeAutoIncrement(Connection conn, String table, String column) throws SQLException {
+		String tableSql = null;
+		List<String> indexes = new LinkedList<String>();
+		List<String> viewNames = new LinkedList<String>();
+		List<String> views = new LinkedList<String>();
+
+		PreparedStatement select = conn.prepareStatement("SELECT type, name, sql FROM sqlite_master WHERE (type='table' AND name=?) OR (type='index' AND tbl_name=? AND sql IS NOT NULL) OR type='view';");
+
+		try {
+			select.setString(1, table);
+			select.setString(2, table);
+			ResultSet rs = select.executeQuery();
+
+			while(rs.next()){
+				String type = rs.getString("type");
+
+				if("table".equals(type))
+					tableSql = rs.getString("sql");
+				else if("index".equals(type))
+					indexes.add(rs.getString("sql"));
+				else {
+					viewNames.add(rs.getString("name"));
+					views.add(rs.getString("sql"));
+				}
+			}
+
+			rs.close();
+		} finally {
+			select.close();
+		}
+
+		if(tableSql == null)
+			throw new SQLException(String.format("Table %s not found.", table));
+
+		if(tableSql.toUpperCase().contains("AUTOINCREMENT"))
+			return;
+
+		String oldCreate = "CREATE TABLE " + table + "(";
+		String oldColumn = column + " INTEGER,";
+		String oldKey = "PRIMARY KEY (" + column + "),";
+
+		if(!tableSql.startsWith(oldCreate) || !tableSql.contains(oldColumn) || !tableSql.contains(oldKey))
+			throw new SQLException(String.format("Unexpected definition of %s.%s, cannot rebuild it.", table, column));
+
+		String rebuild = table + "_rebuild";
+		String rebuildSql = tableSql.replace(oldColumn, column + " " + autoIncrementType() + ",").replace(oldKey, "").replace(oldCreate, "CREATE TABLE " + rebuild + "(");
+
+		Statement stmt = conn.createStatement();
+
+		try {
+			// Rows in other tables still reference the old table while it is dropped. The pragma has no effect inside a transaction.
+			stmt.executeUpdate("PRAGMA foreign_keys = OFF;");
+			conn.setAutoCommit(false);
+
+			for(String view : viewNames)
+				stmt.executeUpdate("DROP VIEW " + view + ";");
+
+			stmt.executeUpdate(rebuildSql);
+			stmt.executeUpdate(String.format("INSERT INTO %s SELECT * FROM %s;", rebuild, table));
+			stmt.executeUpdate(String.format("DROP TABLE %s;", table));
+			stmt.executeUpdate(String.format("ALTER TABLE %s RENAME TO %s;", rebuild, table));
+
+			for(String index : indexes)
+				stmt.executeUpdate(index);
+
+			for(String view : views)
+				stmt.executeUpdate(view);
+
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(true);
+			stmt.executeUpdate("PRAGMA foreign_keys = ON;");
+			stmt.close();
+		}
+	}
+
+	@Override
+	public String now(){
+		return "(CAST(strftime('%s','now') AS INTEGER) * 1000)";
+	}
+
+	@Override
+	public String onUpdateNow(){
+		return "";
+	}
+
+	@Override
+	public String elapsedMillis(String from, String to){
+		// Timestamps are already stored as milliseconds
+		return String.format("(%s - %s)", to, from);
+	}
+
+	@Override
+	public String exp(String power){
+		// Math functions are not compiled into the SQLite bundled with the server
+		return null;
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: StorageBackend.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class describes a database engine that the plugin can store its
+ * tables in. A backend supplies the JDBC driver and url, any statements
+ * that must run on each new connection, limits on how many connections
+ * the engine can use, and the few pieces of DDL syntax which differ
+ * between engines. The table definitions and every statement in Query
+ * are otherwise written in SQL that all backends accept.
+ *
+ * The backend is chosen by the storage.type setting in config.yml.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.List;
+
+public abstract class StorageBackend {
+
+	/**
+	 * Returns a short name for this backend, used in log messages.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Returns the fully qualified class name of the JDBC driver.
+	 */
+	public abstract String getDriverClass();
+
+	/**
+	 * Returns the JDBC url, including any credentials and driver options.
+	 */
+	public abstract String getUrl();
+
+	/**
+	 * Returns statements which must be executed on every new physical
+	 * connection before it is used. The default is none.
+	 */
+	public String[] getInitStatements(){
+		return new String[0];
+	}
+
+	/**
+	 * Limits the configured pool size to what this backend can support.
+	 *
+	 * @param requested Maximum number of connections from the configuration.
+	 * @return Maximum number of connections that should actually be opened.
+	 */
+	public int maxConnections(int requested){
+		return requested;
+	}
+
+	/**
+	 * Column type for a value restricted to the given set of strings.
+	 */
+	public abstract String enumType(String... values);
+
+	/**
+	 * Column definition for an integer key generated by the database. The
+	 * definition makes the column the table's primary key, so the table
+	 * must not name it in a separate PRIMARY KEY clause. Keys are never
+	 * reused, even after the rows holding the highest ones are deleted.
+	 */
+	public abstract String autoIncrementType();
+
+	/**
+	 * Makes sure the next key generated for the given table is at least
+	 * the given value. Rows moved to an archive table are deleted from the
+	 * live table, and some engines would otherwise hand their keys out
+	 * again.
+	 *
+	 * @param conn Connection to the plugin's database.
+	 * @param table Table with an autoIncrementType() column.
+	 * @param next Lowest key the table may generate next.
+	 * @throws SQLException
+	 */
+	public abstract void reserveKeys(Connection conn, String table, long next) throws SQLException;
+
+	/**
+	 * Converts a key column built by an earlier version into the current
+	 * autoIncrementType(). The default does nothing, for backends whose
+	 * key definition has not changed.
+	 *
+	 * @param conn Connection to the plugin's database, in autocommit mode.
+	 * @param table Table holding the key.
+	 * @param column Key column.
+	 * @throws SQLException
+	 */
+	public void upgradeAutoIncrement(Connection conn, String table, String column) throws SQLException {
+	}
+
+	/**
+	 * SQL expression for the current time, suitable for a DEFAULT clause.
+	 */
+	public abstract String now();
+
+	/**
+	 * Column option which sets a timestamp to the current time whenever the
+	 * row is updated, or an empty string if the backend has no such option.
+	 */
+	public abstract String onUpdateNow();
+
+	/**
+	 * SQL expression for the number of milliseconds from one timestamp to
+	 * another. Either argument may be a column, a subquery or a ?
+	 * placeholder bound with setTimestamp.
+	 */
+	public abstract String elapsedMillis(String from, String to);
+
+	/**
+	 * SQL expression for e raised to the given power, or null if the
+	 * backend has no exponential function. Callers must then compute
+	 * exponentials in Java.
+	 */
+	public String exp(String power){
+		return "EXP(" + power + ")";
+	}
+
+	/**
+	 * Loads the JDBC driver class so that DriverManager can find it.
+	 *
+	 * @throws SQLException if the driver is not on the classpath.
+	 */
+	public void loadDriver() throws SQLException {
+		try {
+			Class.forName(getDriverClass());
+		} catch (ClassNotFoundException e) {
+			throw new SQLException(String.format("JDBC driver %s for %s storage not found.", getDriverClass(), getName()), e);
+		}
+	}
+
+	/**
+	 * Lists the names of the tables in the plugin's database. This uses the
+	 * JDBC metadata rather than engine-specific statements.
+	 *
+	 * @param conn Connection to the plugin's database.
+	 * @return Table names, possibly empty.
+	 * @throws SQLException
+	 */
+	public List<String> listTables(Connection conn) throws SQLException {
+		List<String> result = new LinkedList<String>();
+
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet tables = meta.getTables(conn.getCatalog(), null, "%", new String[]{"TABLE"});
+
+		while(tables.next())
+			result.add(tables.getString("TABLE_NAME"));
+
+		tables.close();
+
+		return result;
+	}
+
+	/*
+	 * Quotes and joins the values of an enumerated type.
+	 */
+	protected static String quotedList(String... values){
+		StringBuilder sb = new StringBuilder();
+
+		for(int i = 0; i < values.length; i++){
+			if(i != 0)
+				sb.append(',');
+			sb.append('\'').append(values[i]).append('\'');
+		}
+
+		return sb.toString();
+	}
+}
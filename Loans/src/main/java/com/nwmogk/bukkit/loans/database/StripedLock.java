@@ -0,0 +1,117 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: StripedLock.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class maps row keys (LoanIDs, UserIDs, etc.) onto a fixed set of
+ * monitor objects. Code that previously synchronized on one lock for a
+ * whole table synchronizes on get(key) instead, so work on unrelated rows
+ * proceeds in parallel while work on the same row is still serialized.
+ * Two distinct keys may share a stripe, which only costs some needless
+ * waiting. The monitors are ordinary Java monitors and therefore
+ * reentrant.
+ *
+ * Stripes from different StripedLock instances must always be acquired
+ * in the same order. The managers use the order loan, then entity, then
+ * offer.
+ *
+ * A pooled connection must be borrowed before a stripe is taken, never
+ * while one is held. A thread holding a stripe while it waits on an
+ * exhausted pool can otherwise deadlock with a thread holding the last
+ * connection while it waits on that stripe. Work done under a stripe uses
+ * the connection borrowed before it.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.database;
+
+public final class StripedLock {
+
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final Object[] stripes;
+	private final int mask;
+
+	/**
+	 * Creates a StripedLock with the default number of stripes.
+	 */
+	public StripedLock(){
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Creates a StripedLock with at least the given number of stripes. The
+	 * count is rounded up to a power of two.
+	 *
+	 * @param minStripes Minimum number of stripes.
+	 */
+	public StripedLock(int minStripes){
+		int size = 1;
+		while(size < minStripes)
+			size <<= 1;
+
+		stripes = new Object[size];
+		for(int i = 0; i < size; i++)
+			stripes[i] = new Object();
+
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the monitor guarding the given key. Equal keys always map to
+	 * the same monitor.
+	 *
+	 * @param key Row key, such as an Integer LoanID or a UUID.
+	 * @return Object to synchronize on.
+	 */
+	public Object get(Object key){
+		int h = key == null? 0 : key.hashCode();
+
+		// Spread the high bits so sequential ids and UUIDs use every stripe
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+
+		return stripes[h & mask];
+	}
+
+	/**
+	 * Returns the monitor guarding the given integer key.
+	 *
+	 * @param key Row key, such as a LoanID.
+	 * @return Object to synchronize on.
+	 */
+	public Object get(int key){
+		return get(Integer.valueOf(key));
+	}
+}
@@ -42,10 +42,12 @@
 
 package com.nwmogk.bukkit.loans.listener;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import org.bukkit.entity.Player;
@@ -58,6 +60,7 @@ import com.nwmogk.bukkit.loans.SerenityLoans;
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
 import com.nwmogk.bukkit.loans.object.FinancialInstitution;
 import com.nwmogk.bukkit.loans.object.Loan;
+import com.nwmogk.bukkit.loans.object.PaymentStatement;
 
 public final class PlayerLoginListener implements Listener {
 	
@@ -73,6 +76,8 @@ public final class PlayerLoginListener implements Listener {
 	@EventHandler
 	public void onLogin(final PlayerJoinEvent evt){
 		
+		plugin.names.learn(evt.getPlayer().getUniqueId(), evt.getPlayer().getName());
+		
 		if(SerenityLoans.debugLevel >= 2)
 			SerenityLoans.log.info(String.format("[%s] Attempting to add player %s to system.", plugin.getDescription().getName(), evt.getPlayer().getName()));
 		
@@ -96,20 +101,39 @@ public final class PlayerLoginListener implements Listener {
 				if(toCheck == null)
 					toCheck = new Vector<UUID>();
 				
-				if(toCheck.size() != 0)
-					for(UUID i : toCheck)
-						toCheck.add(i);
-				
 				toCheck.add(0, playerID);
 				
-				
-					
-				boolean firstRun = true;
+				// Every entity is independent, so start all of the lookups before
+				// waiting on any of them.
+				List<Future<List<Loan>>> loanSets = new ArrayList<Future<List<Loan>>>(toCheck.size());
+				List<Future<FinancialEntity>> entities = new ArrayList<Future<FinancialEntity>>(toCheck.size());
+				List<Future<List<FinancialEntity>>> offerSenders = new ArrayList<Future<List<FinancialEntity>>>(toCheck.size());
 				
 				for(UUID i : toCheck){
+					loanSets.add(plugin.data.getLoansWithOutstandingStatements(i));
+					entities.add(plugin.data.getFinancialEntity(i));
+					offerSenders.add(plugin.data.getOfferSendersTo(i, true));
+				}
+				
+				for(int n = 0; n < toCheck.size(); n++){
+					
+					UUID i = toCheck.get(n);
+					boolean firstRun = n == 0;
+					
+					List<Loan> loanSet = null;
+					FinancialEntity currentEntity = null;
+					List<FinancialEntity> offerResults = null;
+					
+					try {
+						loanSet = loanSets.get(n).get();
+						currentEntity = entities.get(n).get();
+						offerResults = offerSenders.get(n).get();
+					} catch (InterruptedException | ExecutionException e) {
+						SerenityLoans.log.severe(String.format("[%s] " + e.getMessage(), plugin.getDescription().getName()));
+						e.printStackTrace();
+						continue;
+					}
 					
-					List<Loan> loanSet = plugin.loanManager.getLoansWithOutstandingStatements(i);
-					FinancialEntity currentEntity = plugin.playerManager.getFinancialEntity(i);
 					Player recipient = evt.getPlayer();
 					
 					
@@ -119,15 +143,19 @@ public final class PlayerLoginListener implements Listener {
 						plugin.scheduleMessage(recipient, String.format("%s Use %s to apply payment.", prfx, firstRun? "/loan": "/crunion"));
 						plugin.scheduleMessage(recipient, String.format("%s Details are given below:", prfx));
 						
+						List<Future<PaymentStatement>> statements = new ArrayList<Future<PaymentStatement>>(loanSet.size());
 						
-						for(Loan theLoan : loanSet){
+						for(Loan theLoan : loanSet)
+							statements.add(plugin.data.getPaymentStatement(theLoan.getLoanID()));
+						
+						for(Future<PaymentStatement> statement : statements){
 
 							
 							if(recipient == null)
 								continue;
 
 							try {
-								plugin.scheduleMessage(recipient, plugin.loanManager.getPaymentStatement(theLoan.getLoanID()).toString(plugin));
+								plugin.scheduleMessage(recipient, statement.get().toString(plugin));
 							} catch (InterruptedException | ExecutionException | TimeoutException e) {
 								// TODO add message to configuration
 								plugin.scheduleMessage(recipient, prfx + " Problem during name lookup. Try again later.");
@@ -137,8 +165,6 @@ public final class PlayerLoginListener implements Listener {
 						}
 					}
 					
-					List<FinancialEntity> offerResults = plugin.offerManager.getOfferSendersTo(i, true);
-					
 					for(FinancialEntity fe : offerResults){
 						
 						String sender = null;
@@ -166,8 +192,6 @@ public final class PlayerLoginListener implements Listener {
 						
 						
 					}
-					
-					firstRun = false;
 				}
 				
 			}
@@ -5,8 +5,8 @@ import java.sql.Timestamp;
 
 public class CreditCard extends Loan{
 
-	public CreditCard(int loanID, double balance, double interestBalance,
-			double feeBalance, ImmutableOffer terms, Timestamp startDate,
+	public CreditCard(int loanID, long balance, long interestBalance,
+			long feeBalance, ImmutableOffer terms, Timestamp startDate,
 			Timestamp lastUpdate) {
 		super(loanID, balance, interestBalance, feeBalance, terms, startDate,
 				lastUpdate, 0);
@@ -55,14 +55,15 @@ import com.nwmogk.bukkit.loans.SerenityLoans;
 import com.nwmogk.bukkit.loans.api.FinancialEntity;
 import com.nwmogk.bukkit.loans.api.LoanType;
 import com.nwmogk.bukkit.loans.api.Loanable;
+import com.nwmogk.bukkit.loans.api.Money;
 
 
 public class Loan implements Loanable {
 	
 	private final int loanID;
-	private final double balance;				// Outstanding principle unpaid (plus compounded interest)
-	private final double interestBalance;		// Balance of outstanding interest
-	private final double feeBalance;			// Balance of outstanding fees
+	private final long balance;				// Outstanding principle unpaid (plus compounded interest), in minor units
+	private final long interestBalance;		// Balance of outstanding interest, in minor units
+	private final long feeBalance;			// Balance of outstanding fees, in minor units
 	private final ImmutableOffer terms;
 	private final Timestamp startDate;
 	private final Timestamp lastUpdate;
@@ -71,7 +72,10 @@ public class Loan implements Loanable {
 	
 	//TODO finish making this class immutable
 	
-	public Loan(int loanID, double balance, double interestBalance, double feeBalance, ImmutableOffer terms, Timestamp startDate, Timestamp lastUpdate, int termsID){
+	/**
+	 * Creates a loan. Balances are in minor units of the currency, see Money.
+	 */
+	public Loan(int loanID, long balance, long interestBalance, long feeBalance, ImmutableOffer terms, Timestamp startDate, Timestamp lastUpdate, int termsID){
 		this.loanID = loanID;
 		this.balance = balance;
 		this.interestBalance = interestBalance;
@@ -92,7 +96,7 @@ public class Loan implements Loanable {
 
 	public double getInterestRate() {return terms.getInterestRate();}
 
-	public double getFeesOutstanding() {return feeBalance;}
+	public double getFeesOutstanding() {return Money.toDouble(feeBalance);}
 
 	public long getTerm() {return terms.getTerm();}
 
@@ -116,7 +120,19 @@ public class Loan implements Loanable {
 
 	public double getServiceFee() {return terms.getServiceFee();}
 	
-	public double getBalance() {return balance;}
+	public double getBalance() {return Money.toDouble(balance);}
+	
+	public long getBalanceMinor() {return balance;}
+	
+	public long getInterestBalanceMinor() {return interestBalance;}
+	
+	public long getFeesOutstandingMinor() {return feeBalance;}
+	
+	public long getValueMinor() {return Money.fromDouble(terms.getValue());}
+	
+	public long getLateFeeMinor() {return Money.fromDouble(terms.getLateFee());}
+	
+	public long getServiceFeeMinor() {return Money.fromDouble(terms.getServiceFee());}
 
 	public PaymentStatement getOutstandingBill() {return null;} // TODO rethink this method in the interface
 
@@ -132,7 +148,7 @@ public class Loan implements Loanable {
 	 * @return
 	 */
 	public double getInterestBalance(){
-		return interestBalance;
+		return Money.toDouble(interestBalance);
 	}
 	
 	/**
@@ -217,6 +233,10 @@ public class Loan implements Loanable {
 //	}
 
 	public double getCloseValue() {
+		return Money.toDouble(getCloseValueMinor());
+	}
+	
+	public long getCloseValueMinor() {
 		return balance + feeBalance + interestBalance;
 	}
 
@@ -230,9 +250,9 @@ public class Loan implements Loanable {
 
 	public String[] toString(SerenityLoans plugin) throws InterruptedException, ExecutionException, TimeoutException {
 		String[] result =  
-			{String.format("    Balance: %s", plugin.econ.format(balance)),
-			 String.format("    Interest balance: %s", plugin.econ.format(interestBalance)),
-			 String.format("    Fee balance: %s", plugin.econ.format(feeBalance)),
+			{String.format("    Balance: %s", plugin.econ.format(getBalance())),
+			 String.format("    Interest balance: %s", plugin.econ.format(getInterestBalance())),
+			 String.format("    Fee balance: %s", plugin.econ.format(getFeesOutstanding())),
 			 String.format("    Open date: %F", new Date(startDate.getTime())),
 			 "",
 			 String.format("    Lender: %s", plugin.playerManager.entityNameLookup(getLender())),
@@ -268,4 +288,11 @@ public class Loan implements Loanable {
 	
 	public int getTermsId(){return termsID;}
 	
+	/**
+	 * Returns a copy of this loan with the given balances, in minor units.
+	 */
+	public Loan withBalances(long balance, long interestBalance, long feeBalance){
+		return new Loan(loanID, balance, interestBalance, feeBalance, terms, startDate, lastUpdate, termsID);
+	}
+	
 }
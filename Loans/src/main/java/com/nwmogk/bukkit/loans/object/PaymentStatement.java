@@ -50,19 +50,21 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
 import com.nwmogk.bukkit.loans.SerenityLoans;
+import com.nwmogk.bukkit.loans.api.Money;
 
 public final class PaymentStatement {
 	
 	private Timestamp statementDate;
 	private Timestamp dueDate;
 	
-	private final double billAmount;
-	private final double paid;
-	private final double minPayment;
+	// Amounts are in minor units of the currency, see Money
+	private final long billAmount;
+	private final long paid;
+	private final long minPayment;
 	private final int loanID;
 	private final int statementID;
 	
-	public PaymentStatement(int statementID, int loan, double amount, double min, Timestamp statement, Timestamp due, double paid){
+	public PaymentStatement(int statementID, int loan, long amount, long min, Timestamp statement, Timestamp due, long paid){
 		this.statementID = statementID;
 		this.loanID = loan;
 		billAmount = amount;
@@ -85,15 +87,31 @@ public final class PaymentStatement {
 	}
 
 	public double getActualPaid() {
-		return paid;
+		return Money.toDouble(paid);
 	}
 
 	public double getBillAmount() {
-		return billAmount;
+		return Money.toDouble(billAmount);
 	}
 	
 	public double getPaymentRemaining(){
-		return Math.max(0.0, billAmount - paid);
+		return Money.toDouble(getPaymentRemainingMinor());
+	}
+	
+	public long getActualPaidMinor() {
+		return paid;
+	}
+	
+	public long getBillAmountMinor() {
+		return billAmount;
+	}
+	
+	public long getPaymentRemainingMinor(){
+		return Math.max(0, billAmount - paid);
+	}
+	
+	public long getMinimumPaymentMinor(){
+		return minPayment;
 	}
 	
 	public Timestamp getStatementDate() {
@@ -101,7 +119,7 @@ public final class PaymentStatement {
 	}
 
 	public double getMinimumPayment(){
-		return minPayment;
+		return Money.toDouble(minPayment);
 	}
 	
 	public String[] toString(SerenityLoans plugin) throws InterruptedException, ExecutionException, TimeoutException{
@@ -112,7 +130,7 @@ public final class PaymentStatement {
 				String.format("    Payment Remaining: %s", plugin.econ.format(getPaymentRemaining())),
 				String.format("    Due date: %F", new Date(dueDate.getTime())),
 				String.format("    Statement Date: %F", new Date(statementDate.getTime())),
-				String.format("    %s", paid >= minPayment? "Original balance: " + plugin.econ.format(billAmount) : "Please pay at least " + plugin.econ.format(minPayment) + ".")
+				String.format("    %s", paid >= minPayment? "Original balance: " + plugin.econ.format(getBillAmount()) : "Please pay at least " + plugin.econ.format(getMinimumPayment()) + ".")
 			};
 		
 		return result;
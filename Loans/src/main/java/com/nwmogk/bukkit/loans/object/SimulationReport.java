@@ -0,0 +1,80 @@
+/**
+ * ========================================================================
+ *                               DESCRIPTION
+ * ========================================================================
+ *
+ * File: SimulationReport.java
+ * Contributing Authors: Nathan W Mogk
+ *
+ * This class holds the totals of a simulation run by
+ * LoanManager.simulate(). Amounts are in minor units of the currency and
+ * times are in milliseconds. Instances of this class are immutable, and
+ * all fields are public access.
+ *
+ *
+ * ========================================================================
+ *                            LICENSE INFORMATION
+ * ========================================================================
+ *
+ * Copyright 2014 Nathan W Mogk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * ========================================================================
+ *                                CHANGE LOG
+ * ========================================================================
+ *    Date          Name                  Description              Defect #
+ * ----------  --------------  ----------------------------------  --------
+ * 2014-xx-xx  nmogk           Initial release for v0.1
+ *
+ *
+ */
+
+package com.nwmogk.bukkit.loans.object;
+
+public final class SimulationReport {
+	
+	public final int loans;
+	public final int closed;
+	public final int defaulted;
+	public final long events;
+	public final long simulatedTime;
+	public final long principal;
+	public final long interest;
+	public final long fees;
+	public final long paid;
+	public final long outstanding;
+	public final long elapsedMillis;
+	
+	public SimulationReport(int loans, int closed, int defaulted, long events, long simulatedTime, long principal, long interest, long fees, long paid, long outstanding, long elapsedMillis){
+		this.loans = loans;
+		this.closed = closed;
+		this.defaulted = defaulted;
+		this.events = events;
+		this.simulatedTime = simulatedTime;
+		this.principal = principal;
+		this.interest = interest;
+		this.fees = fees;
+		this.paid = paid;
+		this.outstanding = outstanding;
+		this.elapsedMillis = elapsedMillis;
+	}
+	
+	/**
+	 * Returns the share of the simulated loans which defaulted.
+	 */
+	public double getDefaultRate(){
+		return loans == 0? 0 : ((double) defaulted) / loans;
+	}
+}
@@ -0,0 +1,82 @@
+package com.nwmogk.bukkit.loans;
+
+import org.junit.Test;
+
+import com.nwmogk.bukkit.loans.database.QueryStats;
+
+import static org.junit.Assert.*;
+
+public class BackgroundPacerTest {
+
+	private static final long SECOND = 1000000000L;
+
+	private void slowQueries(QueryStats stats, int count){
+		QueryStats.Entry e = stats.entryFor(null);
+		
+		for(int i = 0; i < count; i++)
+			stats.record(e, null, 100 * 1000000L, 0);
+	}
+
+	@Test
+	public void rateGrowsToTheMaximumWhenQuiet(){
+		BackgroundPacer pacer = new BackgroundPacer(10, 100, 0, 20, new QueryStats(0));
+		
+		assertEquals(10.0, pacer.getRate(), 1e-9);
+		
+		pacer.adjust(System.nanoTime());
+		assertEquals(12.5, pacer.getRate(), 1e-9);
+		
+		for(int i = 0; i < 20; i++)
+			pacer.adjust(System.nanoTime());
+		
+		assertEquals(100.0, pacer.getRate(), 1e-9);
+	}
+
+	@Test
+	public void slowStatementsHalveTheRateDownToTheMinimum(){
+		QueryStats stats = new QueryStats(0);
+		BackgroundPacer pacer = new BackgroundPacer(10, 100, 0, 20, stats);
+		
+		for(int i = 0; i < 20; i++)
+			pacer.adjust(System.nanoTime());
+		
+		// The moving average passes 20ms after a few 100ms statements.
+		slowQueries(stats, 5);
+		
+		pacer.adjust(System.nanoTime());
+		assertEquals(50.0, pacer.getRate(), 1e-9);
+		
+		pacer.adjust(System.nanoTime());
+		assertEquals(25.0, pacer.getRate(), 1e-9);
+		
+		pacer.adjust(System.nanoTime());
+		pacer.adjust(System.nanoTime());
+		assertEquals(10.0, pacer.getRate(), 1e-9);
+	}
+
+	@Test
+	public void statementTimesAreIgnoredWithoutATarget(){
+		QueryStats stats = new QueryStats(0);
+		BackgroundPacer pacer = new BackgroundPacer(10, 100, 0, 0, stats);
+		
+		slowQueries(stats, 5);
+		pacer.adjust(System.nanoTime());
+		
+		assertEquals(12.5, pacer.getRate(), 1e-9);
+	}
+
+	@Test
+	public void aStalledServerThreadHalvesTheRate(){
+		BackgroundPacer pacer = new BackgroundPacer(10, 100, 55, 0, null);
+		
+		for(int i = 0; i < 20; i++)
+			pacer.adjust(System.nanoTime());
+		
+		pacer.tick();
+		pacer.tick();
+		
+		// No tick for two seconds is far longer than the 55ms target.
+		pacer.adjust(System.nanoTime() + 2 * SECOND);
+		assertEquals(50.0, pacer.getRate(), 1e-9);
+	}
+}
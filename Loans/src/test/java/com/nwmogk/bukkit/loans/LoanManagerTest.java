@@ -0,0 +1,227 @@
+package com.nwmogk.bukkit.loans;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nwmogk.bukkit.loans.LoanManager.Accrual;
+import com.nwmogk.bukkit.loans.LoanManager.LoanEvent;
+import com.nwmogk.bukkit.loans.LoanManager.LoanEventType;
+import com.nwmogk.bukkit.loans.LoanManager.Replay;
+import com.nwmogk.bukkit.loans.object.ImmutableOffer;
+import com.nwmogk.bukkit.loans.object.Loan;
+
+import static org.junit.Assert.*;
+
+public class LoanManagerTest {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static final long WEEK = 7 * DAY;
+
+	// A 1000.00 loan at the given rate per week with a minimum payment of 20.00, compounded daily unless continuous
+	private Loan loan(double rate, long balance, long interestBalance, long feeBalance, boolean continuous){
+		ImmutableOffer terms = new ImmutableOffer(null, null, 1000.0, rate, 5.0, 20.0, 1.0, 4 * WEEK, continuous? 0 : DAY, 0, DAY, WEEK, WEEK, null, null, 0);
+
+		return new Loan(1, balance, interestBalance, feeBalance, terms, new Timestamp(0), new Timestamp(0), 0);
+	}
+
+	private LoanEvent event(long time, LoanEventType type, long amount){
+		return new LoanEvent(new Timestamp(time), type, amount, 1, 0);
+	}
+
+	@Test
+	public void simpleInterestAccruesToTheInterestBalance(){
+		Accrual accrual = LoanManager.computeAccrual(loan(0.1, 100000, 0, 0, false), 0, new ArrayList<LoanEvent>(), WEEK, WEEK);
+
+		assertEquals(100000, accrual.balance);
+		assertEquals(10000, accrual.interestBalance);
+		assertTrue(accrual.compounded.isEmpty());
+	}
+
+	@Test
+	public void compoundingMovesInterestIntoTheBalance(){
+		LoanEvent compound = event(WEEK / 2, LoanEventType.COMPOUND, 0);
+		Accrual accrual = LoanManager.computeAccrual(loan(0.1, 100000, 200, 0, false), 0, Arrays.asList(compound), WEEK, WEEK);
+
+		// 200 already owed plus 5000 for the first half week, then 5% of 105200
+		assertEquals(5200, compound.amount);
+		assertEquals(105200, accrual.balance);
+		assertEquals(5260, accrual.interestBalance);
+		assertEquals(Arrays.asList(compound), accrual.compounded);
+	}
+
+	@Test
+	public void eventsAfterTheEndAndOtherTypesAreIgnored(){
+		List<LoanEvent> due = Arrays.asList(event(DAY, LoanEventType.SERVICEFEE, 100), event(2 * WEEK, LoanEventType.COMPOUND, 0));
+		Accrual accrual = LoanManager.computeAccrual(loan(0.1, 100000, 0, 0, false), 0, due, WEEK, WEEK);
+
+		assertEquals(100000, accrual.balance);
+		assertEquals(10000, accrual.interestBalance);
+		assertTrue(accrual.compounded.isEmpty());
+		assertEquals(100, due.get(0).amount);
+	}
+
+	@Test
+	public void continuousInterestGrowsTheBalance(){
+		Accrual accrual = LoanManager.computeAccrual(loan(0.1, 100000, 0, 0, true), 0, new ArrayList<LoanEvent>(), WEEK, WEEK);
+
+		assertEquals(110517, accrual.balance);
+		assertEquals(0, accrual.interestBalance);
+	}
+
+	@Test
+	public void nothingAccruesBeforeTheStart(){
+		Accrual accrual = LoanManager.computeAccrual(loan(0.1, 100000, 0, 0, true), WEEK, new ArrayList<LoanEvent>(), 0, WEEK);
+
+		assertEquals(100000, accrual.balance);
+	}
+
+	@Test
+	public void replayedFeesAndStatementsAddUp(){
+		Replay state = new Replay(loan(0.1, 100000, 0, 0, false), 0, WEEK, false);
+		LoanEvent statement = event(0, LoanEventType.STATEMENTOUT, 5000);
+
+		LoanManager.replay(state, Arrays.asList(event(DAY, LoanEventType.LATEFEE, 500), statement, event(0, LoanEventType.SERVICEFEE, 100)));
+
+		// The service fee is billed on top of the scheduled payment
+		assertEquals(5100, statement.amount);
+		assertEquals(1, state.issued.size());
+		assertEquals(5100, state.issued.get(0).billAmount);
+		assertEquals(2000, state.issued.get(0).minimum);
+		assertEquals(DAY, state.issued.get(0).dueDate.getTime());
+
+		// Nothing was paid by the due date, so the late fee applies
+		assertEquals(600, state.feeBalance);
+		assertEquals(600, state.fees);
+		assertEquals(1429, state.interestBalance);
+		assertEquals(1429, state.accrued);
+		assertEquals(100000, state.balance);
+		assertEquals(DAY, state.cursor);
+		assertEquals(3, state.executed.size());
+		assertTrue(state.added.isEmpty());
+	}
+
+	@Test
+	public void replayedCompoundingMovesInterestIntoTheBalance(){
+		Replay state = new Replay(loan(0.1, 100000, 0, 0, false), 0, WEEK, false);
+		LoanEvent compound = event(WEEK, LoanEventType.COMPOUND, 0);
+
+		LoanManager.replay(state, Arrays.asList(compound));
+
+		assertEquals(10000, compound.amount);
+		assertEquals(110000, state.balance);
+		assertEquals(0, state.interestBalance);
+		assertEquals(10000, state.accrued);
+	}
+
+	@Test
+	public void autopayInFullPaysFeesFirstAndClosesTheLoan(){
+		Replay state = new Replay(loan(0, 3000, 0, 100, false), 0, WEEK, false);
+		state.autoPay = true;
+		state.cash = 10000;
+
+		LoanEvent due = event(DAY, LoanEventType.PAYMENTDUE, 0);
+		LoanManager.replay(state, Arrays.asList(event(0, LoanEventType.STATEMENTOUT, 5000), due, event(2 * DAY, LoanEventType.SERVICEFEE, 100)));
+
+		// The bill of 3200 counts the fee twice, so only 3100 is taken
+		assertEquals(3200, state.issued.get(0).billAmount);
+		assertEquals(3100, due.amount);
+		assertEquals(3100, state.paid);
+		assertEquals(6900, state.cash);
+		assertEquals(3100, state.latest.paid);
+		assertEquals(0, state.balance);
+		assertEquals(0, state.feeBalance);
+		assertTrue(state.closed);
+
+		// Replay stops once the loan is paid off
+		assertEquals(2, state.executed.size());
+		assertEquals(1, state.added.size());
+		assertEquals(LoanEventType.PAYMENTMADE, state.added.get(0).action);
+		assertEquals(3100, state.added.get(0).amount);
+	}
+
+	@Test
+	public void autopayOfTheMinimumLeavesTheRestOwed(){
+		Replay state = new Replay(loan(0, 100000, 0, 0, false), 0, WEEK, false);
+		state.autoPay = true;
+		state.minimumOnly = true;
+		state.cash = 10000;
+
+		LoanManager.replay(state, Arrays.asList(event(0, LoanEventType.STATEMENTOUT, 5000), event(DAY, LoanEventType.PAYMENTDUE, 0), event(2 * DAY, LoanEventType.LATEFEE, 500)));
+
+		assertEquals(2000, state.paid);
+		assertEquals(98000, state.balance);
+		assertEquals(2000, state.latest.paid);
+
+		// The minimum was paid, so there is no late fee
+		assertEquals(0, state.feeBalance);
+		assertFalse(state.closed);
+	}
+
+	@Test
+	public void autopayIsSkippedWithoutEnoughCash(){
+		Replay state = new Replay(loan(0, 100000, 0, 0, false), 0, WEEK, false);
+		state.autoPay = true;
+		state.cash = 1000;
+
+		LoanEvent due = event(DAY, LoanEventType.PAYMENTDUE, 0);
+		LoanManager.replay(state, Arrays.asList(event(0, LoanEventType.STATEMENTOUT, 5000), due));
+
+		assertEquals(0, due.amount);
+		assertEquals(0, state.paid);
+		assertEquals(1000, state.cash);
+		assertEquals(100000, state.balance);
+		assertEquals(2, state.executed.size());
+		assertTrue(state.added.isEmpty());
+	}
+
+	@Test
+	public void percentageRuleTakesAShareOfTheScheduledPayment(){
+		Replay state = new Replay(loan(0, 100000, 0, 0, false), 0, WEEK, true);
+		LoanEvent statement = event(0, LoanEventType.STATEMENTOUT, 5000);
+
+		LoanManager.replay(state, Arrays.asList(statement));
+
+		// The minimum is the scheduled payment times the minimum payment of the terms
+		assertEquals(100000, state.issued.get(0).minimum);
+	}
+
+	@Test
+	public void accrualToATimeAddsSimpleInterest(){
+		Replay state = new Replay(loan(0.1, 100000, 500, 0, false), 0, WEEK, false);
+
+		LoanManager.accrueTo(state, WEEK);
+
+		assertEquals(100000, state.balance);
+		assertEquals(10500, state.interestBalance);
+		assertEquals(10000, state.accrued);
+		assertEquals(WEEK, state.cursor);
+	}
+
+	@Test
+	public void accrualToATimeGrowsContinuousLoans(){
+		Replay state = new Replay(loan(0.1, 100000, 0, 0, true), 0, WEEK, false);
+
+		LoanManager.accrueTo(state, WEEK / 2);
+		LoanManager.accrueTo(state, WEEK);
+
+		// Two half weeks give exp(0.05) twice, rounded each time
+		assertEquals(110517, state.balance);
+		assertEquals(0, state.interestBalance);
+		assertEquals(10517, state.accrued);
+	}
+
+	@Test
+	public void accrualNeverRunsBackwards(){
+		Replay state = new Replay(loan(0.1, 100000, 0, 0, false), WEEK, WEEK, false);
+
+		LoanManager.accrueTo(state, DAY);
+
+		assertEquals(0, state.interestBalance);
+		assertEquals(0, state.accrued);
+		assertEquals(WEEK, state.cursor);
+	}
+}
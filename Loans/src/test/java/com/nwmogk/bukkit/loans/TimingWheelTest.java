@@ -0,0 +1,102 @@
+package com.nwmogk.bukkit.loans;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+	// 10ms ticks, 4 slots a level and 3 levels reach 640ms ahead.
+	private TimingWheel<String> wheel(long now){
+		return new TimingWheel<String>(10, 2, 3, now);
+	}
+
+	/*
+	 * Advances the wheel one tick at a time up to the given time and
+	 * returns the time at which each item was handed back.
+	 */
+	private Map<String, Long> run(TimingWheel<String> wheel, long from, long to){
+		Map<String, Long> fired = new HashMap<String, Long>();
+		
+		for(long now = from; now <= to; now += 10)
+			for(String item : wheel.advance(now))
+				assertNull("fired twice: " + item, fired.put(item, now));
+		
+		return fired;
+	}
+
+	@Test
+	public void pastDueItemsFireOnNextAdvance(){
+		TimingWheel<String> wheel = wheel(1000);
+		
+		wheel.schedule(500, "past");
+		wheel.schedule(1000, "now");
+		
+		assertEquals(2, wheel.size());
+		
+		List<String> due = wheel.advance(1000);
+		
+		assertEquals(2, due.size());
+		assertTrue(due.contains("past"));
+		assertTrue(due.contains("now"));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void itemsFireOnTheirTickAtEveryLevel(){
+		TimingWheel<String> wheel = wheel(0);
+		long[] times = {10, 30, 40, 50, 170, 400, 630};
+		
+		for(long time : times)
+			wheel.schedule(time, "t" + time);
+		
+		Map<String, Long> fired = run(wheel, 0, 700);
+		
+		for(long time : times)
+			assertEquals("t" + time, Long.valueOf(time), fired.get("t" + time));
+		
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void itemsBeyondTheTopLevelFireFromOverflow(){
+		TimingWheel<String> wheel = wheel(0);
+		
+		wheel.schedule(2000, "far");
+		wheel.schedule(5230, "farther");
+		
+		Map<String, Long> fired = run(wheel, 0, 6000);
+		
+		assertEquals(Long.valueOf(2000), fired.get("far"));
+		assertEquals(Long.valueOf(5230), fired.get("farther"));
+	}
+
+	@Test
+	public void itemsScheduledMidTickNeverFireEarly(){
+		TimingWheel<String> wheel = wheel(0);
+		
+		wheel.schedule(15, "mid");
+		
+		assertTrue(wheel.advance(10).isEmpty());
+		assertEquals(1, wheel.advance(20).size());
+	}
+
+	@Test
+	public void advancingOverManyTicksAtOnceCascades(){
+		TimingWheel<String> wheel = wheel(0);
+		
+		wheel.schedule(170, "a");
+		wheel.schedule(600, "b");
+		wheel.schedule(3000, "c");
+		
+		assertTrue(wheel.advance(160).isEmpty());
+		assertEquals("a", wheel.advance(599).get(0));
+		assertEquals("b", wheel.advance(2990).get(0));
+		assertEquals("c", wheel.advance(3000).get(0));
+		assertEquals(0, wheel.size());
+	}
+}
@@ -0,0 +1,63 @@
+package com.nwmogk.bukkit.loans.api;
+
+import java.math.BigDecimal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MoneyTest {
+
+	@Before
+	public void resetDigits(){
+		Money.setFractionalDigits(2);
+	}
+
+	@Test
+	public void doublesRoundHalfUpToMinorUnits(){
+		assertEquals(1234, Money.fromDouble(12.34));
+		assertEquals(13, Money.fromDouble(0.125));
+		assertEquals(-12, Money.fromDouble(-0.125));
+		assertEquals(12.34, Money.toDouble(1234), 0);
+	}
+
+	@Test
+	public void productsRoundHalfUpToMinorUnits(){
+		assertEquals(167, Money.times(333, 0.5));
+		assertEquals(3, Money.times(10, 0.25));
+		assertEquals(0, Money.times(1, 0.49));
+	}
+
+	@Test
+	public void decimalsRoundHalfEvenToMinorUnits(){
+		assertEquals(12, Money.fromDecimal(new BigDecimal("0.125")));
+		assertEquals(14, Money.fromDecimal(new BigDecimal("0.135")));
+		assertEquals(1234, Money.fromDecimal(new BigDecimal("12.34")));
+		assertEquals(0, Money.fromDecimal(null));
+		assertEquals(new BigDecimal("12.34"), Money.toDecimal(1234));
+	}
+
+	@Test
+	public void minorUnitsFollowTheFractionalDigits(){
+		Money.setFractionalDigits(0);
+		
+		assertEquals(3, Money.fromDouble(2.5));
+		assertEquals(2, Money.fromDecimal(new BigDecimal("2.5")));
+		assertEquals(new BigDecimal("5"), Money.toDecimal(5));
+		
+		Money.setFractionalDigits(3);
+		
+		assertEquals(1235, Money.fromDouble(1.2346));
+		assertEquals(1.235, Money.toDouble(1235), 0);
+	}
+
+	@Test
+	public void fractionalDigitsAreClamped(){
+		Money.setFractionalDigits(-1);
+		assertEquals(0, Money.getFractionalDigits());
+		
+		Money.setFractionalDigits(12);
+		assertEquals(9, Money.getFractionalDigits());
+	}
+}
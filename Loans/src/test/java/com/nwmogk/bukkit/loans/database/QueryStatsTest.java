@@ -0,0 +1,72 @@
+package com.nwmogk.bukkit.loans.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryStatsTest {
+
+	private static final long MICROS = 1000L;
+	private static final long MILLIS = 1000000L;
+
+	private QueryStats.Entry entry(QueryStats stats, long... nanos){
+		QueryStats.Entry e = stats.entryFor(null);
+		
+		for(long n : nanos)
+			stats.record(e, null, n, 0);
+		
+		return e;
+	}
+
+	@Test
+	public void emptyEntryHasNoPercentile(){
+		QueryStats stats = new QueryStats(0);
+		
+		assertEquals(0.0, entry(stats).getPercentileMillis(0.99), 0);
+	}
+
+	@Test
+	public void percentileIsTheUpperEdgeOfItsBucket(){
+		QueryStats stats = new QueryStats(0);
+		QueryStats.Entry e = entry(stats, 1023 * MICROS, 1024 * MICROS, 100 * MILLIS);
+		
+		// 1023us is below 2^10us; 1024us is the first value of the next bucket.
+		assertEquals(1.024, e.getPercentileMillis(0.33), 1e-9);
+		assertEquals(2.048, e.getPercentileMillis(0.66), 1e-9);
+	}
+
+	@Test
+	public void percentileIsCappedAtTheLargestTime(){
+		QueryStats stats = new QueryStats(0);
+		long[] times = new long[100];
+		
+		for(int i = 0; i < 99; i++)
+			times[i] = 1500;
+		times[99] = 5 * MILLIS;
+		
+		QueryStats.Entry e = entry(stats, times);
+		
+		assertEquals(0.002, e.getPercentileMillis(0.5), 1e-9);
+		assertEquals(0.002, e.getPercentileMillis(0.99), 1e-9);
+		
+		// 5ms falls in the bucket below 8.192ms, but nothing took longer than 5ms.
+		assertEquals(5.0, e.getPercentileMillis(1.0), 1e-9);
+	}
+
+	@Test
+	public void subMicrosecondTimesFallInTheFirstBucket(){
+		QueryStats stats = new QueryStats(0);
+		QueryStats.Entry e = entry(stats, 0, 999, 10 * MILLIS);
+		
+		assertEquals(0.001, e.getPercentileMillis(0.5), 1e-9);
+	}
+
+	@Test
+	public void timesBeyondTheLastBucketReportTheMaximum(){
+		QueryStats stats = new QueryStats(0);
+		QueryStats.Entry e = entry(stats, 1 * MILLIS, 3000000L * MILLIS);
+		
+		assertEquals(3000000.0, e.getPercentileMillis(1.0), 1e-6);
+		assertEquals(2, e.getCount());
+	}
+}